@@ -0,0 +1,237 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/** Benchmark harness for all engines. Every configuration gets a timed warm up and then a number of measured
+    iterations of a fixed length, like JMH does, and reports the throughput (products per second with its
+    spread over the iterations), the mean time of one product and, like the JMH GC profiler, the bytes
+    allocated per product, the allocation rate and the GC count and time during the measurement. Every engine
+    is checked once against the naive kernel before it is timed, so a wrong result fails the run.
+
+    The parameters are system properties, lists are comma separated:
+        bench.sizes       n of the n x n products        (default 128,255,256,511,512)
+        bench.engines     engines to run, see ENGINES    (default all)
+        bench.threads     pool sizes of the parallel engines, ranks of the "ranks" engine, which runs
+                          Distributive on the local transport (default 1 and the number of cpus)
+        bench.crossovers  crossovers of the Strassen engines (default the current one, 0 for the kernels)
+        bench.warmup      warm up per configuration in ms (default 1000)
+        bench.iterations  measured iterations            (default 5)
+        bench.time        length of an iteration in ms   (default 500)
+        bench.csv         file to append the results to as csv, for comparing runs
+    for example java -Dbench.sizes=512,1023 -Dbench.engines=workspace,forkjoin Benchmark **/
+public class Benchmark {
+
+    static final String[] ENGINES = {"naive", "seqMM", "sequential", "workspace", "forkjoin", "async", "distributive",
+            "ranks"};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Results end up here so the JIT cannot drop the products **/
+    static volatile long sink;
+
+    interface Engine {
+        Matrix multiply(Matrix A, Matrix B);
+    }
+
+    /** One measured configuration **/
+    record Result(String engine, int n, int threads, int crossover, double opsPerSecond, double error,
+                  double msPerOp, double bytesPerOp, double allocMBPerSecond, long gcCount, long gcMillis) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = ints("bench.sizes", "128,255,256,511,512");
+        String[] engines = System.getProperty("bench.engines", String.join(",", ENGINES)).split(",");
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int[] threads = ints("bench.threads", cpus > 1 ? "1," + cpus : "1");
+        int[] crossovers = ints("bench.crossovers", String.valueOf(Crossover.threshold()));
+        long warmup = Long.getLong("bench.warmup", 1000);
+        int iterations = Integer.getInteger("bench.iterations", 5);
+        long time = Long.getLong("bench.time", 500);
+        String csv = System.getProperty("bench.csv");
+
+        System.out.println("kernel " + Kernels.selected() + ", variant " + Variant.selected() + ", " + cpus + " cpus");
+        System.out.printf("%-12s %5s %7s %9s %12s %9s %10s %12s %10s %4s %6s%n", "engine", "n", "threads",
+                "crossover", "ops/s", "error", "ms/op", "B/op", "alloc MB/s", "gc", "gc ms");
+        List<Result> results = new ArrayList<>();
+        int previous = Crossover.override();
+        try {
+            for (int n : sizes) {
+                Matrix A = Matrix.random(n, n, 10);
+                Matrix B = Matrix.random(n, n, 10);
+                Matrix reference = new Matrix(n, n);
+                Kernels.multiply(Kernels.Kernel.NAIVE, A.data, 0, n, B.data, 0, n, reference.data, 0, n, n, n, n);
+                for (String name : engines) {
+                    name = name.trim();
+                    boolean parallel = name.equals("forkjoin") || name.equals("async") || name.equals("ranks");
+                    boolean strassen = !name.equals("naive") && !name.equals("seqMM");
+                    for (int t : parallel ? threads : new int[]{1}) {
+                        for (int crossover : strassen ? crossovers : new int[]{0}) {
+                            Crossover.set(crossover);
+                            Result result = run(name, A, B, reference, t, crossover, warmup, iterations, time);
+                            print(result);
+                            results.add(result);
+                        }
+                    }
+                }
+            }
+        } finally {
+            Crossover.set(previous);
+        }
+        if (csv != null) {
+            writeCsv(csv, results);
+        }
+    }
+
+    /** Warms up and measures one engine in one configuration **/
+    static Result run(String name, Matrix A, Matrix B, Matrix reference, int threads, int crossover,
+                      long warmup, int iterations, long time) {
+        ForkJoinPool pool = name.equals("forkjoin") ? new ForkJoinPool(threads) : null;
+        ExecutorService executor = name.equals("async") ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            Engine engine = engine(name, A.rows, threads, pool, executor);
+            if (!engine.multiply(A, B).contentEquals(reference)) {
+                throw new IllegalStateException(name + " gives a wrong result for n = " + A.rows);
+            }
+            measure(engine, A, B, warmup);
+
+            double[] throughput = new double[iterations];
+            long ops = 0;
+            long elapsed = 0;
+            long gcCount = -gcCount();
+            long gcMillis = -gcMillis();
+            long allocated = -THREADS.getTotalThreadAllocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                int reps = measure(engine, A, B, time);
+                long duration = System.nanoTime() - start;
+                throughput[i] = reps * 1e9 / duration;
+                ops += reps;
+                elapsed += duration;
+            }
+            allocated += THREADS.getTotalThreadAllocatedBytes();
+            gcCount += gcCount();
+            gcMillis += gcMillis();
+
+            double mean = Arrays.stream(throughput).average().orElse(0);
+            double variance = Arrays.stream(throughput).map(x -> (x - mean) * (x - mean)).sum()
+                    / Math.max(1, iterations - 1);
+            return new Result(name, A.rows, threads, crossover, mean, Math.sqrt(variance), elapsed / 1e6 / ops,
+                    (double) allocated / ops, allocated / 1e6 / (elapsed / 1e9), gcCount, gcMillis);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /** Runs the engine until at least the given number of ms have passed, returns the number of products **/
+    private static int measure(Engine engine, Matrix A, Matrix B, long millis) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        int reps = 0;
+        do {
+            sink += engine.multiply(A, B).get(0, 0);
+            reps++;
+        } while (System.nanoTime() < end);
+        return reps;
+    }
+
+    static Engine engine(String name, int n, int threads, ForkJoinPool pool, ExecutorService executor) {
+        switch (name) {
+            case "naive":
+                return (A, B) -> {
+                    Matrix C = new Matrix(A.rows, B.cols);
+                    Kernels.multiply(Kernels.Kernel.NAIVE, A.data, A.offset, A.stride, B.data, B.offset, B.stride,
+                            C.data, C.offset, C.stride, A.rows, A.cols, B.cols);
+                    return C;
+                };
+            case "seqMM":
+                return Sequential::seqMM;
+            case "sequential":
+                return Sequential::multiply;
+            case "workspace":
+                // One workspace and one result for all products, the way a caller that multiplies often would
+                Workspace ws = new Workspace(n);
+                Matrix C = new Matrix(n, n);
+                return (A, B) -> {
+                    Sequential.multiply(A, B, C, ws);
+                    return C;
+                };
+            case "forkjoin":
+                return (A, B) -> Parallel.multiply(A, B, pool);
+            case "async":
+                return (A, B) -> Parallel.multiplyAsync(A, B, executor).join();
+            case "distributive":
+                return Distributive::multiply;
+            case "ranks":
+                return (A, B) -> {
+                    Matrix[] result = new Matrix[1];
+                    LocalCommunicator.run(threads, comm -> {
+                        Matrix product = Distributive.multiplyScattered(comm.rank() == 0 ? A : null,
+                                comm.rank() == 0 ? B : null, comm, A.rows, A.cols, B.cols);
+                        if (comm.rank() == 0) {
+                            result[0] = product;
+                        }
+                    });
+                    return result[0];
+                };
+            default:
+                throw new IllegalArgumentException("Unknown engine " + name + ", expected one of "
+                        + String.join(", ", ENGINES));
+        }
+    }
+
+    private static void print(Result r) {
+        System.out.printf(Locale.ROOT, "%-12s %5d %7d %9d %12.2f %9.2f %10.3f %12.0f %10.1f %4d %6d%n",
+                r.engine(), r.n(), r.threads(), r.crossover(), r.opsPerSecond(), r.error(), r.msPerOp(),
+                r.bytesPerOp(), r.allocMBPerSecond(), r.gcCount(), r.gcMillis());
+    }
+
+    private static void writeCsv(String file, List<Result> results) throws IOException {
+        boolean header = !new java.io.File(file).exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            if (header) {
+                out.println("engine,n,threads,crossover,kernel,variant,ops_per_s,error,ms_per_op,bytes_per_op,"
+                        + "alloc_mb_per_s,gc_count,gc_ms");
+            }
+            for (Result r : results) {
+                out.printf(Locale.ROOT, "%s,%d,%d,%d,%s,%s,%.4f,%.4f,%.4f,%.0f,%.2f,%d,%d%n", r.engine(), r.n(),
+                        r.threads(), r.crossover(), Kernels.selected(), Variant.selected(), r.opsPerSecond(),
+                        r.error(), r.msPerOp(), r.bytesPerOp(), r.allocMBPerSecond(), r.gcCount(), r.gcMillis());
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static int[] ints(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+}
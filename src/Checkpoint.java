@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/** Completed block products of a fault tolerant run (see FaultTolerant) on disk, so a restarted run only computes
+    the missing ones. Every product is a file of its own in a directory named after a fingerprint of A, B and the
+    decomposition, a SHA-256 digest, and every file holds that digest as well and is only loaded if it matches. A
+    checkpoint is therefore only ever picked up by a run of the same product, a colliding run of another one
+    would take a collision of SHA-256. A file is written under a temporary name and renamed when it is complete,
+    so a crash while writing leaves nothing behind that could be mistaken for a product. **/
+public class Checkpoint {
+
+    private static final int MAGIC = 0x53545244; // "STRD"
+    private static final int DIGEST = 32;
+    // Magic, shape and digest
+    private static final int HEADER = 12 + DIGEST;
+
+    private final Path dir;
+    private final byte[] digest;
+    private final int rows;
+    private final int cols;
+
+    public Checkpoint(Path root, Matrix A, Matrix B, Decomposition plan) throws IOException {
+        this.digest = fingerprint(A, B, plan);
+        this.dir = root.resolve(HexFormat.of().formatHex(digest));
+        this.rows = plan.bm;
+        this.cols = plan.bn;
+        Files.createDirectories(dir);
+    }
+
+    /** Reads product j into P, false if there is no complete checkpoint of it **/
+    public boolean load(int product, Matrix P) throws IOException {
+        Path file = file(product);
+        if (!Files.exists(file) || Files.size(file) != HEADER + 4L * rows * cols) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Files.size(file), 1 << 20));
+            read(channel, buffer, HEADER);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != rows || buffer.getInt() != cols) {
+                return false;
+            }
+            byte[] stored = new byte[DIGEST];
+            buffer.get(stored);
+            if (!MessageDigest.isEqual(stored, digest)) {
+                return false;
+            }
+            long left = 4L * rows * cols;
+            for (int i = 0; i < rows; i++) {
+                int row = P.offset + i * P.stride;
+                for (int j = 0; j < cols; ) {
+                    if (!buffer.hasRemaining()) {
+                        int bytes = (int) Math.min(buffer.capacity(), left);
+                        read(channel, buffer, bytes);
+                        left -= bytes;
+                    }
+                    int count = Math.min(cols - j, buffer.remaining() / 4);
+                    buffer.asIntBuffer().get(P.data, row + j, count);
+                    buffer.position(buffer.position() + 4 * count);
+                    j += count;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Writes product j, atomically replacing any earlier checkpoint of it **/
+    public void store(int product, Matrix P) throws IOException {
+        Path file = file(product);
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HEADER + 4L * rows * cols, 1 << 20));
+            buffer.putInt(MAGIC).putInt(rows).putInt(cols).put(digest);
+            for (int i = 0; i < rows; i++) {
+                int row = P.offset + i * P.stride;
+                for (int j = 0; j < cols; ) {
+                    if (buffer.remaining() < 4) {
+                        write(channel, buffer);
+                    }
+                    int count = Math.min(cols - j, buffer.remaining() / 4);
+                    buffer.asIntBuffer().put(P.data, row + j, count);
+                    buffer.position(buffer.position() + 4 * count);
+                    j += count;
+                }
+            }
+            write(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path file(int product) {
+        return dir.resolve("product-" + product + ".bin");
+    }
+
+    // Clears the buffer and fills it with the next count bytes of the channel
+    private static void read(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+        buffer.clear().limit(count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Checkpoint ends early");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** SHA-256 digest of the shapes and elements of A and B and of the decomposition **/
+    static byte[] fingerprint(Matrix A, Matrix B, Decomposition plan) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform has SHA-256", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.putInt(A.rows).putInt(A.cols).putInt(B.cols).putInt(plan.levels).putInt(plan.variant.ordinal());
+        for (Matrix X : new Matrix[]{A, B}) {
+            for (int i = 0; i < X.rows; i++) {
+                int row = X.offset + i * X.stride;
+                for (int j = 0; j < X.cols; ) {
+                    if (buffer.remaining() < 4) {
+                        sha.update(buffer.flip());
+                        buffer.clear();
+                    }
+                    int count = Math.min(X.cols - j, buffer.remaining() / 4);
+                    buffer.asIntBuffer().put(X.data, row + j, count);
+                    buffer.position(buffer.position() + 4 * count);
+                    j += count;
+                }
+            }
+        }
+        sha.update(buffer.flip());
+        return sha.digest();
+    }
+}
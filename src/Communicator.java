@@ -0,0 +1,67 @@
+/** The message passing between the ranks of Distributive, on int arrays. There are two transports:
+    MpiCommunicator runs on an MPJ Express style MPI binding across processes and nodes, LocalCommunicator runs
+    the ranks as threads of one JVM and needs no MPI installation at all. The semantics are the ones of MPI:
+    messages from one rank to another with the same tag arrive in the order they were sent, a receive may take
+    any source or any tag (user tags are >= 0), and the buffer of a non-blocking operation must not be touched
+    until the operation has completed. SegmentCommunicator adds messages from and to segments of ints on top. **/
+public interface Communicator {
+
+    int ANY_SOURCE = -1;
+    int ANY_TAG = -1;
+
+    int rank();
+
+    int size();
+
+    /** Starts sending count elements of buf from offset to rank dest **/
+    Request isend(int[] buf, int offset, int count, int dest, int tag);
+
+    /** Starts receiving at most count elements into buf from offset **/
+    Request irecv(int[] buf, int offset, int count, int source, int tag);
+
+    /** Every rank ends up with the count elements of root, from offset **/
+    void bcast(int[] buf, int offset, int count, int root);
+
+    void barrier();
+
+    /** Waits until one of the requests has completed and returns its index, its status is then available from
+        test(). A completed request must not be passed in again **/
+    int waitAny(Request[] requests);
+
+    default void send(int[] buf, int offset, int count, int dest, int tag) {
+        isend(buf, offset, count, dest, tag).await();
+    }
+
+    default Status recv(int[] buf, int offset, int count, int source, int tag) {
+        return irecv(buf, offset, count, source, tag).await();
+    }
+
+    default void waitAll(Request... requests) {
+        for (Request request : requests) {
+            request.await();
+        }
+    }
+
+    /** Wall clock time in seconds **/
+    default double wtime() {
+        return System.nanoTime() / 1e9;
+    }
+
+    /** A non-blocking send or receive **/
+    interface Request {
+
+        /** The status once the operation has completed, null before, never blocks **/
+        Status test();
+
+        /** Waits for the operation to complete **/
+        Status await();
+
+        /** Withdraws the operation if nothing has matched it yet, otherwise waits for it to complete. Either way
+            it is over when this returns and must not be waited for any more. True if it was withdrawn **/
+        boolean cancel();
+    }
+
+    /** Where a message came from, its tag and its number of elements **/
+    record Status(int source, int tag, int count) {
+    }
+}
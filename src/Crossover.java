@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/** The crossover size where Strassen stops recursing and the base case kernel takes over (n <= threshold goes to
+    the kernel). The best value depends on the CPU, its caches and the kernel, so it is taken from, in order:
+    an override set with set(), -Dstrassen.crossover, the tuned value for the selected kernel in the local profile
+    file (strassen-profile.properties in the working directory, or -Dstrassen.profile) and finally 32.
+    Run main on a machine to tune it and write the profile. **/
+public class Crossover {
+
+    public static final int DEFAULT = 32;
+
+    private static final Path PROFILE = Paths.get(System.getProperty("strassen.profile", "strassen-profile.properties"));
+    private static final Properties profile = load(PROFILE);
+    private static volatile int override = parse(System.getProperty("strassen.crossover"));
+
+    /** Current crossover for the selected kernel **/
+    public static int threshold() {
+        int value = override;
+        if (value > 0) {
+            return value;
+        }
+        return profiled(Kernels.selected());
+    }
+
+    /** Override the crossover for this JVM, 0 goes back to the profile **/
+    public static void set(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Crossover must be positive, got " + threshold);
+        }
+        override = threshold;
+    }
+
+    /** The override from set() or -Dstrassen.crossover, 0 if the profile is used **/
+    static int override() {
+        return override;
+    }
+
+    /** Tuned crossover for a kernel, or DEFAULT if the profile has none for this machine **/
+    static int profiled(Kernels.Kernel kernel) {
+        if (!machine().equals(profile.getProperty("machine"))) {
+            return DEFAULT;
+        }
+        int value = parse(profile.getProperty("crossover." + kernel));
+        return value > 0 ? value : DEFAULT;
+    }
+
+    /** Times the kernel against one Strassen level (7 kernel calls of half the size plus the additions) for every
+        size in sizes, and returns the largest size below the point from where Strassen keeps winning **/
+    public static int tune(Kernels.Kernel kernel, int[] sizes) {
+        Kernels.Kernel previous = Kernels.selected();
+        Kernels.use(kernel);
+        try {
+            int best = sizes[sizes.length - 1];
+            boolean strassenWins = true;
+            for (int i = sizes.length - 1; i >= 0 && strassenWins; i--) {
+                int n = sizes[i];
+                Matrix A = Matrix.random(n, n, 10);
+                Matrix B = Matrix.random(n, n, 10);
+                Matrix C = new Matrix(n);
+                double kernelTime = time(() -> Kernels.multiply(A.data, 0, n, B.data, 0, n, C.data, 0, n, n, n, n));
+                // A workspace with threshold n - 1 recurses exactly once, the halves go straight to the kernel
+                Workspace ws = new Workspace(n, n - 1);
+                double strassenTime = time(() -> Sequential.multiply(A, B, C, ws));
+                System.out.printf("%s n=%5d kernel %10.3f ms  one Strassen level %10.3f ms%n",
+                        kernel, n, kernelTime / 1e6, strassenTime / 1e6);
+                strassenWins = strassenTime < kernelTime;
+                best = strassenWins && i > 0 ? sizes[i - 1] : n;
+            }
+            return best;
+        } finally {
+            Kernels.use(previous);
+        }
+    }
+
+    /** Tune every kernel and write the results to the profile **/
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {16, 24, 32, 48, 64, 96, 128, 192, 256, 384, 512};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        profile.setProperty("machine", machine());
+        for (Kernels.Kernel kernel : Kernels.Kernel.values()) {
+            int threshold = tune(kernel, sizes);
+            System.out.println("Crossover for " + kernel + ": " + threshold);
+            profile.setProperty("crossover." + kernel, Integer.toString(threshold));
+        }
+        try (OutputStream out = Files.newOutputStream(PROFILE)) {
+            profile.store(out, "Strassen crossover profile, written by Crossover.main");
+        }
+        System.out.println("Profile written to " + PROFILE.toAbsolutePath());
+    }
+
+    /** Average time of one run in ns, measured after a warm up **/
+    private static double time(Runnable run) {
+        long budget = 300_000_000L;
+        double result = 0;
+        for (int round = 0; round < 2; round++) {
+            int reps = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                run.run();
+                reps++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < budget);
+            result = (double) elapsed / reps;
+        }
+        return result;
+    }
+
+    /** Identifies the hardware a profile was tuned on, a profile from another kind of box is ignored **/
+    static String machine() {
+        return System.getProperty("os.arch") + "/" + Runtime.getRuntime().availableProcessors() + "cpu";
+    }
+
+    private static Properties load(Path path) {
+        Properties properties = new Properties();
+        if (Files.isRegularFile(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            } catch (IOException e) {
+                System.err.println("Could not read crossover profile " + path + ": " + e.getMessage());
+            }
+        }
+        return properties;
+    }
+
+    private static int parse(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/** Several levels of Strassen unrolled at once. With L levels an m x k times k x n product splits A, B and C into
+    2^L x 2^L grids of blocks and becomes 7^L independent block products. Product j is
+        P_j = (sum of +-A blocks) * (sum of +-B blocks)
+    and it is added to or subtracted from some of the blocks of C. The signs of a product are the products of the
+    signs of its digits, when j is written in base 7 with one digit per level (the most significant one is the
+    top level) and every digit picks one of the seven products of a single level from the tables below.
+    The products do not depend on each other, so they can be handed out to any number of workers, and the
+    result is the same whatever order they are added to C in.
+
+    Only the top left (m, k, n rounded down to multiples of 2^L) part of the operands is split, Kernels.peel
+    adds the rest. **/
+public class Decomposition {
+
+    // Coefficients of one level, blocks in the order 11, 12, 21, 22. LEFT[p] and RIGHT[p] give the operands of
+    // product p, OUT[q][p] says how product p goes into block q of C
+    private static final int[][] CLASSIC_LEFT = {
+            {1, 0, 0, 1}, {0, 0, 1, 1}, {1, 0, 0, 0}, {0, 0, 0, 1}, {1, 1, 0, 0}, {-1, 0, 1, 0}, {0, 1, 0, -1}};
+    private static final int[][] CLASSIC_RIGHT = {
+            {1, 0, 0, 1}, {1, 0, 0, 0}, {0, 1, 0, -1}, {-1, 0, 1, 0}, {0, 0, 0, 1}, {1, 1, 0, 0}, {0, 0, 1, 1}};
+    private static final int[][] CLASSIC_OUT = {
+            {1, 0, 0, 1, -1, 0, 1}, {0, 0, 1, 0, 1, 0, 0}, {0, 1, 0, 1, 0, 0, 0}, {1, -1, 1, 0, 0, 1, 0}};
+
+    // Strassen-Winograd with its partial sums expanded, see Variant
+    private static final int[][] WINOGRAD_LEFT = {
+            {1, 0, 0, 0}, {0, 1, 0, 0}, {1, 1, -1, -1}, {0, 0, 0, 1}, {0, 0, 1, 1}, {-1, 0, 1, 1}, {1, 0, -1, 0}};
+    private static final int[][] WINOGRAD_RIGHT = {
+            {1, 0, 0, 0}, {0, 0, 1, 0}, {0, 0, 0, 1}, {1, -1, -1, 1}, {-1, 1, 0, 0}, {1, -1, 0, 1}, {0, -1, 0, 1}};
+    private static final int[][] WINOGRAD_OUT = {
+            {1, 1, 0, 0, 0, 0, 0}, {1, 0, 1, 0, 1, 1, 0}, {1, 0, 0, -1, 0, 1, 1}, {1, 0, 0, 0, 1, 1, 1}};
+
+    /** Most levels of a decomposition, 7^4 = 2401 products is plenty for any rank count. The tags of the messages
+        of a product and its chunks must stay at or below 32767, the upper bound every MPI guarantees **/
+    public static final int MAX_LEVELS = 4;
+
+    public final Variant variant;
+    public final int levels;
+    public final int count;
+    // Size of the blocks
+    public final int bm;
+    public final int bk;
+    public final int bn;
+
+    private final int[][] left;
+    private final int[][] right;
+    private final int[][] out;
+
+    public Decomposition(Variant variant, int levels, int m, int k, int n) {
+        if (levels < 0 || levels > MAX_LEVELS || Math.min(m, Math.min(k, n)) >> levels == 0) {
+            throw new IllegalArgumentException("Cannot split " + m + "x" + k + " * " + k + "x" + n + " "
+                    + levels + " levels deep");
+        }
+        this.variant = variant;
+        this.levels = levels;
+        int count = 1;
+        for (int i = 0; i < levels; i++) {
+            count *= 7;
+        }
+        this.count = count;
+        this.bm = m >> levels;
+        this.bk = k >> levels;
+        this.bn = n >> levels;
+        boolean winograd = variant == Variant.WINOGRAD;
+        this.left = winograd ? WINOGRAD_LEFT : CLASSIC_LEFT;
+        this.right = winograd ? WINOGRAD_RIGHT : CLASSIC_RIGHT;
+        this.out = winograd ? WINOGRAD_OUT : CLASSIC_OUT;
+    }
+
+    /** Number of levels that spreads the products of an m x k times k x n product best over the given number of
+        workers: the fewest levels whose busiest worker has at most 5% more work than with the best choice.
+        Every level must leave blocks of at least the crossover, and -Dstrassen.mpi.levels overrides the choice, up
+        to MAX_LEVELS and the levels the shortest side has **/
+    public static int levels(int workers, int m, int k, int n, int threshold) {
+        int min = Math.min(m, Math.min(k, n));
+        Integer forced = Integer.getInteger("strassen.mpi.levels");
+        if (forced != null) {
+            return Math.max(0, Math.min(Math.min(forced, MAX_LEVELS),
+                    31 - Integer.numberOfLeadingZeros(Math.max(1, min))));
+        }
+        if (workers <= 1) {
+            return 0;
+        }
+        double[] load = new double[MAX_LEVELS + 1];
+        int deepest = 0;
+        double best = 1;
+        load[0] = 1;
+        for (int levels = 1, count = 7; levels <= MAX_LEVELS && (min >> levels) >= threshold;
+             levels++, count *= 7) {
+            // Share of the whole product done by the busiest worker
+            load[levels] = (double) ((count + workers - 1) / workers) / count;
+            best = Math.min(best, load[levels]);
+            deepest = levels;
+        }
+        for (int levels = 0; levels < deepest; levels++) {
+            if (load[levels] <= best * 1.05) {
+                return levels;
+            }
+        }
+        return deepest;
+    }
+
+    /** The worker that computes product j. The root (worker 0) gets the last share, so when the products do not
+        divide evenly it has fewer of them and time to add up the results of the others **/
+    public static int owner(int product, int workers) {
+        return (product + 1) % workers;
+    }
+
+    /** Number of products a worker computes **/
+    public int share(int worker, int workers) {
+        int share = 0;
+        for (int j = 0; j < count; j++) {
+            if (owner(j, workers) == worker) {
+                share++;
+            }
+        }
+        return share;
+    }
+
+    /** Left operand of product j. A single block with a plus sign is returned as a view of A, anything else is
+        summed into scratch (bm x bk) **/
+    public Matrix left(int product, Matrix A, Matrix scratch) {
+        return operand(left, product, A, bm, bk, scratch);
+    }
+
+    /** Right operand of product j, see left **/
+    public Matrix right(int product, Matrix B, Matrix scratch) {
+        return operand(right, product, B, bk, bn, scratch);
+    }
+
+    /** Adds product j (bm x bn) into the blocks of C it belongs to, with its sign **/
+    public void accumulate(int product, Matrix P, Matrix C) {
+        accumulate(product, P, C, 0);
+    }
+
+    /** Adds rows [row0, row0 + P.rows) of product j, given as P, into the blocks of C it belongs to **/
+    public void accumulate(int product, Matrix P, Matrix C, int row0) {
+        for (int block = 0; block < blocks(); block++) {
+            int sign = outSign(product, block);
+            if (sign == 0) {
+                continue;
+            }
+            Matrix target = block(C, block, bm, bn).view(row0, 0, P.rows, bn);
+            if (sign > 0) {
+                Matrix.addInto(target.data, target.offset, target.stride, P.data, P.offset, P.stride,
+                        target.data, target.offset, target.stride, P.rows, bn);
+            } else {
+                Matrix.subInto(target.data, target.offset, target.stride, P.data, P.offset, P.stride,
+                        target.data, target.offset, target.stride, P.rows, bn);
+            }
+        }
+    }
+
+    /** Sign (-1, 0 or 1) that block b of A has in the left operand of product j. Blocks are numbered like in
+        block() below, with one level they are the quadrants 11, 12, 21, 22 **/
+    int leftSign(int product, int block) {
+        return sign(left, digits(product), block);
+    }
+
+    /** Sign that block b of B has in the right operand of product j **/
+    int rightSign(int product, int block) {
+        return sign(right, digits(product), block);
+    }
+
+    /** Sign product j is added to block b of C with **/
+    int outSign(int product, int block) {
+        int[] digits = digits(product);
+        int sign = 1;
+        for (int level = 0; level < levels && sign != 0; level++) {
+            sign *= out[quadrant(block, level)][digits[level]];
+        }
+        return sign;
+    }
+
+    private Matrix operand(int[][] table, int product, Matrix X, int rows, int cols, Matrix scratch) {
+        int[] digits = digits(product);
+        Matrix single = null;
+        int terms = 0;
+        for (int block = 0; block < blocks(); block++) {
+            int sign = sign(table, digits, block);
+            if (sign == 0) {
+                continue;
+            }
+            Matrix source = block(X, block, rows, cols);
+            if (terms == 0 && sign > 0) {
+                single = source;
+            } else {
+                if (terms == 1 && single != null) {
+                    Matrix.copyInto(single.data, single.offset, single.stride,
+                            scratch.data, scratch.offset, scratch.stride, rows, cols);
+                } else if (terms == 0) {
+                    scratch.fill(0);
+                }
+                if (sign > 0) {
+                    Matrix.addInto(scratch.data, scratch.offset, scratch.stride, source.data, source.offset,
+                            source.stride, scratch.data, scratch.offset, scratch.stride, rows, cols);
+                } else {
+                    Matrix.subInto(scratch.data, scratch.offset, scratch.stride, source.data, source.offset,
+                            source.stride, scratch.data, scratch.offset, scratch.stride, rows, cols);
+                }
+            }
+            terms++;
+        }
+        return terms == 1 && single != null ? single : scratch;
+    }
+
+    private int sign(int[][] table, int[] digits, int block) {
+        int sign = 1;
+        for (int level = 0; level < levels && sign != 0; level++) {
+            sign *= table[digits[level]][quadrant(block, level)];
+        }
+        return sign;
+    }
+
+    // Base 7 digits of a product, top level first
+    private int[] digits(int product) {
+        int[] digits = new int[levels];
+        for (int level = levels - 1; level >= 0; level--) {
+            digits[level] = product % 7;
+            product /= 7;
+        }
+        return digits;
+    }
+
+    // Blocks are numbered with two bits per level, top level first, the same way as the quadrants 11, 12, 21, 22
+    private int blocks() {
+        return 1 << (2 * levels);
+    }
+
+    private int quadrant(int block, int level) {
+        return (block >> (2 * (levels - 1 - level))) & 3;
+    }
+
+    private Matrix block(Matrix X, int block, int rows, int cols) {
+        int row = 0;
+        int col = 0;
+        for (int level = 0; level < levels; level++) {
+            int q = quadrant(block, level);
+            row = row * 2 + (q >> 1);
+            col = col * 2 + (q & 1);
+        }
+        return X.view(row * rows, col * cols, rows, cols);
+    }
+}
@@ -1,351 +1,669 @@
-import java.util.Random;
-import mpi.*;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Distributive {
     public static void main(String[] args) {
-        MPI.Init(args); // Initialize the MPI environment
-        int p_rank = MPI.COMM_WORLD.Rank(); // Get the rank of the process
+        // -Dstrassen.transport=local runs the ranks as threads of this JVM (-Dstrassen.local.ranks of them, one per
+        // core by default) instead of as MPI processes started by mpjrun
+        if ("local".equalsIgnoreCase(System.getProperty("strassen.transport", "mpi"))) {
+            int ranks = Integer.getInteger("strassen.local.ranks", Runtime.getRuntime().availableProcessors());
+            LocalCommunicator.run(ranks, comm -> run(comm, args));
+        } else {
+            MpiCommunicator comm = MpiCommunicator.init(args); // Initialize the MPI environment
+            run(comm, args);
+            comm.finish(); // Finalize MPI environment
+        }
+    }
 
+    // What every rank does, whatever the transport
+    static void run(Communicator comm, String[] args) {
+        comm = Metrics.instrument(comm); // Counts the messages of this rank with -Dstrassen.metrics=true
+        int p_rank = comm.rank(); // Get the rank of the process
 
-        int[] n = new int[1]; // Array to store the matrix size
+        int[] dims = new int[3]; // m, k and n of the product, m is -1 if there is nothing to multiply
         if (args.length < 1) { // Check if matrix size is provided as argument
             if (p_rank == 0) { // Only process 0 prints the message
                 System.out.println("p_rank is 0");
             }
-            MPI.Finalize(); // Finalize MPI environment
             return;
         }
 
-        if (p_rank == 0) { // Process 0 reads the matrix size from arguments
+        Matrix A = null;
+        Matrix B = null;
+        String output = null;
+        if (p_rank == 0) { // Process 0 reads the matrix size from arguments, or the matrices from files
+            // The arguments are at the end, mpjrun puts three arguments of its own in front of them: either the size
+            // of two random square matrices, or <A file> <B file> <C file> (see MatrixFile, C "-" prints the result)
+            String size = args[args.length - 1];
             try {
-                n[0] = Integer.parseInt(args[3]); // Parse the matrix size
-                System.out.println("Matrix size: " + n[0]);
+                int n = Integer.parseInt(size); // Parse the matrix size
+                System.out.println("Matrix size: " + n);
+                A = createMatrix(n);
+                System.out.println("Matrix A: ");
+                printMatrix(A, A.rows, A.cols);
+                B = createMatrix(n);
+                System.out.println("Matrix B: ");
+                printMatrix(B, B.rows, B.cols);
             } catch (NumberFormatException e) {
-                System.out.println("Invalid matrix size argument: " + args[0]);
-                MPI.Finalize(); // Finalize MPI environment
-                return;
+                if (args.length < 3) {
+                    System.out.println("Invalid matrix size argument: " + size);
+                } else {
+                    try {
+                        A = MatrixFile.read(Paths.get(args[args.length - 3]));
+                        B = MatrixFile.read(Paths.get(args[args.length - 2]));
+                        output = size;
+                    } catch (IOException io) {
+                        System.out.println("Cannot read the matrices: " + io.getMessage());
+                    }
+                }
+            }
+            if (A != null && B != null && A.cols == B.rows) {
+                dims[0] = A.rows;
+                dims[1] = A.cols;
+                dims[2] = B.cols;
+            } else {
+                if (A != null && B != null) {
+                    System.out.println("Cannot multiply " + A.rows + "x" + A.cols + " by " + B.rows + "x" + B.cols);
+                }
+                dims[0] = -1;
             }
         }
 
-        MPI.COMM_WORLD.Barrier(); // Synchronize all processes
-        MPI.COMM_WORLD.Bcast(n, 0, 1, MPI.INT, 0); // Broadcast matrix size to all processes
+        comm.bcast(dims, 0, 3, 0); // Broadcast the shape to all processes
+        if (dims[0] < 0) { // Every process stops if there is nothing to multiply
+            return;
+        }
+        int m = dims[0];
+        int k = dims[1];
+        int n = dims[2];
+
+        // The runtime includes getting the inputs to the ranks, that is where the two modes differ
+        double startTime = comm.wtime();
+
+        Matrix C;
+        String inputs = System.getProperty("strassen.mpi.inputs", "scatter");
+        // -Dstrassen.mpi.inputs=tasks broadcasts the inputs too, and then hands the products out one at a time so
+        // that a rank that stalls or drops out only costs its current product (see FaultTolerant)
+        boolean tasks = "tasks".equalsIgnoreCase(inputs);
+        if (tasks || "broadcast".equalsIgnoreCase(inputs)) {
+            if (p_rank != 0) {
+                A = allocateMatrix(m, k); // Allocate memory for matrix A
+                B = allocateMatrix(k, n); // Allocate memory for matrix B
+            }
+            /* The matrices are already stored as one row-major array each, so the backing arrays are
+            broadcasted as they are and every rank receives straight into its own matrix, without flattening and rebuilding.
+            The data goes in chunks(chunks are segments of the array that are broadcasted individually
+             to manage memory usage and network bandwidth effectively)*/
+            int chunkSize = 1000000; // Chunk size for broadcasting
+            for (Matrix X : new Matrix[]{A, B}) {
+                for (int i = 0; i < X.data.length; i += chunkSize) {
+                    comm.bcast(X.data, i, Math.min(chunkSize, X.data.length - i), 0);
+                }
+            }
+            C = tasks ? FaultTolerant.multiply(A, B, comm) : multiply(A, B, comm);
+        } else {
+            // Default, every rank only gets the operand sums of its own products (-Dstrassen.mpi.inputs=broadcast
+            // sends all of A and B to every rank instead)
+            C = multiplyScattered(A, B, comm, m, k, n);
+        }
 
-        int[][] A = allocateMatrix(n[0]); // Allocate memory for matrix A
-        int[][] B = allocateMatrix(n[0]); // Allocate memory for matrix B
+        double endTime = comm.wtime();
 
-        if (p_rank == 0) { // Process 0 creates and prints matrices
-            A = createMatrix(n[0]);
-            System.out.println("Matrix A: ");
-            printMatrix(A, A.length, A.length);
-            B = createMatrix(n[0]);
-            System.out.println("Matrix B: ");
-            printMatrix(B, B.length, B.length);
-        }
+        double total_time = (endTime - startTime) * 1000;
 
-        /* The Aprim and Bprim arrays are allocated with a size of n[0] * n[0], where n[0] is the dimension of the NxN matrix.
-        This ensures that the one-dimensional arrays have enough space to hold all elements of the two-dimensional matrices.*/
-        int[] Aprim = new int[n[0] * n[0]]; // Flattened matrix A
-        int[] Bprim = new int[n[0] * n[0]]; // Flattened matrix B
-        if (p_rank == 0) { // Process 0 flattens the matrices
-            Aprim = Distributive.StraightenMatrix(A);
-            Bprim = Distributive.StraightenMatrix(B);
+        if (p_rank == 0) { // Process 0 prints or writes the result and the runtime
+            if (output == null) {
+                System.out.println("Result Matrix: ");
+                printMatrix(C, C.rows, C.cols);
+            } else {
+                try {
+                    MatrixFile.output(output, C);
+                } catch (IOException e) {
+                    System.out.println("Cannot write the result: " + e.getMessage());
+                }
+            }
+            System.out.println("Distributive runtime: " + total_time + "ms");
         }
+    }
 
-        /* Broadcast the data in chunks(chunks are segments of the flattened matrix that are broadcasted individually
-         to manage memory usage and network bandwidth effectively)*/
-        int chunkSize = 1000000; // Chunk size for broadcasting
-        for (int i = 0; i < n[0] * n[0]; i += chunkSize) {
-            int size = Math.min(chunkSize, n[0] * n[0] - i);
-            MPI.COMM_WORLD.Bcast(Aprim, i, size, MPI.INT, 0);
-            MPI.COMM_WORLD.Bcast(Bprim, i, size, MPI.INT, 0);
-        }
+    // Allocate memory for a square matrix of size n
+    public static Matrix allocateMatrix(int n) {
+        return new Matrix(n);
+    }
 
-        // Convert flattened matrices back to 2D matrices
-        A = Distributive.StraightMatrixTo2D(Aprim, n[0]);
-        B = Distributive.StraightMatrixTo2D(Bprim, n[0]);
+    // Allocate memory for a rows x cols matrix
+    public static Matrix allocateMatrix(int rows, int cols) {
+        return new Matrix(rows, cols);
+    }
 
-        double startTime = MPI.Wtime();
+    public static Matrix createMatrix(int n) {
+        return Matrix.random(n, n, 10);
+    }
 
-        multiply(A, B, p_rank, n[0]);
+    // Base case multiplication, done by the kernel selected in Kernels
+    public static Matrix seqMM(Matrix a, Matrix b) {
+        Matrix res = new Matrix(a.rows, b.cols);
+        Kernels.multiply(a.data, a.offset, a.stride, b.data, b.offset, b.stride, res.data, 0, res.stride,
+                a.rows, a.cols, b.cols);
+        return res;
+    }
 
-        double endTime = MPI.Wtime();
+    // Returns the P/2 sized (rounded down) submatrix at (iB, jB) as a view of P
+    public static Matrix split(Matrix P, int iB, int jB) {
+        return P.view(iB, jB, P.rows / 2, P.cols / 2);
+    }
 
-        double total_time = (endTime - startTime) * 1000;
+    public static void printMatrix(Matrix A, int row, int col) {
+        MatrixFile.print(A, row, col, System.out);
+    }
 
-        if (p_rank == 0) { // Process 0 prints the runtime
-            System.out.println("Distributive runtime: " + total_time + "ms");
+  public static void join(Matrix C, Matrix P, int iB, int jB) {
+        Matrix target = P.view(iB, jB, C.rows, C.cols);
+        if (target.data != C.data || target.offset != C.offset) {
+            target.copyFrom(C);
         }
+    }
 
-        MPI.Finalize();
+    public static Matrix subtract(Matrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.subtract(A, B, C);
+        return C;
     }
 
-    // Allocate memory for a square matrix of size n
-    public static int[][] allocateMatrix(int n) {
-        return new int[n][n];
+    public static Matrix add(Matrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.add(A, B, C);
+        return C;
     }
 
-    // Flatten a 2D matrix into a 1D array
-    public static int[] StraightenMatrix(int[][] matrix) {
-        int[] straightMatrix = new int[matrix.length * matrix.length];
-        for (int i = 0; i < matrix.length; i++) {
-            for (int j = 0; j < matrix.length; j++) {
-                straightMatrix[i * matrix.length + j] = matrix[i][j];
-            }
+    // Sequential matrix multiplication
+    public static Matrix multiply(Matrix A, Matrix B) {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        if (Kernels.isBaseCase(m, k, n, Crossover.threshold())) {
+            return seqMM(A, B);
         }
-        return straightMatrix;
+        Matrix C = new Matrix(m, n);
+        // For odd sizes the quadrants leave out the last row/column, Kernels.peel adds that part at the end
+        Matrix A11 = split(A, 0, 0);
+        Matrix A12 = split(A, 0, k / 2);
+        Matrix A21 = split(A, m / 2, 0);
+        Matrix A22 = split(A, m / 2, k / 2);
+        Matrix B11 = split(B, 0, 0);
+        Matrix B12 = split(B, 0, n / 2);
+        Matrix B21 = split(B, k / 2, 0);
+        Matrix B22 = split(B, k / 2, n / 2);
+
+        if (Variant.selected() == Variant.WINOGRAD) {
+            // Strassen-Winograd, the partial sums are shared between the products and the quadrants of C
+            Matrix S1 = add(A21, A22);
+            Matrix S2 = subtract(S1, A11);
+            Matrix T1 = subtract(B12, B11);
+            Matrix T2 = subtract(B22, T1);
+            Matrix P1 = multiply(A11, B11);
+            Matrix P2 = multiply(A12, B21);
+            Matrix P3 = multiply(subtract(A12, S2), B22);
+            Matrix P4 = multiply(A22, subtract(T2, B21));
+            Matrix P5 = multiply(S1, T1);
+            Matrix P6 = multiply(S2, T2);
+            Matrix P7 = multiply(subtract(A11, A21), subtract(B22, B12));
+            combineWinograd(P1, P2, P3, P4, P5, P6, P7, C, m / 2, n / 2);
+            Kernels.peel(A, B, C);
+            return C;
+        }
+
+        Matrix M1 = multiply(add(A11, A22), add(B11, B22));
+        Matrix M2 = multiply(add(A21, A22), B11);
+        Matrix M3 = multiply(A11, subtract(B12, B22));
+        Matrix M4 = multiply(A22, subtract(B21, B11));
+        Matrix M5 = multiply(add(A11, A12), B22);
+        Matrix M6 = multiply(subtract(A21, A11), add(B11, B12));
+        Matrix M7 = multiply(subtract(A12, A22), add(B21, B22));
+
+        Matrix.add(subtract(add(M1, M4), M5), M7, split(C, 0, 0));
+        Matrix.add(M3, M5, split(C, 0, n / 2));
+        Matrix.add(M2, M4, split(C, m / 2, 0));
+        Matrix.add(subtract(add(M1, M3), M2), M6, split(C, m / 2, n / 2));
+        Kernels.peel(A, B, C);
+        return C;
     }
 
-    // Convert a 1D array back to a 2D matrix
-    public static int[][] StraightMatrixTo2D(int[] matrix, int n) {
-        int[][] twoDMatrix = new int[n][n];
-        for (int i = 0; i < matrix.length; i++) {
-            twoDMatrix[i / n][i % n] = matrix[i];
-        }
-        return twoDMatrix;
+    // Quadrants of C from the seven Strassen-Winograd products, U2 = P1 + P6 and U3 = U2 + P7 are shared
+    static void combineWinograd(Matrix P1, Matrix P2, Matrix P3, Matrix P4, Matrix P5, Matrix P6, Matrix P7,
+                                Matrix C, int iB, int jB) {
+        Matrix U2 = add(P1, P6);
+        Matrix U3 = add(U2, P7);
+        Matrix.add(P1, P2, split(C, 0, 0));
+        Matrix.add(add(U2, P5), P3, split(C, 0, jB));
+        Matrix.subtract(U3, P4, split(C, iB, 0));
+        Matrix.add(U3, P5, split(C, iB, jB));
     }
 
-    public static int[][] createMatrix(int n) {
-        int[][] res = new int[n][n];
-        Random rand = new Random();
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                res[i][j] = rand.nextInt(10);
+    // Results travel in chunks of about this many elements, so rank 0 adds the first rows of a product while the
+    // rest is still on the wire
+    static final int CHUNK_ELEMENTS = 1 << 18;
+    // Most chunk receives rank 0 keeps posted at once
+    static final int RECEIVE_WINDOW = 16;
+
+    /* Parallel matrix multiplication over a communicator (MPI or local), for any number of processes. The product is unrolled into the
+       7^L independent block products of L Strassen levels (see Decomposition), with L picked so that the products
+       spread evenly over the processes, and they are dealt out over all ranks, rank 0 included. Every rank has A
+       and B, forms the operands of its own products and sends each result to rank 0 without blocking, in
+       chunks tagged with the product and chunk number. Rank 0 adds every chunk into C as soon as it arrives,
+       in between its own products, and finally adds the fringe that odd sizes leave out. Nothing waits for the
+       slowest rank except the last chunks. Returns C on rank 0 and null on the other ranks */
+    public static Matrix multiply(Matrix A, Matrix B, Communicator comm) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        int threshold = Crossover.threshold();
+        int levels = Decomposition.levels(size, m, k, n, threshold);
+        if (levels == 0) {
+            // A single process, or a product too small to be worth splitting
+            return rank == 0 ? local(A, B) : null;
+        }
+        Decomposition plan = new Decomposition(Variant.selected(), levels, m, k, n);
+
+        // Every product has the same size, so one set of buffers and one workspace serve all of them
+        Matrix S = allocateMatrix(plan.bm, plan.bk);
+        Matrix T = allocateMatrix(plan.bk, plan.bn);
+        ForkJoinPool pool = rankPool();
+        // The fork/join engine brings its own workspaces
+        Workspace ws = pool == null ? new Workspace(plan.bm, plan.bk, plan.bn, threshold) : null;
+        try {
+            if (rank == 0) {
+                Collector results = new Collector(comm, plan, allocateMatrix(m, n), size);
+                Matrix P = allocateMatrix(plan.bm, plan.bn);
+                for (int j = 0; j < plan.count; j++) {
+                    if (Decomposition.owner(j, size) == 0) {
+                        product(plan.left(j, A, S), plan.right(j, B, T), P, ws, plan.variant, pool);
+                        plan.accumulate(j, P, results.C);
+                        results.poll();
+                    }
+                }
+                return results.finish(A, B);
+            }
+
+            Sender sender = new Sender(comm, plan);
+            for (int j = 0; j < plan.count; j++) {
+                if (Decomposition.owner(j, size) == rank) {
+                    product(plan.left(j, A, S), plan.right(j, B, T), sender.next(), ws, plan.variant, pool);
+                    sender.send(j);
+                }
+            }
+            sender.finish();
+            return null;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
             }
         }
-        return res;
     }
 
-    public static int[][] seqMM(int[][] a, int[][] b) {
-        int n = a.length;
-        int[][] res = allocateMatrix(n);
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                res[i][j] = 0;
-                for (int k = 0; k < n; k++) {
-                    res[i][j] += a[i][k] * b[k][j];
+    /* Same as above, but only rank 0 has A and B (the other ranks pass null and the shape). Instead of every rank
+       getting all of A and B, rank 0 forms the operand sums of every product and sends each pair only to the
+       rank that computes it, for example A11 + A22 and B11 + B22 to the rank of M1. With one level a rank
+       receives two quarter blocks per product instead of A and B, and holds two pairs at a time: the one it
+       multiplies and the next one, whose receive it posts as soon as the product before is done. The operands go
+       out without blocking from two alternating buffers, so rank 0 forms the next pair while the last one is
+       sent, and while it waits for a buffer it does its own products and adds the results that come in. The
+       levels are capped (see scatterLevels) so no rank receives more than A and B */
+    public static Matrix multiplyScattered(Matrix A, Matrix B, Communicator comm, int m, int k, int n) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int threshold = Crossover.threshold();
+        int levels = scatterLevels(size, m, k, n, threshold);
+        if (levels == 0) {
+            return rank == 0 ? local(A, B) : null;
+        }
+        Decomposition plan = new Decomposition(Variant.selected(), levels, m, k, n);
+        int sSize = plan.bm * plan.bk;
+        int tSize = plan.bk * plan.bn;
+        ForkJoinPool pool = rankPool();
+        // The fork/join engine brings its own workspaces
+        Workspace ws = pool == null ? new Workspace(plan.bm, plan.bk, plan.bn, threshold) : null;
+        try {
+            if (rank == 0) {
+                Matrix[] S = {allocateMatrix(plan.bm, plan.bk), allocateMatrix(plan.bm, plan.bk)};
+                Matrix[] T = {allocateMatrix(plan.bk, plan.bn), allocateMatrix(plan.bk, plan.bn)};
+                Communicator.Request[][] sends = new Communicator.Request[2][];
+                Collector results = new Collector(comm, plan, allocateMatrix(m, n), size);
+                // Operands and product of the products of rank 0
+                Matrix S0 = allocateMatrix(plan.bm, plan.bk);
+                Matrix T0 = allocateMatrix(plan.bk, plan.bn);
+                Matrix P = allocateMatrix(plan.bm, plan.bn);
+                int own = next(plan, size, 0, -1);
+                int sent = 0;
+                for (int j = 0; j < plan.count; j++) {
+                    int owner = Decomposition.owner(j, size);
+                    if (owner != 0) {
+                        int b = sent++ & 1;
+                        // The workers take a pair once they are done with the one before, until then rank 0 does
+                        // its own products
+                        while (sends[b] != null && !completed(sends[b]) && own < plan.count) {
+                            product(plan.left(own, A, S0), plan.right(own, B, T0), P, ws, plan.variant, pool);
+                            plan.accumulate(own, P, results.C);
+                            results.poll();
+                            own = next(plan, size, 0, own);
+                        }
+                        if (sends[b] != null) {
+                            results.await(sends[b]);
+                        }
+                        // A single block comes back as a view of A or B, it has to be made contiguous to be sent
+                        Matrix left = compact(plan.left(j, A, S[b]), S[b]);
+                        Matrix right = compact(plan.right(j, B, T[b]), T[b]);
+                        sends[b] = new Communicator.Request[]{
+                                comm.isend(left.data, 0, sSize, owner, j),
+                                comm.isend(right.data, 0, tSize, owner, j)};
+                    }
+                }
+                for (; own < plan.count; own = next(plan, size, 0, own)) {
+                    product(plan.left(own, A, S0), plan.right(own, B, T0), P, ws, plan.variant, pool);
+                    plan.accumulate(own, P, results.C);
+                    results.poll();
+                }
+                for (Communicator.Request[] pending : sends) {
+                    if (pending != null) {
+                        results.await(pending);
+                    }
+                }
+                return results.finish(A, B);
+            }
+
+            // Two operand pairs, the next one arrives while the current one is multiplied
+            int share = plan.share(rank, size);
+            int window = Math.min(2, share);
+            int[][] operands = new int[window][sSize + tSize];
+            Communicator.Request[][] receives = new Communicator.Request[window][];
+            int posted = -1;
+            for (int t = 0; t < window; t++) {
+                posted = next(plan, size, rank, posted);
+                receives[t] = receive(comm, operands[t], sSize, tSize, posted);
+            }
+            Sender sender = new Sender(comm, plan);
+            for (int j = next(plan, size, rank, -1), t = 0; j < plan.count; j = next(plan, size, rank, j), t++) {
+                int slot = t % window;
+                comm.waitAll(receives[slot]);
+                Matrix S = new Matrix(operands[slot], 0, plan.bk, plan.bm, plan.bk);
+                Matrix T = new Matrix(operands[slot], sSize, plan.bn, plan.bk, plan.bn);
+                product(S, T, sender.next(), ws, plan.variant, pool);
+                sender.send(j);
+                posted = next(plan, size, rank, posted);
+                if (posted < plan.count) {
+                    receives[slot] = receive(comm, operands[slot], sSize, tSize, posted);
                 }
             }
+            sender.finish();
+            return null;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
-        return res;
     }
 
-    public static void split(int[][] P, int[][] C, int iB, int jB) {
-        int n = C.length;
-        for (int i = iB; i < n + iB; i++) {
-            for (int j = jB; j < n + jB; j++) {
-                C[i - iB][j - jB] = P[i][j];
+    /* Levels for the scattered mode: the ones of Decomposition.levels, but no more than let the busiest worker
+       receive at most the elements of A and B. Every level multiplies the operand data by 7/4, so past that point
+       broadcasting A and B would move less. A forced -Dstrassen.mpi.levels is taken as it is */
+    static int scatterLevels(int size, int m, int k, int n, int threshold) {
+        int levels = Decomposition.levels(size, m, k, n, threshold);
+        if (Integer.getInteger("strassen.mpi.levels") != null) {
+            return levels;
+        }
+        long whole = (long) m * k + (long) k * n;
+        while (levels > 1) {
+            long count = 1;
+            for (int i = 0; i < levels; i++) {
+                count *= 7;
+            }
+            long busiest = (count + size - 1) / size;
+            long pair = (long) (m >> levels) * (k >> levels) + (long) (k >> levels) * (n >> levels);
+            if (busiest * pair <= whole) {
+                break;
             }
+            levels--;
         }
+        return levels;
+    }
+
+    // The first product after j that rank computes, plan.count if there is none
+    private static int next(Decomposition plan, int size, int rank, int j) {
+        do {
+            j++;
+        } while (j < plan.count && Decomposition.owner(j, size) != rank);
+        return j;
+    }
+
+    // Posts the receives of the operands of product j into buf, S first and T behind it
+    private static Communicator.Request[] receive(Communicator comm, int[] buf, int sSize, int tSize, int j) {
+        return new Communicator.Request[]{comm.irecv(buf, 0, sSize, 0, j), comm.irecv(buf, sSize, tSize, 0, j)};
     }
 
-    public static void printMatrix(int[][] A, int row, int col) {
-        for (int i = 0; i < row; i++) {
-            for (int j = 0; j < col; j++) {
-                System.out.print(" " + A[i][j]);
+    // True if all the requests have completed
+    private static boolean completed(Communicator.Request[] requests) {
+        for (Communicator.Request request : requests) {
+            if (request.test() == null) {
+                return false;
             }
-            System.out.println();
         }
-        System.out.println();
+        return true;
     }
 
-  public static void join(int[][] C, int[][] P, int iB, int jB) {
-        for (int i = iB; i < C.length + iB; i++) {
-            for (int j = jB; j < C.length + jB; j++) {
-                P[i][j] = C[i - iB][j - jB];
-            }
+    /* Threads every rank uses for its own products, -Dstrassen.mpi.threads (default 1). With one rank per node set
+       it to the number of cores, the products of a rank then run on the fork/join engine and the speedup of the
+       node multiplies with the one of the ranks. Only the main thread of a rank calls MPI, so MPI needs no
+       thread support beyond funneled */
+    static int threads() {
+        return Math.max(1, Integer.getInteger("strassen.mpi.threads", 1));
+    }
+
+    // The pool for the products of this rank, or null when it runs them on its own thread
+    static ForkJoinPool rankPool() {
+        int threads = threads();
+        return threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    // One product of a rank, P = S * T, on the pool if there is one
+    static void product(Matrix S, Matrix T, Matrix P, Workspace ws, Variant variant, ForkJoinPool pool) {
+        if (pool == null) {
+            Sequential.multiply(S, T, P, ws, variant);
+        } else {
+            Parallel.multiply(S, T, P, pool, variant);
         }
     }
 
-    public static int[][] subtract(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] C = allocateMatrix(n);
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                C[i][j] = A[i][j] - B[i][j];
-            }
+    // The whole product on rank 0, when it is not worth distributing
+    static Matrix local(Matrix A, Matrix B) {
+        ForkJoinPool pool = rankPool();
+        if (pool == null) {
+            return multiply(A, B);
+        }
+        try {
+            return Parallel.multiply(A, B, pool);
+        } finally {
+            pool.shutdown();
         }
-        return C;
     }
 
-    public static int[][] add(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] C = allocateMatrix(n);
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                C[i][j] = A[i][j] + B[i][j];
-            }
+    // X itself if its elements are contiguous, otherwise a copy of it in scratch
+    private static Matrix compact(Matrix X, Matrix scratch) {
+        if (X.isCompact()) {
+            return X;
         }
-        return C;
+        scratch.copyFrom(X);
+        return scratch;
     }
 
-    // Sequential matrix multiplication
-    public static int[][] multiply(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] C = new int[n][n];
-        if (n <= 32) {
-            return seqMM(A, B);
-        } else {
-            int[][] A11 = new int[n / 2][n / 2];
-            int[][] A12 = new int[n / 2][n / 2];
-            int[][] A21 = new int[n / 2][n / 2];
-            int[][] A22 = new int[n / 2][n / 2];
-            int[][] B11 = new int[n / 2][n / 2];
-            int[][] B12 = new int[n / 2][n / 2];
-            int[][] B21 = new int[n / 2][n / 2];
-            int[][] B22 = new int[n / 2][n / 2];
-
-            split(A, A11, 0, 0);
-            split(A, A12, 0, n / 2);
-            split(A, A21, n / 2, 0);
-            split(A, A22, n / 2, n / 2);
-            split(B, B11, 0, 0);
-            split(B, B12, 0, n / 2);
-            split(B, B21, n / 2, 0);
-            split(B, B22, n / 2, n / 2);
-
-            int[][] M1 = multiply(add(A11, A22), add(B11, B22));
-            int[][] M2 = multiply(add(A21, A22), B11);
-            int[][] M3 = multiply(A11, subtract(B12, B22));
-            int[][] M4 = multiply(A22, subtract(B21, B11));
-            int[][] M5 = multiply(add(A11, A12), B22);
-            int[][] M6 = multiply(subtract(A21, A11), add(B11, B12));
-            int[][] M7 = multiply(subtract(A12, A22), add(B21, B22));
-
-            int[][] C11 = add(subtract(add(M1, M4), M5), M7);
-            int[][] C12 = add(M3, M5);
-            int[][] C21 = add(M2, M4);
-            int[][] C22 = add(subtract(add(M1, M3), M2), M6);
-
-            join(C11, C, 0, 0);
-            join(C12, C, 0, n / 2);
-            join(C21, C, n / 2, 0);
-            join(C22, C, n / 2, n / 2);
+    // Rows per result chunk. The tag of a chunk is product * chunks + chunk, so the chunks are made big enough
+    // to keep the tags below 32767, the smallest upper bound MPI allows
+    static int chunkRows(Decomposition plan) {
+        int rows = Math.max(1, Math.min(plan.bm, CHUNK_ELEMENTS / Math.max(1, plan.bn)));
+        int chunks = (plan.bm + rows - 1) / rows;
+        int maxChunks = Math.max(1, 32767 / plan.count);
+        if (chunks > maxChunks) {
+            rows = (plan.bm + maxChunks - 1) / maxChunks;
         }
-        return C;
+        return rows;
     }
 
-    // Parallel matrix multiplication using MPI
-    public static void multiply(int[][] A, int[][] B, int rank, int m1) {
-        int n = A.length;
-        int m = m1 / 2;
-
-        int[][] A11 = new int[m][m];
-        int[][] A12 = new int[m][m];
-        int[][] A21 = new int[m][m];
-        int[][] A22 = new int[m][m];
-        int[][] B11 = new int[m][m];
-        int[][] B12 = new int[m][m];
-        int[][] B21 = new int[m][m];
-        int[][] B22 = new int[m][m];
-
-        split(A, A11, 0, 0);
-        split(A, A12, 0, m);
-        split(A, A21, m, 0);
-        split(A, A22, m, m);
-        split(B, B11, 0, 0);
-        split(B, B12, 0, m);
-        split(B, B21, m, 0);
-        split(B, B22, m, m);
-
-        // Allocate memory for the results of the asynchronous computations
-        int[][] s1 = allocateMatrix(m);
-        int[][] s2 = allocateMatrix(m);
-        int[][] s3 = allocateMatrix(m);
-        int[][] s4 = allocateMatrix(m);
-        int[][] s5 = allocateMatrix(m);
-        int[][] s6 = allocateMatrix(m);
-        int[][] s7 = allocateMatrix(m);
-
-        // Process 0 receives results from other processes
-        if (rank == 0) {
-            // Flattened matrices to store the results from other processes
-            int[] a = new int[m * m];
-            int[] a2 = new int[m * m];
-            int[] a3 = new int[m * m];
-            int[] a4 = new int[m * m];
-            int[] a5 = new int[m * m];
-            int[] a6 = new int[m * m];
-            int[] a7 = new int[m * m];
-            // Receive the results from other processes
-            MPI.COMM_WORLD.Recv(a, 0, m * m, MPI.INT, 1, 0);
-            MPI.COMM_WORLD.Recv(a2, 0, m * m, MPI.INT, 2, 0);
-            MPI.COMM_WORLD.Recv(a3, 0, m * m, MPI.INT, 3, 0);
-            MPI.COMM_WORLD.Recv(a4, 0, m * m, MPI.INT, 4, 0);
-            MPI.COMM_WORLD.Recv(a5, 0, m * m, MPI.INT, 5, 0);
-            MPI.COMM_WORLD.Recv(a6, 0, m * m, MPI.INT, 6, 0);
-            MPI.COMM_WORLD.Recv(a7, 0, m * m, MPI.INT, 7, 0);
-            // Convert the flattened matrices back to 2D matrices
-            s1 = Distributive.StraightMatrixTo2D(a, m);
-            s2 = Distributive.StraightMatrixTo2D(a2, m);
-            s3 = Distributive.StraightMatrixTo2D(a3, m);
-            s4 = Distributive.StraightMatrixTo2D(a4, m);
-            s5 = Distributive.StraightMatrixTo2D(a5, m);
-            s6 = Distributive.StraightMatrixTo2D(a6, m);
-            s7 = Distributive.StraightMatrixTo2D(a7, m);
-            // Other processes perform their part of the computation
-        } else if (rank == 1) {
-            // Process 1 computes the first part of the result
-            int[][] M1 = multiply(add(A11, A22), add(B11, B22));
-            s1 = M1;
-            // Flatten the matrix to send it to process 0
-            int[] copyOfMatrix = StraightenMatrix(s1);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 2) {
-            // Process 2 computes the second part of the result
-            int[][] M2 = multiply(add(A21, A22), B11);
-            s2 = M2;
-            int[] copyOfMatrix = StraightenMatrix(s2);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 3) {
-            // Process 3 computes the third part of the result
-            int[][] M3 = multiply(A11, subtract(B12, B22));
-            s3 = M3;
-            int[] copyOfMatrix = StraightenMatrix(s3);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 4) {
-            // Process 4 computes the fourth part of the result
-            int[][] M4 = multiply(A22, subtract(B21, B11));
-            s4 = M4;
-            int[] copyOfMatrix = StraightenMatrix(s4);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 5) {
-            // Process 5 computes the fifth part of the result
-            int[][] M5 = multiply(add(A11, A12), B22);
-            s5 = M5;
-            int[] copyOfMatrix = StraightenMatrix(s5);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 6) {
-            // Process 6 computes the sixth part of the result
-            int[][] M6 = multiply(subtract(A21, A11), add(B11, B12));
-            s6 = M6;
-            int[] copyOfMatrix = StraightenMatrix(s6);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
-        } else if (rank == 7) {
-            // Process 7 computes the last part of the result
-            int[][] M7 = multiply(subtract(A12, A22), add(B21, B22));
-            s7 = M7;
-            int[] copyOfMatrix = StraightenMatrix(s7);
-            MPI.COMM_WORLD.Send(copyOfMatrix, 0, m * m, MPI.INT, 0, 0);
+    /* Worker side of the result transfer. Products are computed into one of two buffers and sent from it in chunks
+       without blocking, the next product goes into the other buffer while the chunks are on the wire. A buffer
+       is only reused once all its sends have completed */
+    static class Sender {
+        private final Matrix[] buffers = new Matrix[2];
+        private final Communicator.Request[][] sends = new Communicator.Request[2][];
+        private final int rows;
+        private final int cols;
+        private final int chunkRows;
+        private final int chunks;
+        private final Communicator comm;
+        private int current = 1;
+
+        Sender(Communicator comm, Decomposition plan) {
+            this.comm = comm;
+            this.rows = plan.bm;
+            this.cols = plan.bn;
+            this.chunkRows = chunkRows(plan);
+            this.chunks = (rows + chunkRows - 1) / chunkRows;
+        }
+
+        // The buffer for the next product, once it is free again
+        Matrix next() {
+            current ^= 1;
+            if (sends[current] != null) {
+                comm.waitAll(sends[current]);
+                sends[current] = null;
+            }
+            if (buffers[current] == null) {
+                buffers[current] = allocateMatrix(rows, cols);
+            }
+            return buffers[current];
+        }
+
+        // Starts sending the product in the current buffer to rank 0
+        void send(int product) {
+            Matrix P = buffers[current];
+            Communicator.Request[] requests = new Communicator.Request[chunks];
+            for (int c = 0; c < chunks; c++) {
+                int r0 = c * chunkRows;
+                int count = Math.min(chunkRows, rows - r0) * cols;
+                requests[c] = comm.isend(P.data, r0 * cols, count, 0, product * chunks + c);
+            }
+            sends[current] = requests;
+        }
+
+        void finish() {
+            for (Communicator.Request[] requests : sends) {
+                if (requests != null) {
+                    comm.waitAll(requests);
+                }
+            }
+        }
+    }
+
+    /* Rank 0 side of the result transfer. Keeps up to RECEIVE_WINDOW chunk receives posted from any rank, and
+       whenever one completes adds that chunk into C right away (the tag says which product and rows it is) and
+       posts the next receive into the same buffer. The order the chunks arrive in does not matter, additions of
+       ints give the same C in any order */
+    static class Collector {
+        final Matrix C;
+        private final Communicator comm;
+        private final Decomposition plan;
+        private final int chunkRows;
+        private final int chunks;
+        private Communicator.Request[] active;
+        private Matrix[] buffers;
+        private int unposted;
+
+        Collector(Communicator comm, Decomposition plan, Matrix C, int size) {
+            this.comm = comm;
+            this.plan = plan;
+            this.C = C;
+            this.chunkRows = chunkRows(plan);
+            this.chunks = (plan.bm + chunkRows - 1) / chunkRows;
+            this.unposted = (plan.count - plan.share(0, size)) * chunks;
+            int window = Math.min(RECEIVE_WINDOW, unposted);
+            this.active = new Communicator.Request[window];
+            this.buffers = new Matrix[window];
+            for (int i = 0; i < window; i++) {
+                buffers[i] = allocateMatrix(chunkRows, plan.bn);
+                post(i);
+            }
+        }
+
+        // Adds whatever has arrived so far, without waiting
+        void poll() {
+            for (int i = 0; i < active.length; i++) {
+                Communicator.Status status = active[i].test();
+                if (status != null) {
+                    i = complete(i, status);
+                }
+            }
+        }
+
+        // Waits for sends of rank 0 to complete, adding the chunks that arrive in the meantime. A worker only
+        // takes its next operands once its results are going out, so rank 0 has to keep receiving them
+        void await(Communicator.Request[] sends) {
+            List<Communicator.Request> open = new ArrayList<>();
+            for (Communicator.Request send : sends) {
+                if (send.test() == null) {
+                    open.add(send);
+                }
+            }
+            while (!open.isEmpty()) {
+                Communicator.Request[] all = Arrays.copyOf(active, active.length + open.size());
+                for (int i = 0; i < open.size(); i++) {
+                    all[active.length + i] = open.get(i);
+                }
+                int i = comm.waitAny(all);
+                if (i < active.length) {
+                    complete(i, active[i].test());
+                } else {
+                    open.remove(i - active.length);
+                }
+            }
+        }
+
+        // Waits for all remaining chunks, then adds the fringe left out by sizes that are not multiples of 2^L
+        Matrix finish(Matrix A, Matrix B) {
+            while (active.length > 0) {
+                int i = comm.waitAny(active);
+                complete(i, active[i].test());
+            }
+            Kernels.peel(A, B, C, plan.bm << plan.levels, plan.bk << plan.levels, plan.bn << plan.levels);
+            return C;
+        }
+
+        // Adds a received chunk and reuses its slot, returns the index to continue polling from
+        private int complete(int i, Communicator.Status status) {
+            int product = status.tag() / chunks;
+            int r0 = (status.tag() % chunks) * chunkRows;
+            Matrix chunk = buffers[i].view(0, 0, Math.min(chunkRows, plan.bm - r0), plan.bn);
+            plan.accumulate(product, chunk, C, r0);
+            if (unposted > 0) {
+                post(i);
+                return i;
+            }
+            // Nothing left to receive into this slot, move the last one into its place
+            int last = active.length - 1;
+            active[i] = active[last];
+            buffers[i] = buffers[last];
+            active = Arrays.copyOf(active, last);
+            buffers = Arrays.copyOf(buffers, last);
+            return i - 1;
         }
 
-        // Synchronize all processes
-        MPI.COMM_WORLD.Barrier();
-
-        // Process 0 combines results from other processes
-        if (rank == 0) {
-            // Combine the results of the asynchronous computations
-            int[][] C = allocateMatrix(n);
-            int[][] C11 = add(subtract(add(s1, s4), s5), s7);
-            int[][] C12 = add(s3, s5);
-            int[][] C21 = add(s2, s4);
-            int[][] C22 = add(subtract(add(s1, s3), s2), s6);
-            // Join the submatrices into the final result matrix
-            join(C11, C, 0, 0);
-            join(C12, C, 0, n / 2);
-            join(C21, C, n / 2, 0);
-            join(C22, C, n / 2, n / 2);
-            System.out.println("Result Matrix: ");
-            printMatrix(C, C.length, C.length);
+        private void post(int i) {
+            active[i] = comm.irecv(buffers[i].data, 0, buffers[i].data.length, Communicator.ANY_SOURCE,
+                    Communicator.ANY_TAG);
+            unposted--;
         }
     }
 }
@@ -0,0 +1,72 @@
+import java.util.Random;
+
+/** Dense row-major double matrix, the double counterpart of Matrix (same layout, views share the backing array)
+    for numeric workloads, see DoubleStrassen. **/
+public class DoubleMatrix {
+
+    public final double[] data;
+    public final int rows;
+    public final int cols;
+    public final int stride;
+    public final int offset;
+
+    public DoubleMatrix(int rows, int cols) {
+        this(new double[rows * cols], 0, cols, rows, cols);
+    }
+
+    public DoubleMatrix(double[] data, int offset, int stride, int rows, int cols) {
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public int index(int i, int j) {
+        return offset + i * stride + j;
+    }
+
+    public double get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, double value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    public DoubleMatrix view(int i, int j, int rows, int cols) {
+        if (i < 0 || j < 0 || i + rows > this.rows || j + cols > this.cols) {
+            throw new IndexOutOfBoundsException("View " + rows + "x" + cols + " at (" + i + ", " + j + ") is outside of "
+                    + this.rows + "x" + this.cols);
+        }
+        return new DoubleMatrix(data, index(i, j), stride, rows, cols);
+    }
+
+    public boolean isCompact() {
+        return offset == 0 && stride == cols && data.length == rows * cols;
+    }
+
+    /** Largest absolute difference to another matrix of the same shape **/
+    public double maxDifference(DoubleMatrix other) {
+        if (other.rows != rows || other.cols != cols) {
+            throw new IllegalArgumentException("Shape mismatch: " + rows + "x" + cols + " vs " + other.rows + "x" + other.cols);
+        }
+        double max = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                max = Math.max(max, Math.abs(get(i, j) - other.get(i, j)));
+            }
+        }
+        return max;
+    }
+
+    /** Random values uniform in [0, 1) **/
+    public static DoubleMatrix random(int rows, int cols) {
+        DoubleMatrix res = new DoubleMatrix(rows, cols);
+        Random rand = new Random();
+        for (int i = 0; i < res.data.length; i++) {
+            res.data[i] = rand.nextDouble();
+        }
+        return res;
+    }
+}
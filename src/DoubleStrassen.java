@@ -0,0 +1,167 @@
+/** Strassen on DoubleMatrix for numeric workloads. It is the same allocation-free recursion as
+    Sequential.multiply(A, B, C, ws), with its own double kernel and a double[] arena, so nothing is boxed.
+    Keep in mind that Strassen is a little less accurate than the plain product in floating point, the error
+    grows with the number of levels (a lower crossover means more levels). **/
+public class DoubleStrassen {
+
+    /** A * B **/
+    public static DoubleMatrix multiply(DoubleMatrix A, DoubleMatrix B) {
+        if (A.cols != B.rows) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x" + B.cols);
+        }
+        int threshold = Crossover.threshold();
+        long size = Workspace.required(A.rows, A.cols, B.cols, threshold);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Workspace does not fit into one array");
+        }
+        DoubleMatrix C = new DoubleMatrix(A.rows, B.cols);
+        multiply(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride,
+                A.rows, A.cols, B.cols, new double[(int) size], 0, threshold);
+        return C;
+    }
+
+    /** The recursion, see Sequential.multiply(int[], ...) for the layout of the arena and the order of the products **/
+    static void multiply(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs,
+                         int m, int k, int n, double[] ws, int wo, int threshold) {
+        if (Kernels.isBaseCase(m, k, n, threshold)) {
+            kernel(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+            return;
+        }
+        int hm = m / 2;
+        int hk = k / 2;
+        int hn = n / 2;
+        int S = wo;
+        int T = S + hm * hk;
+        int P = T + hk * hn;
+        int next = P + hm * hn;
+
+        int a11 = ao, a12 = ao + hk, a21 = ao + hm * as, a22 = ao + hm * as + hk;
+        int b11 = bo, b12 = bo + hn, b21 = bo + hk * bs, b22 = bo + hk * bs + hn;
+        int c11 = co, c12 = co + hn, c21 = co + hm * cs, c22 = co + hm * cs + hn;
+
+        // M1 = (A11 + A22)(B11 + B22) goes to C11 and C22
+        add(a, a11, as, a, a22, as, ws, S, hk, hm, hk);
+        add(b, b11, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, c, c11, cs, hm, hk, hn, ws, next, threshold);
+        for (int i = 0; i < hm; i++) {
+            System.arraycopy(c, c11 + i * cs, c, c22 + i * cs, hn);
+        }
+
+        // M2 = (A21 + A22)B11 goes to C21, C22 -= M2
+        add(a, a21, as, a, a22, as, ws, S, hk, hm, hk);
+        multiply(ws, S, hk, b, b11, bs, c, c21, cs, hm, hk, hn, ws, next, threshold);
+        sub(c, c22, cs, c, c21, cs, c, c22, cs, hm, hn);
+
+        // M3 = A11(B12 - B22) goes to C12, C22 += M3
+        sub(b, b12, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(a, a11, as, ws, T, hn, c, c12, cs, hm, hk, hn, ws, next, threshold);
+        add(c, c22, cs, c, c12, cs, c, c22, cs, hm, hn);
+
+        // M4 = A22(B21 - B11), C11 += M4, C21 += M4
+        sub(b, b21, bs, b, b11, bs, ws, T, hn, hk, hn);
+        multiply(a, a22, as, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold);
+        add(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+        add(c, c21, cs, ws, P, hn, c, c21, cs, hm, hn);
+
+        // M5 = (A11 + A12)B22, C11 -= M5, C12 += M5
+        add(a, a11, as, a, a12, as, ws, S, hk, hm, hk);
+        multiply(ws, S, hk, b, b22, bs, ws, P, hn, hm, hk, hn, ws, next, threshold);
+        sub(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+        add(c, c12, cs, ws, P, hn, c, c12, cs, hm, hn);
+
+        // M6 = (A21 - A11)(B11 + B12), C22 += M6
+        sub(a, a21, as, a, a11, as, ws, S, hk, hm, hk);
+        add(b, b11, bs, b, b12, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold);
+        add(c, c22, cs, ws, P, hn, c, c22, cs, hm, hn);
+
+        // M7 = (A12 - A22)(B21 + B22), C11 += M7
+        sub(a, a12, as, a, a22, as, ws, S, hk, hm, hk);
+        add(b, b21, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold);
+        add(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+
+        if (((m | k | n) & 1) != 0) {
+            peel(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+        }
+    }
+
+    /** i-k-j kernel, the inner loop streams a row of B into a row of C. VectorKernels has a SIMD one **/
+    static void kernel(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs,
+                       int m, int k, int n) {
+        if (Kernels.VECTOR) {
+            VectorKernels.multiply(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+            return;
+        }
+        for (int i = 0; i < m; i++) {
+            int aRow = ao + i * as;
+            int cRow = co + i * cs;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0;
+            }
+            for (int q = 0; q < k; q++) {
+                double aiq = a[aRow + q];
+                int bRow = bo + q * bs;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aiq * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    /** c = a + b **/
+    static void add(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs, int rows, int cols) {
+        if (Kernels.VECTOR) {
+            VectorKernels.add(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            for (int j = 0; j < cols; j++) {
+                c[z + j] = a[x + j] + b[y + j];
+            }
+        }
+    }
+
+    /** c = a - b **/
+    static void sub(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs, int rows, int cols) {
+        if (Kernels.VECTOR) {
+            VectorKernels.sub(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            for (int j = 0; j < cols; j++) {
+                c[z + j] = a[x + j] - b[y + j];
+            }
+        }
+    }
+
+    /** Odd sizes, the same steps as Kernels.peel **/
+    static void peel(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs,
+                     int m, int k, int n) {
+        int m2 = m & ~1;
+        int k2 = k & ~1;
+        int n2 = n & ~1;
+        if (k != k2) {
+            int bRow = bo + k2 * bs;
+            for (int i = 0; i < m2; i++) {
+                double aik = a[ao + i * as + k2];
+                int cRow = co + i * cs;
+                for (int j = 0; j < n2; j++) {
+                    c[cRow + j] += aik * b[bRow + j];
+                }
+            }
+        }
+        if (n != n2) {
+            kernel(a, ao, as, b, bo + n2, bs, c, co + n2, cs, m, k, 1);
+        }
+        if (m != m2) {
+            kernel(a, ao + m2 * as, as, b, bo, bs, c, co + m2 * cs, cs, 1, k, n2);
+        }
+    }
+}
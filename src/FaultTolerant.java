@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/** Fault tolerant mode of Distributive. The 7^L block products of the decomposition are tasks that rank 0 hands
+    out one at a time to whichever rank asks for work. Every rank has A and B, so any rank can compute any product.
+    A busy rank sends a heartbeat every quarter of the timeout (-Dstrassen.ft.timeout in ms, default 30000), and a
+    rank that has not been heard of for longer than that while it holds a task is taken as lost: the task goes back
+    into the queue for the others. Heartbeats only say that a rank is alive, not that its product gets anywhere, so
+    every task also has a deadline: a product that has not been delivered within it is handed out again as well,
+    heartbeats or not. The deadline is -Dstrassen.ft.deadline in ms, by default DEADLINE_FACTOR times the longest
+    product so far but never less than the timeout, and none until a first product is done. If a rank comes back
+    later, or delivers after its deadline, its result is still used as long as nobody else has delivered that
+    product yet. Rank 0 runs tasks itself on a thread of its own whenever no other rank is waiting for one, so the
+    product is completed even if every other rank is lost.
+
+    With -Dstrassen.checkpoint=dir every completed product is also written to disk (see Checkpoint), and a restarted
+    run adds the saved products and only computes the others.
+
+    The products are added into C with int additions, which give the same C in any order, so the result is exactly
+    the one of a run without failures. A rank that stalls or goes silent is always recovered from, one that crashes
+    as long as the transport keeps the others running (the local one does, most MPI runtimes abort the whole job).
+    When the product is done the ranks are told to stop and every request that is still open is withdrawn. **/
+public class FaultTolerant {
+
+    // Message tags, this mode has the communicator to itself
+    static final int CONTROL = 1;
+    static final int ASSIGN = 2;
+    static final int RESULT = 3;
+
+    // Control messages from a rank to rank 0 are {kind, product}
+    static final int READY = 0;
+    static final int HEARTBEAT = 1;
+    static final int DONE = 2;
+
+    // Assignment that ends a rank
+    static final int STOP = -1;
+
+    // Default deadline of a task in multiples of the longest product so far
+    static final int DEADLINE_FACTOR = 4;
+
+    // How long the main thread of a rank sleeps between two looks at its requests
+    private static final long POLL_NANOS = 50_000;
+
+    /** A * B on rank 0 (null on the others) with the timeout and checkpoint directory from the system properties **/
+    public static Matrix multiply(Matrix A, Matrix B, Communicator comm) {
+        String checkpoints = System.getProperty("strassen.checkpoint");
+        return multiply(A, B, comm, Long.getLong("strassen.ft.timeout", 30_000),
+                Long.getLong("strassen.ft.deadline", 0), checkpoints == null ? null : Paths.get(checkpoints));
+    }
+
+    /** A * B on rank 0 (null on the others), every rank passes A and B. checkpoints may be null **/
+    public static Matrix multiply(Matrix A, Matrix B, Communicator comm, long timeoutMillis, Path checkpoints) {
+        return multiply(A, B, comm, timeoutMillis, 0, checkpoints);
+    }
+
+    /** Same as above with a fixed deadline per task in ms, 0 for the one from the longest product so far **/
+    public static Matrix multiply(Matrix A, Matrix B, Communicator comm, long timeoutMillis, long deadlineMillis,
+                                  Path checkpoints) {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        int levels = Decomposition.levels(comm.size(), m, k, n, Crossover.threshold());
+        if (comm.size() == 1 || levels == 0) {
+            return comm.rank() == 0 ? Distributive.local(A, B) : null;
+        }
+        Decomposition plan = new Decomposition(Variant.selected(), levels, m, k, n);
+        if (comm.rank() == 0) {
+            return new Coordinator(A, B, comm, plan, timeoutMillis, deadlineMillis, checkpoints).run();
+        }
+        work(A, B, comm, plan, timeoutMillis);
+        return null;
+    }
+
+    // A rank other than 0: asks for a task, computes it on a thread of its own while the main thread sends
+    // heartbeats, delivers it and asks for the next one, until it is told to stop. Rank 0 may stop it at any of
+    // these points, the sends it has not yet had taken are withdrawn then
+    private static void work(Matrix A, Matrix B, Communicator comm, Decomposition plan, long timeout) {
+        long heartbeat = Math.max(1, timeout / 4);
+        Matrix S = new Matrix(plan.bm, plan.bk);
+        Matrix T = new Matrix(plan.bk, plan.bn);
+        Matrix P = new Matrix(plan.bm, plan.bn);
+        ForkJoinPool pool = Distributive.rankPool();
+        Workspace ws = pool == null ? new Workspace(plan.bm, plan.bk, plan.bn, Crossover.threshold()) : null;
+        ExecutorService compute = Executors.newSingleThreadExecutor(FaultTolerant::daemon);
+        // Control messages and the result, until rank 0 has taken them
+        List<Communicator.Request> outgoing = new ArrayList<>();
+        int[] assignment = new int[1];
+        try {
+            Communicator.Request assigned = comm.irecv(assignment, 0, 1, 0, ASSIGN);
+            control(comm, outgoing, READY, -1);
+            while (true) {
+                assigned.await();
+                int product = assignment[0];
+                if (product == STOP) {
+                    withdraw(outgoing);
+                    return;
+                }
+                assigned = comm.irecv(assignment, 0, 1, 0, ASSIGN);
+                Future<?> task = compute.submit(() -> Distributive.product(plan.left(product, A, S),
+                        plan.right(product, B, T), P, ws, plan.variant, pool));
+                while (!finished(task, heartbeat)) {
+                    // While a task runs the only thing rank 0 can send is STOP, it has the product from someone else
+                    if (assigned.test() != null) {
+                        withdraw(outgoing);
+                        return;
+                    }
+                    control(comm, outgoing, HEARTBEAT, product);
+                }
+                control(comm, outgoing, DONE, product);
+                Communicator.Request sent = comm.isend(P.data, 0, P.data.length, 0, RESULT);
+                outgoing.add(sent);
+                long next = System.nanoTime() + heartbeat * 1_000_000;
+                while (sent.test() == null) {
+                    if (assigned.test() != null) {
+                        withdraw(outgoing);
+                        return;
+                    }
+                    if (System.nanoTime() > next) {
+                        control(comm, outgoing, HEARTBEAT, product);
+                        next = System.nanoTime() + heartbeat * 1_000_000;
+                    }
+                    LockSupport.parkNanos(POLL_NANOS);
+                }
+                control(comm, outgoing, READY, -1);
+            }
+        } finally {
+            compute.shutdownNow();
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Sends a control message to rank 0 without waiting for it, and forgets the ones that have completed
+    private static void control(Communicator comm, List<Communicator.Request> pending, int kind, int product) {
+        pending.removeIf(request -> request.test() != null);
+        pending.add(comm.isend(new int[]{kind, product}, 0, 2, 0, CONTROL));
+    }
+
+    // Withdraws the requests nobody has taken, waits for the ones that are under way
+    private static void withdraw(List<Communicator.Request> requests) {
+        for (Communicator.Request request : requests) {
+            if (request.test() == null) {
+                request.cancel();
+            }
+        }
+        requests.clear();
+    }
+
+    // Waits up to millis for the task, true if it is done
+    private static boolean finished(Future<?> task, long millis) {
+        try {
+            task.get(millis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Product failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing a product", e);
+        }
+    }
+
+    private static Thread daemon(Runnable run) {
+        Thread thread = new Thread(run, "strassen-task");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Rank 0: keeps the queue of products, hands them out, watches the ranks and adds the results into C
+    private static class Coordinator {
+        private final Matrix A;
+        private final Matrix B;
+        private final Matrix C;
+        private final Communicator comm;
+        private final Decomposition plan;
+        private final long timeoutNanos;
+        private final long deadlineNanos;
+        private Checkpoint checkpoint;
+
+        private final boolean[] done;
+        private int remaining;
+        private final Deque<Integer> pending = new ArrayDeque<>();
+
+        // Per rank: its current task (-1 for none), when it got it, when it was last heard of, lost or waiting for
+        // a task
+        private final int[] task;
+        private final long[] started;
+        private final long[] lastSeen;
+        private final boolean[] lost;
+        private final boolean[] waiting;
+
+        private final int[] control = new int[2];
+        private Communicator.Request controlRequest;
+        private final List<Communicator.Request> assignments = new ArrayList<>();
+        private final List<Receipt> receipts = new ArrayList<>();
+        private final Deque<Matrix> buffers = new ArrayDeque<>();
+
+        // The products rank 0 computes itself
+        private final ExecutorService local = Executors.newSingleThreadExecutor(FaultTolerant::daemon);
+        private final ForkJoinPool pool = Distributive.rankPool();
+        private final Workspace ws;
+        private final Matrix S;
+        private final Matrix T;
+        private final Matrix P;
+        private Future<?> localTask;
+        private int localProduct;
+        private long localStarted;
+        private boolean localOverdue;
+
+        // Longest time from handing a product out to its delivery so far, for the default deadline
+        private long slowest;
+
+        // A result on its way from a rank, received into buffer
+        private record Receipt(int rank, int product, Matrix buffer, Communicator.Request request) {
+        }
+
+        Coordinator(Matrix A, Matrix B, Communicator comm, Decomposition plan, long timeoutMillis, long deadlineMillis,
+                    Path checkpoints) {
+            this.A = A;
+            this.B = B;
+            this.C = new Matrix(A.rows, B.cols);
+            this.comm = comm;
+            this.plan = plan;
+            this.timeoutNanos = timeoutMillis * 1_000_000;
+            this.deadlineNanos = deadlineMillis * 1_000_000;
+            this.done = new boolean[plan.count];
+            this.remaining = plan.count;
+            int size = comm.size();
+            this.task = new int[size];
+            this.started = new long[size];
+            this.lastSeen = new long[size];
+            this.lost = new boolean[size];
+            this.waiting = new boolean[size];
+            java.util.Arrays.fill(task, -1);
+            this.ws = pool == null ? new Workspace(plan.bm, plan.bk, plan.bn, Crossover.threshold()) : null;
+            this.S = new Matrix(plan.bm, plan.bk);
+            this.T = new Matrix(plan.bk, plan.bn);
+            this.P = new Matrix(plan.bm, plan.bn);
+            if (checkpoints != null) {
+                try {
+                    checkpoint = new Checkpoint(checkpoints, A, B, plan);
+                } catch (IOException e) {
+                    System.err.println("Checkpoints disabled, cannot use " + checkpoints + ": " + e.getMessage());
+                }
+            }
+        }
+
+        Matrix run() {
+            try {
+                for (int j = 0; j < plan.count; j++) {
+                    if (restore(j)) {
+                        complete(j, P, false);
+                    } else {
+                        pending.add(j);
+                    }
+                }
+                controlRequest = comm.irecv(control, 0, 2, Communicator.ANY_SOURCE, CONTROL);
+                while (remaining > 0) {
+                    boolean progress = pollControl();
+                    progress |= pollResults();
+                    progress |= pollLocal();
+                    checkTimeouts();
+                    dispatch();
+                    if (!progress) {
+                        LockSupport.parkNanos(POLL_NANOS);
+                    }
+                }
+                stop();
+            } finally {
+                local.shutdownNow();
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+            Kernels.peel(A, B, C, plan.bm << plan.levels, plan.bk << plan.levels, plan.bn << plan.levels);
+            return C;
+        }
+
+        private boolean restore(int product) {
+            if (checkpoint == null) {
+                return false;
+            }
+            try {
+                return checkpoint.load(product, P);
+            } catch (IOException e) {
+                System.err.println("Cannot read the checkpoint of product " + product + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        private boolean pollControl() {
+            boolean progress = false;
+            Communicator.Status status;
+            while ((status = controlRequest.test()) != null) {
+                int rank = status.source();
+                int kind = control[0];
+                int product = control[1];
+                controlRequest = comm.irecv(control, 0, 2, Communicator.ANY_SOURCE, CONTROL);
+                lastSeen[rank] = System.nanoTime();
+                if (lost[rank]) {
+                    System.err.println("Rank " + rank + " is back");
+                    lost[rank] = false;
+                }
+                if (kind == READY) {
+                    task[rank] = -1;
+                    waiting[rank] = true;
+                } else if (kind == DONE) {
+                    if (task[rank] == product) {
+                        slowest = Math.max(slowest, System.nanoTime() - started[rank]);
+                    }
+                    Matrix buffer = buffers.isEmpty() ? new Matrix(plan.bm, plan.bn) : buffers.poll();
+                    receipts.add(new Receipt(rank, product, buffer,
+                            comm.irecv(buffer.data, 0, buffer.data.length, rank, RESULT)));
+                }
+                progress = true;
+            }
+            return progress;
+        }
+
+        private boolean pollResults() {
+            boolean progress = false;
+            for (Iterator<Receipt> it = receipts.iterator(); it.hasNext(); ) {
+                Receipt receipt = it.next();
+                if (receipt.request().test() != null) {
+                    it.remove();
+                    if (!done[receipt.product()]) {
+                        complete(receipt.product(), receipt.buffer(), true);
+                    }
+                    buffers.add(receipt.buffer());
+                    progress = true;
+                }
+            }
+            return progress;
+        }
+
+        private boolean pollLocal() {
+            if (localTask == null || !localTask.isDone()) {
+                return false;
+            }
+            try {
+                localTask.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Product " + localProduct + " failed on rank 0", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            localTask = null;
+            slowest = Math.max(slowest, System.nanoTime() - localStarted);
+            if (!done[localProduct]) {
+                complete(localProduct, P, true);
+            }
+            return true;
+        }
+
+        private void complete(int product, Matrix result, boolean save) {
+            plan.accumulate(product, result, C);
+            done[product] = true;
+            remaining--;
+            if (save && checkpoint != null) {
+                try {
+                    checkpoint.store(product, result);
+                } catch (IOException e) {
+                    System.err.println("Cannot checkpoint product " + product + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /* A rank that holds a task and has been silent for longer than the timeout is lost, its task is queued
+           again. So is a task that is past its deadline, the rank keeps it and is not given another one until it
+           asks, a stalled rank never does. The task of rank 0 is only queued for the others, its thread is busy */
+        private void checkTimeouts() {
+            long now = System.nanoTime();
+            long deadline = deadline();
+            for (int rank = 1; rank < task.length; rank++) {
+                if (lost[rank] || task[rank] < 0) {
+                    continue;
+                }
+                int product = task[rank];
+                if (now - lastSeen[rank] > timeoutNanos) {
+                    lost[rank] = true;
+                    task[rank] = -1;
+                    requeue(product);
+                    System.err.println("Rank " + rank + " timed out, product " + product + " is handed out again");
+                } else if (deadline > 0 && now - started[rank] > deadline) {
+                    task[rank] = -1;
+                    requeue(product);
+                    System.err.println("Rank " + rank + " is past the deadline of product " + product
+                            + ", it is handed out again");
+                }
+            }
+            if (localTask != null && !localOverdue && deadline > 0 && now - localStarted > deadline) {
+                localOverdue = true;
+                requeue(localProduct);
+                System.err.println("Rank 0 is past the deadline of product " + localProduct
+                        + ", it is handed out again");
+            }
+        }
+
+        // Deadline of a task in ns, 0 for none yet
+        private long deadline() {
+            if (deadlineNanos > 0) {
+                return deadlineNanos;
+            }
+            return slowest == 0 ? 0 : Math.max(timeoutNanos, DEADLINE_FACTOR * slowest);
+        }
+
+        private void requeue(int product) {
+            if (!done[product] && !pending.contains(product)) {
+                pending.addFirst(product);
+            }
+        }
+
+        // Queued products go to the ranks waiting for one, rank 0 takes one itself if nobody is waiting
+        private void dispatch() {
+            assignments.removeIf(request -> request.test() != null);
+            for (int rank = 1; rank < task.length && !pending.isEmpty(); rank++) {
+                if (waiting[rank] && !lost[rank]) {
+                    int product = next();
+                    if (product < 0) {
+                        return;
+                    }
+                    waiting[rank] = false;
+                    task[rank] = product;
+                    started[rank] = System.nanoTime();
+                    lastSeen[rank] = started[rank];
+                    assignments.add(comm.isend(new int[]{product}, 0, 1, rank, ASSIGN));
+                }
+            }
+            if (localTask == null && !pending.isEmpty()) {
+                int product = next();
+                if (product >= 0) {
+                    localProduct = product;
+                    localStarted = System.nanoTime();
+                    localOverdue = false;
+                    localTask = local.submit(() -> Distributive.product(plan.left(product, A, S),
+                            plan.right(product, B, T), P, ws, plan.variant, pool));
+                }
+            }
+        }
+
+        // Next queued product that is not done yet, -1 if there is none
+        private int next() {
+            while (!pending.isEmpty()) {
+                int product = pending.poll();
+                if (!done[product]) {
+                    return product;
+                }
+            }
+            return -1;
+        }
+
+        /* Every other rank is told to stop. Only the ranks that are not lost are waited for, the others may never
+           take the message, it stays posted for when they come back. The receives for control messages and for
+           results nobody needs any more are withdrawn first */
+        private void stop() {
+            controlRequest.cancel();
+            for (Receipt receipt : receipts) {
+                receipt.request().cancel();
+            }
+            receipts.clear();
+            List<Communicator.Request> stops = new ArrayList<>();
+            for (int rank = 1; rank < task.length; rank++) {
+                Communicator.Request request = comm.isend(new int[]{STOP}, 0, 1, rank, ASSIGN);
+                if (!lost[rank]) {
+                    stops.add(request);
+                }
+            }
+            comm.waitAll(stops.toArray(new Communicator.Request[0]));
+        }
+    }
+}
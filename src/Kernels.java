@@ -0,0 +1,376 @@
+/** Base case kernels, the plain multiplications that Strassen falls back to once the blocks are small enough.
+    Most of the arithmetic of a Strassen run happens in here, so the kernel can be chosen:
+    NAIVE is the old i-j-k triple loop that walks B down a column, IKJ streams rows of B and C instead, and BLOCKED
+    packs panels of A and B into contiguous buffers (sized for L1/L2) and runs a 4x4 register-tiled micro-kernel
+    over them. VECTOR is the SIMD kernel of VectorKernels, it needs the JVM to be started with
+    --add-modules jdk.incubator.vector and runs BLOCKED without it. The default is VECTOR when the Vector API is
+    there and BLOCKED otherwise, it can be changed with use() or -Dstrassen.kernel=NAIVE|IKJ|BLOCKED|VECTOR.
+    Run main to compare them on the current machine. **/
+public class Kernels {
+
+    public enum Kernel { NAIVE, IKJ, BLOCKED, VECTOR }
+
+    /** True when the Vector API kernels (VectorKernels) can be used: the module jdk.incubator.vector is loaded
+        and -Dstrassen.vector is not false. The element-wise passes of Matrix and Parallel use them then too **/
+    public static final boolean VECTOR = vectorAvailable();
+
+    private static volatile Kernel selected = parse(System.getProperty("strassen.kernel"),
+            VECTOR ? Kernel.VECTOR : Kernel.BLOCKED);
+
+    // Micro-kernel tile and cache blocking sizes (in elements)
+    static final int MR = 4;
+    static final int NR = 4;
+    static final int MC = 64;
+    static final int KC = 128;
+    static final int NC = 512;
+
+    // Packing buffers, one pair per thread so the kernels can run concurrently without allocating
+    private static final ThreadLocal<int[]> packedA = ThreadLocal.withInitial(() -> new int[MC * KC]);
+    private static final ThreadLocal<int[]> packedB = ThreadLocal.withInitial(() -> new int[KC * NC]);
+
+    public static Kernel selected() {
+        return selected;
+    }
+
+    public static void use(Kernel kernel) {
+        selected = kernel;
+    }
+
+    /** c = a * b where a is m x k and b is k x n, all given as (array, offset, stride) blocks **/
+    public static void multiply(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                                int m, int k, int n) {
+        multiply(selected, a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+    }
+
+    public static void multiply(Kernel kernel, int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                                int m, int k, int n) {
+        long start = Metrics.now();
+        switch (kernel) {
+            case NAIVE:
+                naive(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+                break;
+            case IKJ:
+                ikj(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+                break;
+            case VECTOR:
+                if (VECTOR) {
+                    VectorKernels.multiply(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+                } else {
+                    blocked(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+                }
+                break;
+            default:
+                blocked(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+        }
+        Metrics.record(Metrics.Phase.LEAF, start, Math.max(m, Math.max(k, n)), (long) m * k * n);
+    }
+
+    /** The original triple loop, kept as the reference and for comparison **/
+    static void naive(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int m, int k, int n) {
+        for (int i = 0; i < m; i++) {
+            int aRow = ao + i * as;
+            int cRow = co + i * cs;
+            for (int j = 0; j < n; j++) {
+                int sum = 0;
+                for (int p = 0; p < k; p++) {
+                    sum += a[aRow + p] * b[bo + p * bs + j];
+                }
+                c[cRow + j] = sum;
+            }
+        }
+    }
+
+    /** i-k-j order: the inner loop runs along a row of B and a row of C, so both are read sequentially **/
+    static void ikj(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int m, int k, int n) {
+        for (int i = 0; i < m; i++) {
+            int aRow = ao + i * as;
+            int cRow = co + i * cs;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0;
+            }
+            for (int p = 0; p < k; p++) {
+                int aip = a[aRow + p];
+                int bRow = bo + p * bs;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aip * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    /* Blocked kernel in the usual GotoBLAS layout. A KC x NC panel of B is packed once into NR wide column strips
+       and stays in L2, for every MC x KC block of A (packed into MR high row strips that fit in L1) the micro-kernel
+       walks the strips and keeps a 4x4 tile of C in registers for the whole KC loop. Packing pads the edges with
+       zeros, so the micro-kernel never needs a bounds check and only the write back is clipped. */
+    static void blocked(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int m, int k, int n) {
+        if (k == 0) {
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < n; j++) {
+                    c[co + i * cs + j] = 0;
+                }
+            }
+            return;
+        }
+        int[] ap = packedA.get();
+        int[] bp = packedB.get();
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+                packB(b, bo + pc * bs + jc, bs, kc, nc, bp);
+                for (int ic = 0; ic < m; ic += MC) {
+                    int mc = Math.min(MC, m - ic);
+                    packA(a, ao + ic * as + pc, as, mc, kc, ap);
+                    for (int jr = 0; jr < nc; jr += NR) {
+                        for (int ir = 0; ir < mc; ir += MR) {
+                            microKernel(kc, ap, ir * kc, bp, jr * kc, c, co + (ic + ir) * cs + jc + jr, cs,
+                                    Math.min(MR, mc - ir), Math.min(NR, nc - jr), pc > 0);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Pack an mc x kc block of A into strips of MR rows, element (r, p) of a strip at p * MR + r **/
+    private static void packA(int[] a, int ao, int as, int mc, int kc, int[] ap) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int rows = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                for (int r = 0; r < MR; r++) {
+                    ap[idx++] = r < rows ? a[ao + (ir + r) * as + p] : 0;
+                }
+            }
+        }
+    }
+
+    /** Pack a kc x nc panel of B into strips of NR columns, element (p, j) of a strip at p * NR + j **/
+    private static void packB(int[] b, int bo, int bs, int kc, int nc, int[] bp) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int cols = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                int row = bo + p * bs + jr;
+                for (int j = 0; j < NR; j++) {
+                    bp[idx++] = j < cols ? b[row + j] : 0;
+                }
+            }
+        }
+    }
+
+    /** 4x4 tile of C from one strip of packed A and one of packed B, written (or added when accumulate) to c **/
+    private static void microKernel(int kc, int[] ap, int ai, int[] bp, int bi, int[] c, int ci, int cs,
+                                    int mr, int nr, boolean accumulate) {
+        int c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        int c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        int c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        int c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+        for (int p = 0; p < kc; p++) {
+            int a0 = ap[ai], a1 = ap[ai + 1], a2 = ap[ai + 2], a3 = ap[ai + 3];
+            int b0 = bp[bi], b1 = bp[bi + 1], b2 = bp[bi + 2], b3 = bp[bi + 3];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+            ai += MR;
+            bi += NR;
+        }
+        if (mr == MR && nr == NR) {
+            store(c, ci, c00, c01, c02, c03, NR, accumulate);
+            store(c, ci + cs, c10, c11, c12, c13, NR, accumulate);
+            store(c, ci + 2 * cs, c20, c21, c22, c23, NR, accumulate);
+            store(c, ci + 3 * cs, c30, c31, c32, c33, NR, accumulate);
+            return;
+        }
+        // Edge tile, only the first mr rows and nr columns are inside C
+        store(c, ci, c00, c01, c02, c03, nr, accumulate);
+        if (mr > 1) store(c, ci + cs, c10, c11, c12, c13, nr, accumulate);
+        if (mr > 2) store(c, ci + 2 * cs, c20, c21, c22, c23, nr, accumulate);
+        if (mr > 3) store(c, ci + 3 * cs, c30, c31, c32, c33, nr, accumulate);
+    }
+
+    /** Write the first nr values of one tile row to c, or add them when accumulate **/
+    private static void store(int[] c, int ci, int v0, int v1, int v2, int v3, int nr, boolean accumulate) {
+        if (nr == NR && !accumulate) {
+            c[ci] = v0;
+            c[ci + 1] = v1;
+            c[ci + 2] = v2;
+            c[ci + 3] = v3;
+            return;
+        }
+        if (accumulate) {
+            c[ci] += v0;
+            if (nr > 1) c[ci + 1] += v1;
+            if (nr > 2) c[ci + 2] += v2;
+            if (nr > 3) c[ci + 3] += v3;
+        } else {
+            c[ci] = v0;
+            if (nr > 1) c[ci + 1] = v1;
+            if (nr > 2) c[ci + 2] = v2;
+            if (nr > 3) c[ci + 3] = v3;
+        }
+    }
+
+    /* Dynamic peeling, how Strassen handles odd sizes without padding. A level only splits the even parts
+       m2 x k2 and k2 x n2 of its operands into quadrants, so after the seven products C[0:m2, 0:n2] holds
+       A[0:m2, 0:k2] * B[0:k2, 0:n2]. This finishes the product: it adds the last column of A times the last row
+       of B when k is odd, and computes the last column (n odd) and the last row (m odd) of C directly. That is
+       O(mk + kn + mn) work per level, next to the O(n^2.81) of the products. */
+    public static void peel(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                            int m, int k, int n) {
+        long start = Metrics.now();
+        int m2 = m & ~1;
+        int k2 = k & ~1;
+        int n2 = n & ~1;
+        if (k != k2) {
+            int bRow = bo + k2 * bs;
+            for (int i = 0; i < m2; i++) {
+                int aik = a[ao + i * as + k2];
+                int cRow = co + i * cs;
+                for (int j = 0; j < n2; j++) {
+                    c[cRow + j] += aik * b[bRow + j];
+                }
+            }
+        }
+        if (n != n2) {
+            for (int i = 0; i < m; i++) {
+                int aRow = ao + i * as;
+                int sum = 0;
+                for (int p = 0; p < k; p++) {
+                    sum += a[aRow + p] * b[bo + p * bs + n2];
+                }
+                c[co + i * cs + n2] = sum;
+            }
+        }
+        if (m != m2) {
+            int aRow = ao + m2 * as;
+            int cRow = co + m2 * cs;
+            for (int j = 0; j < n2; j++) {
+                c[cRow + j] = 0;
+            }
+            for (int p = 0; p < k; p++) {
+                int aip = a[aRow + p];
+                int bRow = bo + p * bs;
+                for (int j = 0; j < n2; j++) {
+                    c[cRow + j] += aip * b[bRow + j];
+                }
+            }
+        }
+        Metrics.record(Metrics.Phase.PEEL, start, Math.max(m, Math.max(k, n)), (long) m * k * n - (long) m2 * k2 * n2);
+    }
+
+    /** Completes C = A * B for odd sizes after the even part has been computed, nothing to do for even sizes **/
+    public static void peel(Matrix A, Matrix B, Matrix C) {
+        if (((A.rows | A.cols | B.cols) & 1) != 0) {
+            peel(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride,
+                    A.rows, A.cols, B.cols);
+        }
+    }
+
+    /** Completes C = A * B when its top left m0 x n0 block already holds A[0:m0, 0:k0] * B[0:k0, 0:n0], the
+        same as peel but for a fringe of any width, as left by several Strassen levels at once **/
+    public static void peel(Matrix A, Matrix B, Matrix C, int m0, int k0, int n0) {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        for (int i = 0; i < m0 && k0 < k; i++) {
+            int cRow = C.offset + i * C.stride;
+            for (int p = k0; p < k; p++) {
+                int aip = A.data[A.offset + i * A.stride + p];
+                int bRow = B.offset + p * B.stride;
+                for (int j = 0; j < n0; j++) {
+                    C.data[cRow + j] += aip * B.data[bRow + j];
+                }
+            }
+        }
+        if (n0 < n) {
+            multiply(A.data, A.offset, A.stride, B.data, B.offset + n0, B.stride, C.data, C.offset + n0, C.stride,
+                    m, k, n - n0);
+        }
+        if (m0 < m) {
+            multiply(A.data, A.offset + m0 * A.stride, A.stride, B.data, B.offset, B.stride,
+                    C.data, C.offset + m0 * C.stride, C.stride, m - m0, k, n0);
+        }
+    }
+
+    /** True if m x k times k x n is small enough in some dimension to go straight to the kernel **/
+    public static boolean isBaseCase(int m, int k, int n, int threshold) {
+        return m <= threshold || k <= threshold || n <= threshold;
+    }
+
+    // Only touches VectorKernels when its module is there, loading it without the module would fail
+    private static boolean vectorAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty("strassen.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorKernels.intLanes() > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    static Kernel parse(String name, Kernel fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        try {
+            return Kernel.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown kernel " + name + ", using " + fallback);
+            return fallback;
+        }
+    }
+
+    /** Times every kernel on leaf sized blocks and prints the speedup over the old triple loop **/
+    public static void main(String[] args) {
+        int[] sizes = {16, 32, 64, 128, 256};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("    n  kernel        ns/leaf   speedup");
+        for (int n : sizes) {
+            Matrix A = Matrix.random(n, n, 10);
+            Matrix B = Matrix.random(n, n, 10);
+            Matrix reference = new Matrix(n);
+            naive(A.data, 0, n, B.data, 0, n, reference.data, 0, n, n, n, n);
+            double naiveTime = 0;
+            for (Kernel kernel : Kernel.values()) {
+                Matrix C = new Matrix(n);
+                double time = timeLeaf(kernel, A, B, C);
+                if (!C.contentEquals(reference)) {
+                    throw new IllegalStateException(kernel + " gives a wrong result for n = " + n);
+                }
+                if (kernel == Kernel.NAIVE) {
+                    naiveTime = time;
+                }
+                System.out.printf("%5d  %-8s %12.0f %8.2fx%n", n, kernel, time, naiveTime / time);
+            }
+        }
+    }
+
+    /** Average time of one n x n product in ns, after a warm up of about the same length **/
+    private static double timeLeaf(Kernel kernel, Matrix A, Matrix B, Matrix C) {
+        int n = A.rows;
+        long budget = 200_000_000L;
+        for (int round = 0; round < 2; round++) {
+            int reps = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                multiply(kernel, A.data, 0, n, B.data, 0, n, C.data, 0, n, n, n, n);
+                reps++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < budget);
+            if (round == 1) {
+                return (double) elapsed / reps;
+            }
+        }
+        return 0;
+    }
+}
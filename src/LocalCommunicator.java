@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Consumer;
+
+/** In-JVM transport for Distributive: the ranks are threads and a message is one copy from the array of the
+    sender into the array of the receiver, with no serialization and no intermediate buffer. A send waits for its
+    matching receive (and a receive for its send), whichever comes first is queued, and the one that comes second
+    takes the other off the queue, copies the elements over and completes both. That gives the same
+    results as MPI on one node without an MPI installation, so Distributive can be run, profiled and tested
+    anywhere, and with one rank per core it is a shared-memory engine of its own. Start the ranks with run().
+
+    Every rank has a mailbox of its own: its lock guards the queues of the messages to that rank, only while a
+    pair is matched, and the rank waits on it for its requests to complete. The copy itself runs with no lock
+    held, so transfers between different ranks run side by side. **/
+public class LocalCommunicator implements Communicator {
+
+    // Tag of the messages of bcast, ANY_TAG never matches negative tags
+    private static final int BCAST_TAG = -2;
+
+    private final World world;
+    private final int rank;
+
+    private LocalCommunicator(World world, int rank) {
+        this.world = world;
+        this.rank = rank;
+    }
+
+    /** Runs body on the given number of ranks, each on a thread of its own with its own communicator, and returns
+        when all of them are done. If a rank fails the others are interrupted and the first failure is thrown **/
+    public static void run(int ranks, Consumer<Communicator> body) {
+        if (ranks < 1) {
+            throw new IllegalArgumentException("Need at least one rank, got " + ranks);
+        }
+        World world = new World(ranks);
+        Thread[] threads = new Thread[ranks];
+        Throwable[] failure = new Throwable[1];
+        for (int r = 0; r < ranks; r++) {
+            LocalCommunicator comm = new LocalCommunicator(world, r);
+            threads[r] = new Thread(() -> {
+                try {
+                    body.accept(comm);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                            for (Thread thread : threads) {
+                                if (thread != Thread.currentThread()) {
+                                    thread.interrupt();
+                                }
+                            }
+                        }
+                    }
+                }
+            }, "rank-" + r);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the ranks", e);
+            }
+        }
+        if (failure[0] instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure[0] instanceof Error e) {
+            throw e;
+        }
+        if (failure[0] != null) {
+            throw new IllegalStateException(failure[0]);
+        }
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return world.size;
+    }
+
+    @Override
+    public Request isend(int[] buf, int offset, int count, int dest, int tag) {
+        if (tag < 0) {
+            throw new IllegalArgumentException("Tags must not be negative, got " + tag);
+        }
+        return post(buf, offset, count, dest, tag);
+    }
+
+    @Override
+    public Request irecv(int[] buf, int offset, int count, int source, int tag) {
+        Pending receive = new Pending(source, tag, buf, offset, count, world.boxes[rank]);
+        Pending send = null;
+        Mailbox box = world.boxes[rank];
+        synchronized (box) {
+            for (Iterator<Pending> it = box.sends.iterator(); it.hasNext() && send == null; ) {
+                Pending queued = it.next();
+                if (matches(receive, queued)) {
+                    it.remove();
+                    send = queued;
+                }
+            }
+            if (send == null) {
+                box.receives.add(receive);
+            }
+        }
+        if (send != null) {
+            transfer(send, receive);
+        }
+        return receive;
+    }
+
+    @Override
+    public void bcast(int[] buf, int offset, int count, int root) {
+        if (rank == root) {
+            Request[] sends = new Request[world.size - 1];
+            for (int r = 0, i = 0; r < world.size; r++) {
+                if (r != root) {
+                    sends[i++] = post(buf, offset, count, r, BCAST_TAG);
+                }
+            }
+            waitAll(sends);
+        } else {
+            recv(buf, offset, count, root, BCAST_TAG);
+        }
+    }
+
+    @Override
+    public void barrier() {
+        try {
+            world.barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted in barrier", e);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("Barrier broken by another rank", e);
+        }
+    }
+
+    @Override
+    public int waitAny(Request[] requests) {
+        // The requests are the ones of this rank, they complete under its mailbox lock
+        Mailbox box = world.boxes[rank];
+        synchronized (box) {
+            while (true) {
+                for (int i = 0; i < requests.length; i++) {
+                    if (requests[i].test() != null) {
+                        return i;
+                    }
+                }
+                box.await();
+            }
+        }
+    }
+
+    private Request post(int[] buf, int offset, int count, int dest, int tag) {
+        Pending send = new Pending(rank, tag, buf, offset, count, world.boxes[dest]);
+        Pending receive = null;
+        Mailbox box = world.boxes[dest];
+        synchronized (box) {
+            for (Iterator<Pending> it = box.receives.iterator(); it.hasNext() && receive == null; ) {
+                Pending queued = it.next();
+                if (matches(queued, send)) {
+                    it.remove();
+                    receive = queued;
+                }
+            }
+            if (receive == null) {
+                box.sends.add(send);
+            }
+        }
+        if (receive != null) {
+            transfer(send, receive);
+        }
+        return send;
+    }
+
+    private static boolean matches(Pending receive, Pending send) {
+        return (receive.source == ANY_SOURCE || receive.source == send.source)
+                && (receive.tag == ANY_TAG ? send.tag >= 0 : receive.tag == send.tag);
+    }
+
+    // Copies a matched pair that is off the queues, with no lock held, then completes both
+    private void transfer(Pending send, Pending receive) {
+        if (send.count > receive.count) {
+            throw new IllegalStateException("Message of " + send.count + " elements from rank " + send.source
+                    + " does not fit into a receive of " + receive.count);
+        }
+        System.arraycopy(send.buf, send.offset, receive.buf, receive.offset, send.count);
+        Status status = new Status(send.source, send.tag, send.count);
+        send.complete(status);
+        receive.complete(status);
+    }
+
+    // The mailboxes of the ranks
+    private static class World {
+        final int size;
+        final Mailbox[] boxes;
+        final CyclicBarrier barrier;
+
+        World(int size) {
+            this.size = size;
+            this.barrier = new CyclicBarrier(size);
+            this.boxes = new Mailbox[size];
+            for (int r = 0; r < size; r++) {
+                boxes[r] = new Mailbox();
+            }
+        }
+    }
+
+    // The sends to one rank nobody has received yet and its receives nothing has arrived for yet, its monitor is
+    // the lock of both queues and the one the rank waits on for its requests
+    private static class Mailbox {
+        final List<Pending> sends = new ArrayList<>();
+        final List<Pending> receives = new ArrayList<>();
+
+        // Called with the lock held
+        void await() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a message", e);
+            }
+        }
+    }
+
+    // A send or a receive, source and tag are the filters of a receive and the envelope of a send
+    private class Pending implements Request {
+        final int source;
+        final int tag;
+        final int[] buf;
+        final int offset;
+        final int count;
+        // Mailbox of the rank that posted it, and the one it is queued in until it is matched
+        final Mailbox owner = world.boxes[rank];
+        final Mailbox queue;
+        volatile Status status;
+
+        Pending(int source, int tag, int[] buf, int offset, int count, Mailbox queue) {
+            this.source = source;
+            this.tag = tag;
+            this.buf = buf;
+            this.offset = offset;
+            this.count = count;
+            this.queue = queue;
+        }
+
+        void complete(Status status) {
+            synchronized (owner) {
+                this.status = status;
+                owner.notifyAll();
+            }
+        }
+
+        @Override
+        public Status test() {
+            return status;
+        }
+
+        @Override
+        public Status await() {
+            if (status == null) {
+                synchronized (owner) {
+                    while (status == null) {
+                        owner.await();
+                    }
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public boolean cancel() {
+            synchronized (queue) {
+                if (queue.sends.remove(this) || queue.receives.remove(this)) {
+                    return true;
+                }
+            }
+            // Matched already, the copy finishes on the thread that matched it
+            await();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Random;
+
+/** Dense row-major long matrix, the long counterpart of Matrix (same layout, views share the backing array).
+    Used for results that would overflow int and for arithmetic modulo p, see LongStrassen. **/
+public class LongMatrix {
+
+    public final long[] data;
+    public final int rows;
+    public final int cols;
+    public final int stride;
+    public final int offset;
+
+    public LongMatrix(int rows, int cols) {
+        this(new long[rows * cols], 0, cols, rows, cols);
+    }
+
+    public LongMatrix(long[] data, int offset, int stride, int rows, int cols) {
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public int index(int i, int j) {
+        return offset + i * stride + j;
+    }
+
+    public long get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, long value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    public LongMatrix view(int i, int j, int rows, int cols) {
+        if (i < 0 || j < 0 || i + rows > this.rows || j + cols > this.cols) {
+            throw new IndexOutOfBoundsException("View " + rows + "x" + cols + " at (" + i + ", " + j + ") is outside of "
+                    + this.rows + "x" + this.cols);
+        }
+        return new LongMatrix(data, index(i, j), stride, rows, cols);
+    }
+
+    public boolean isCompact() {
+        return offset == 0 && stride == cols && data.length == rows * cols;
+    }
+
+    public boolean contentEquals(LongMatrix other) {
+        if (other.rows != rows || other.cols != cols) {
+            return false;
+        }
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (get(i, j) != other.get(i, j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Random values in [0, bound) **/
+    public static LongMatrix random(int rows, int cols, long bound) {
+        LongMatrix res = new LongMatrix(rows, cols);
+        Random rand = new Random();
+        for (int i = 0; i < res.data.length; i++) {
+            res.data[i] = Math.floorMod(rand.nextLong(), bound);
+        }
+        return res;
+    }
+
+    /** Widen an int matrix, so it can be multiplied without overflowing **/
+    public static LongMatrix of(Matrix A) {
+        LongMatrix res = new LongMatrix(A.rows, A.cols);
+        for (int i = 0; i < A.rows; i++) {
+            for (int j = 0; j < A.cols; j++) {
+                res.data[i * A.cols + j] = A.get(i, j);
+            }
+        }
+        return res;
+    }
+}
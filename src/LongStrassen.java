@@ -0,0 +1,234 @@
+/** Strassen on LongMatrix, in plain long arithmetic or modulo p. It is the same allocation-free recursion as
+    Sequential.multiply(A, B, C, ws), with its own long kernel and a long[] arena, so nothing is boxed.
+    Modulo p (2 <= p <= 2^31) every value is kept in [0, p): additions and subtractions wrap back into the range
+    and the kernel reduces its long accumulators often enough that they can never overflow. **/
+public class LongStrassen {
+
+    /** A * B in long arithmetic **/
+    public static LongMatrix multiply(LongMatrix A, LongMatrix B) {
+        return multiply(A, B, 0);
+    }
+
+    /** A * B mod p, entries of A and B outside of [0, p) are reduced first **/
+    public static LongMatrix multiplyMod(LongMatrix A, LongMatrix B, long p) {
+        if (p < 2 || p > (1L << 31)) {
+            throw new IllegalArgumentException("Modulus must be in [2, 2^31], got " + p);
+        }
+        return multiply(reduce(A, p), reduce(B, p), p);
+    }
+
+    private static LongMatrix multiply(LongMatrix A, LongMatrix B, long p) {
+        if (A.cols != B.rows) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x" + B.cols);
+        }
+        int threshold = Crossover.threshold();
+        long size = Workspace.required(A.rows, A.cols, B.cols, threshold);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Workspace does not fit into one array");
+        }
+        LongMatrix C = new LongMatrix(A.rows, B.cols);
+        multiply(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride,
+                A.rows, A.cols, B.cols, new long[(int) size], 0, threshold, p);
+        return C;
+    }
+
+    /** The recursion, see Sequential.multiply(int[], ...) for the layout of the arena and the order of the products **/
+    static void multiply(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs,
+                         int m, int k, int n, long[] ws, int wo, int threshold, long p) {
+        if (Kernels.isBaseCase(m, k, n, threshold)) {
+            kernel(a, ao, as, b, bo, bs, c, co, cs, m, k, n, p);
+            return;
+        }
+        int hm = m / 2;
+        int hk = k / 2;
+        int hn = n / 2;
+        int S = wo;
+        int T = S + hm * hk;
+        int P = T + hk * hn;
+        int next = P + hm * hn;
+
+        int a11 = ao, a12 = ao + hk, a21 = ao + hm * as, a22 = ao + hm * as + hk;
+        int b11 = bo, b12 = bo + hn, b21 = bo + hk * bs, b22 = bo + hk * bs + hn;
+        int c11 = co, c12 = co + hn, c21 = co + hm * cs, c22 = co + hm * cs + hn;
+
+        // M1 = (A11 + A22)(B11 + B22) goes to C11 and C22
+        add(a, a11, as, a, a22, as, ws, S, hk, hm, hk, p);
+        add(b, b11, bs, b, b22, bs, ws, T, hn, hk, hn, p);
+        multiply(ws, S, hk, ws, T, hn, c, c11, cs, hm, hk, hn, ws, next, threshold, p);
+        for (int i = 0; i < hm; i++) {
+            System.arraycopy(c, c11 + i * cs, c, c22 + i * cs, hn);
+        }
+
+        // M2 = (A21 + A22)B11 goes to C21, C22 -= M2
+        add(a, a21, as, a, a22, as, ws, S, hk, hm, hk, p);
+        multiply(ws, S, hk, b, b11, bs, c, c21, cs, hm, hk, hn, ws, next, threshold, p);
+        sub(c, c22, cs, c, c21, cs, c, c22, cs, hm, hn, p);
+
+        // M3 = A11(B12 - B22) goes to C12, C22 += M3
+        sub(b, b12, bs, b, b22, bs, ws, T, hn, hk, hn, p);
+        multiply(a, a11, as, ws, T, hn, c, c12, cs, hm, hk, hn, ws, next, threshold, p);
+        add(c, c22, cs, c, c12, cs, c, c22, cs, hm, hn, p);
+
+        // M4 = A22(B21 - B11), C11 += M4, C21 += M4
+        sub(b, b21, bs, b, b11, bs, ws, T, hn, hk, hn, p);
+        multiply(a, a22, as, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold, p);
+        add(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn, p);
+        add(c, c21, cs, ws, P, hn, c, c21, cs, hm, hn, p);
+
+        // M5 = (A11 + A12)B22, C11 -= M5, C12 += M5
+        add(a, a11, as, a, a12, as, ws, S, hk, hm, hk, p);
+        multiply(ws, S, hk, b, b22, bs, ws, P, hn, hm, hk, hn, ws, next, threshold, p);
+        sub(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn, p);
+        add(c, c12, cs, ws, P, hn, c, c12, cs, hm, hn, p);
+
+        // M6 = (A21 - A11)(B11 + B12), C22 += M6
+        sub(a, a21, as, a, a11, as, ws, S, hk, hm, hk, p);
+        add(b, b11, bs, b, b12, bs, ws, T, hn, hk, hn, p);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold, p);
+        add(c, c22, cs, ws, P, hn, c, c22, cs, hm, hn, p);
+
+        // M7 = (A12 - A22)(B21 + B22), C11 += M7
+        sub(a, a12, as, a, a22, as, ws, S, hk, hm, hk, p);
+        add(b, b21, bs, b, b22, bs, ws, T, hn, hk, hn, p);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, ws, next, threshold, p);
+        add(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn, p);
+
+        if (((m | k | n) & 1) != 0) {
+            peel(a, ao, as, b, bo, bs, c, co, cs, m, k, n, p);
+        }
+    }
+
+    /** i-k-j kernel with long accumulators. Modulo p a row of C is reduced after every interval(p) steps of k,
+        that keeps every accumulator below 2^63 **/
+    static void kernel(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs,
+                       int m, int k, int n, long p) {
+        int interval = p == 0 ? Integer.MAX_VALUE : interval(p);
+        for (int i = 0; i < m; i++) {
+            int aRow = ao + i * as;
+            int cRow = co + i * cs;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0;
+            }
+            int pending = 0;
+            for (int q = 0; q < k; q++) {
+                long aiq = a[aRow + q];
+                int bRow = bo + q * bs;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aiq * b[bRow + j];
+                }
+                if (++pending == interval) {
+                    reduceRow(c, cRow, n, p);
+                    pending = 0;
+                }
+            }
+            if (p != 0 && pending > 0) {
+                reduceRow(c, cRow, n, p);
+            }
+        }
+    }
+
+    /** How many products of values below p can be added to a value below p before a long could overflow **/
+    static int interval(long p) {
+        long max = (p - 1) * (p - 1);
+        if (max == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (Long.MAX_VALUE - p) / max));
+    }
+
+    private static void reduceRow(long[] c, int cRow, int n, long p) {
+        for (int j = 0; j < n; j++) {
+            c[cRow + j] %= p;
+        }
+    }
+
+    /** c = a + b (mod p when p != 0) **/
+    static void add(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs, int rows, int cols, long p) {
+        if (p == 0 && Kernels.VECTOR) {
+            VectorKernels.add(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            if (p == 0) {
+                for (int j = 0; j < cols; j++) {
+                    c[z + j] = a[x + j] + b[y + j];
+                }
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    long s = a[x + j] + b[y + j];
+                    c[z + j] = s >= p ? s - p : s;
+                }
+            }
+        }
+    }
+
+    /** c = a - b (mod p when p != 0) **/
+    static void sub(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs, int rows, int cols, long p) {
+        if (p == 0 && Kernels.VECTOR) {
+            VectorKernels.sub(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            if (p == 0) {
+                for (int j = 0; j < cols; j++) {
+                    c[z + j] = a[x + j] - b[y + j];
+                }
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    long d = a[x + j] - b[y + j];
+                    c[z + j] = d < 0 ? d + p : d;
+                }
+            }
+        }
+    }
+
+    /** Odd sizes, the same steps as Kernels.peel **/
+    static void peel(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs,
+                     int m, int k, int n, long p) {
+        int m2 = m & ~1;
+        int k2 = k & ~1;
+        int n2 = n & ~1;
+        if (k != k2) {
+            int bRow = bo + k2 * bs;
+            for (int i = 0; i < m2; i++) {
+                long aik = a[ao + i * as + k2];
+                int cRow = co + i * cs;
+                for (int j = 0; j < n2; j++) {
+                    long v = c[cRow + j] + aik * b[bRow + j];
+                    c[cRow + j] = p == 0 ? v : v % p;
+                }
+            }
+        }
+        if (n != n2) {
+            kernel(a, ao, as, b, bo + n2, bs, c, co + n2, cs, m, k, 1, p);
+        }
+        if (m != m2) {
+            kernel(a, ao + m2 * as, as, b, bo, bs, c, co + m2 * cs, cs, 1, k, n2, p);
+        }
+    }
+
+    /** A itself if all its entries are in [0, p), otherwise a reduced copy **/
+    static LongMatrix reduce(LongMatrix A, long p) {
+        for (int i = 0; i < A.rows; i++) {
+            for (int j = 0; j < A.cols; j++) {
+                long v = A.get(i, j);
+                if (v < 0 || v >= p) {
+                    LongMatrix res = new LongMatrix(A.rows, A.cols);
+                    for (int x = 0; x < A.rows; x++) {
+                        for (int y = 0; y < A.cols; y++) {
+                            res.data[x * A.cols + y] = Math.floorMod(A.get(x, y), p);
+                        }
+                    }
+                    return res;
+                }
+            }
+        }
+        return A;
+    }
+}
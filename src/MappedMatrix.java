@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** OffHeapMatrix in a file that is memory mapped, for the operands, results and temporaries of OutOfCore that do
+    not fit into the heap. The file is a row-major int32 matrix file (see MatrixFile). A mapping can cover at most
+    2 GiB, so the file is mapped in bands of rows of up to 1 GiB each. Only what is touched gets paged in, and the
+    page cache decides what stays. load() and store() go front to back through the file, which is the order the
+    page cache and the read-ahead of the kernel handle best. **/
+public class MappedMatrix extends OffHeapMatrix {
+
+    // Largest band of one mapping, in ints
+    private static final int BAND = 1 << 28;
+
+    private final Storage storage;
+
+    private MappedMatrix(Storage storage, int row0, int col0, int rows, int cols, int rowEnd, int colEnd) {
+        super(row0, col0, rows, cols, rowEnd, colEnd);
+        this.storage = storage;
+    }
+
+    // The whole of storage
+    private static MappedMatrix whole(Storage storage) {
+        return new MappedMatrix(storage, 0, 0, storage.rows, storage.cols, storage.rows, storage.cols);
+    }
+
+    /** New zeroed rows x cols matrix in file, an existing file is replaced **/
+    public static MappedMatrix create(Path file, int rows, int cols) throws IOException {
+        return whole(new Storage(file, rows, cols, ByteOrder.nativeOrder(), true, false));
+    }
+
+    /** Maps an existing matrix file for reading and writing **/
+    public static MappedMatrix open(Path file) throws IOException {
+        MatrixFile.Header header = MatrixFile.header(file);
+        if (header.type() != MatrixFile.Type.INT32 || header.tile() != 0) {
+            throw new IOException(file + " is not a row-major int32 matrix, it cannot be mapped");
+        }
+        return whole(new Storage(file, header.rows(), header.cols(), header.order(), false, false));
+    }
+
+    /** Zeroed scratch matrix in the directory of -Dstrassen.ooc.dir (default java.io.tmpdir), its file is deleted
+        by close() **/
+    public static MappedMatrix temporary(int rows, int cols) throws IOException {
+        Path dir = Paths.get(System.getProperty("strassen.ooc.dir", System.getProperty("java.io.tmpdir")));
+        Path file = Files.createTempFile(dir, "strassen-", ".mat");
+        return whole(new Storage(file, rows, cols, ByteOrder.nativeOrder(), true, true));
+    }
+
+    @Override
+    public MappedMatrix view(int i, int j, int rows, int cols) {
+        checkView(i, j, rows, cols);
+        return new MappedMatrix(storage, row0 + i, col0 + j, rows, cols, rowEnd(i, rows), colEnd(j, cols));
+    }
+
+    /** Writes the pages of the file that were changed to the disk **/
+    public void force() {
+        for (MappedByteBuffer band : storage.mapped) {
+            band.force();
+        }
+    }
+
+    /** Closes the file, and deletes it if it is a temporary. The mapping itself goes away once it is garbage
+        collected, views must not be used afterwards **/
+    @Override
+    public void close() throws IOException {
+        storage.channel.close();
+        if (storage.temporary) {
+            Files.deleteIfExists(storage.file);
+        }
+    }
+
+    @Override
+    void read(int row, int col, int[] dst, int offset, int count) {
+        storage.band(row).get(storage.index(row, col), dst, offset, count);
+    }
+
+    @Override
+    void write(int row, int col, int[] src, int offset, int count) {
+        storage.band(row).put(storage.index(row, col), src, offset, count);
+    }
+
+    @Override
+    int element(int row, int col) {
+        return storage.band(row).get(storage.index(row, col));
+    }
+
+    @Override
+    void element(int row, int col, int value) {
+        storage.band(row).put(storage.index(row, col), value);
+    }
+
+    // The file and its mappings, shared by all views of it
+    private static class Storage {
+        final Path file;
+        final int rows;
+        final int cols;
+        final boolean temporary;
+        final FileChannel channel;
+        final int bandRows;
+        final MappedByteBuffer[] mapped;
+        final IntBuffer[] bands;
+
+        Storage(Path file, int rows, int cols, ByteOrder order, boolean create, boolean temporary)
+                throws IOException {
+            this.file = file;
+            this.rows = rows;
+            this.cols = cols;
+            this.temporary = temporary;
+            this.channel = create
+                    ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (create) {
+                new MatrixFile.Header(MatrixFile.Type.INT32, order, rows, cols, 0).write(channel);
+            }
+            this.bandRows = Math.max(1, BAND / Math.max(1, cols));
+            int count = rows == 0 ? 0 : (rows - 1) / bandRows + 1;
+            this.mapped = new MappedByteBuffer[count];
+            this.bands = new IntBuffer[count];
+            for (int b = 0; b < count; b++) {
+                long first = (long) b * bandRows;
+                long size = 4L * Math.min(bandRows, rows - first) * cols;
+                // Mapping past the end grows the file, the new part reads as zeros
+                mapped[b] = channel.map(FileChannel.MapMode.READ_WRITE, MatrixFile.HEADER + 4L * first * cols, size);
+                bands[b] = mapped[b].order(order).asIntBuffer();
+            }
+        }
+
+        IntBuffer band(int row) {
+            return bands[row / bandRows];
+        }
+
+        int index(int row, int col) {
+            return (row % bandRows) * cols + col;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/** Dense row-major int matrix backed by one contiguous array. A matrix can also be a view into a bigger one,
+    in that case it shares the backing array and addresses its elements through an offset and a row stride,
+    so taking a quadrant for divide and conquer does not copy anything. **/
+public class Matrix {
+
+    public final int[] data;
+    public final int rows;
+    public final int cols;
+    public final int stride;
+    public final int offset;
+
+    /** Allocate a zeroed square matrix **/
+    public Matrix(int n) {
+        this(n, n);
+    }
+
+    /** Allocate a zeroed rows x cols matrix **/
+    public Matrix(int rows, int cols) {
+        this(new int[rows * cols], 0, cols, rows, cols);
+        Metrics.allocated(4L * rows * cols, Math.max(rows, cols));
+    }
+
+    /** Wrap an existing row-major array without copying it **/
+    public Matrix(int[] data, int rows, int cols) {
+        this(data, 0, cols, rows, cols);
+        if (data.length < rows * cols) {
+            throw new IllegalArgumentException("Array of length " + data.length + " is too small for " + rows + "x" + cols);
+        }
+    }
+
+    public Matrix(int[] data, int offset, int stride, int rows, int cols) {
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** Position of element (i, j) inside the backing array **/
+    public int index(int i, int j) {
+        return offset + i * stride + j;
+    }
+
+    public int get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, int value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    /** A rows x cols window starting at (i, j) that shares the backing array with this matrix **/
+    public Matrix view(int i, int j, int rows, int cols) {
+        if (i < 0 || j < 0 || i + rows > this.rows || j + cols > this.cols) {
+            throw new IndexOutOfBoundsException("View " + rows + "x" + cols + " at (" + i + ", " + j + ") is outside of "
+                    + this.rows + "x" + this.cols);
+        }
+        return new Matrix(data, index(i, j), stride, rows, cols);
+    }
+
+    /** True if the elements are exactly the backing array, so it can be handed to MPI or I/O as it is **/
+    public boolean isCompact() {
+        return offset == 0 && stride == cols && data.length == rows * cols;
+    }
+
+    /** The elements as one row-major array, without copying when the matrix is already compact **/
+    public int[] toArray() {
+        return isCompact() ? data : copy().data;
+    }
+
+    /** A compact copy of this matrix (or view) **/
+    public Matrix copy() {
+        Matrix res = new Matrix(rows, cols);
+        res.copyFrom(this);
+        return res;
+    }
+
+    /** Copy the elements of src into this matrix row by row **/
+    public void copyFrom(Matrix src) {
+        checkSameShape(src, this);
+        copyInto(src.data, src.offset, src.stride, data, offset, stride, rows, cols);
+    }
+
+    public void fill(int value) {
+        for (int i = 0; i < rows; i++) {
+            int row = offset + i * stride;
+            Arrays.fill(data, row, row + cols, value);
+        }
+    }
+
+    /** True if every element is zero **/
+    public boolean isZero() {
+        return isZero(data, offset, stride, rows, cols);
+    }
+
+    /** Number of elements that are not zero **/
+    public long nonZeros() {
+        long count = 0;
+        for (int i = 0; i < rows; i++) {
+            int row = offset + i * stride;
+            for (int j = 0; j < cols; j++) {
+                if (data[row + j] != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public boolean contentEquals(Matrix other) {
+        if (other.rows != rows || other.cols != cols) {
+            return false;
+        }
+        for (int i = 0; i < rows; i++) {
+            int a = offset + i * stride;
+            int b = other.offset + i * other.stride;
+            // Arrays.equals on ranges is an intrinsic that compares a vector at a time
+            if (!Arrays.equals(data, a, a + cols, other.data, b, b + cols)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Method to create a matrix with random integers in [0, bound) **/
+    public static Matrix random(int rows, int cols, int bound) {
+        Matrix res = new Matrix(rows, cols);
+        Random rand = new Random();
+        for (int i = 0; i < res.data.length; i++) {
+            res.data[i] = rand.nextInt(bound);
+        }
+        return res;
+    }
+
+    /** Copy a jagged int[][] into a new matrix **/
+    public static Matrix of(int[][] A) {
+        int cols = A.length == 0 ? 0 : A[0].length;
+        Matrix res = new Matrix(A.length, cols);
+        for (int i = 0; i < A.length; i++) {
+            System.arraycopy(A[i], 0, res.data, i * cols, cols);
+        }
+        return res;
+    }
+
+    /** Copy this matrix out into a jagged int[][] **/
+    public int[][] to2D() {
+        int[][] res = new int[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, res[i], 0, cols);
+        }
+        return res;
+    }
+
+    /** C = A + B, C may be one of the operands **/
+    public static void add(Matrix A, Matrix B, Matrix C) {
+        checkSameShape(A, B);
+        checkSameShape(A, C);
+        addInto(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride, A.rows, A.cols);
+    }
+
+    /** C = A - B, C may be one of the operands **/
+    public static void subtract(Matrix A, Matrix B, Matrix C) {
+        checkSameShape(A, B);
+        checkSameShape(A, C);
+        subInto(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride, A.rows, A.cols);
+    }
+
+    /* The raw variants below work on (array, offset, stride) triples instead of Matrix objects, so the hot path of
+       the workspace Strassen can address quadrants of the operands and of the arena without allocating views.
+       The output may alias either input, which makes them usable in place (c += b is addInto(c, b, c)).
+       With the Vector API loaded (see Kernels.VECTOR) addInto and subInto run as SIMD loops. */
+
+    /** c = a + b over a rows x cols block **/
+    public static void addInto(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int rows, int cols) {
+        long start = Metrics.now();
+        if (Kernels.VECTOR) {
+            VectorKernels.add(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                int x = ao + i * as;
+                int y = bo + i * bs;
+                int z = co + i * cs;
+                for (int j = 0; j < cols; j++) {
+                    c[z + j] = a[x + j] + b[y + j];
+                }
+            }
+        }
+        Metrics.record(Metrics.Phase.ADD, start, Math.max(rows, cols), (long) rows * cols);
+    }
+
+    /** c = a - b over a rows x cols block **/
+    public static void subInto(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int rows, int cols) {
+        long start = Metrics.now();
+        if (Kernels.VECTOR) {
+            VectorKernels.sub(a, ao, as, b, bo, bs, c, co, cs, rows, cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                int x = ao + i * as;
+                int y = bo + i * bs;
+                int z = co + i * cs;
+                for (int j = 0; j < cols; j++) {
+                    c[z + j] = a[x + j] - b[y + j];
+                }
+            }
+        }
+        Metrics.record(Metrics.Phase.ADD, start, Math.max(rows, cols), (long) rows * cols);
+    }
+
+    /** c = a over a rows x cols block **/
+    public static void copyInto(int[] a, int ao, int as, int[] c, int co, int cs, int rows, int cols) {
+        long start = Metrics.now();
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(a, ao + i * as, c, co + i * cs, cols);
+        }
+        Metrics.record(Metrics.Phase.COPY, start, Math.max(rows, cols), (long) rows * cols);
+    }
+
+    /** c = 0 over a rows x cols block **/
+    public static void zeroInto(int[] c, int co, int cs, int rows, int cols) {
+        for (int i = 0; i < rows; i++) {
+            Arrays.fill(c, co + i * cs, co + i * cs + cols, 0);
+        }
+    }
+
+    /** True if a rows x cols block holds only zeros, it stops at the first element that is not, so on dense
+        data it hardly costs anything **/
+    public static boolean isZero(int[] a, int ao, int as, int rows, int cols) {
+        for (int i = 0; i < rows; i++) {
+            int row = ao + i * as;
+            for (int j = 0; j < cols; j++) {
+                if (a[row + j] != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static void checkSameShape(Matrix A, Matrix B) {
+        if (A.rows != B.rows || A.cols != B.cols) {
+            throw new IllegalArgumentException("Shape mismatch: " + A.rows + "x" + A.cols + " vs " + B.rows + "x" + B.cols);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** Binary matrix files, so the engines can multiply matrices of our own instead of random ones and hand the result
+    on without printing it. A file is a 32 byte header followed by the elements:
+
+        0   "STRM"
+        4   version (1)
+        5   byte order of everything after the first 8 bytes, 'L' or 'B'
+        6   element type, 1 int32, 2 int64, 3 float64
+        7   layout, 0 row-major, 1 tiled
+        8   rows
+        12  cols
+        16  tile size (tiled only, 0 otherwise)
+        20  reserved, zero
+
+    Row-major is the plain array of Matrix. Tiled stores t x t tiles (smaller at the bottom and right edge) one
+    after the other, row-major tile by tile and inside every tile, so a tile can be read with one contiguous read.
+    Files are read and written through a FileChannel with one 1 MiB direct buffer, whatever their size, elements
+    go between the buffer and the arrays with bulk copies. MappedMatrix maps row-major int32 files of this format.
+    The text dump (" a b c" per row, like printMatrix) is only for looking at small results. **/
+public final class MatrixFile {
+
+    static final int HEADER = 32;
+    private static final int VERSION = 1;
+    private static final int BUFFER = 1 << 20;
+
+    private MatrixFile() {
+    }
+
+    public enum Type {
+        INT32(1, 4), INT64(2, 8), FLOAT64(3, 8);
+
+        final int code;
+        final int size;
+
+        Type(int code, int size) {
+            this.code = code;
+            this.size = size;
+        }
+
+        static Type of(int code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown element type " + code);
+        }
+    }
+
+    /** What the header of a file says. tile is 0 for row-major files **/
+    public record Header(Type type, ByteOrder order, int rows, int cols, int tile) {
+
+        public Header {
+            if (rows < 0 || cols < 0 || tile < 0) {
+                throw new IllegalArgumentException("Bad shape " + rows + "x" + cols + " tile " + tile);
+            }
+        }
+
+        /** Size of the whole file in bytes **/
+        public long size() {
+            return HEADER + (long) type.size * rows * cols;
+        }
+
+        static Header read(FileChannel channel, Path file) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException(file + " is not a matrix file, it is too short");
+                }
+            }
+            buffer.flip();
+            if (buffer.get() != 'S' || buffer.get() != 'T' || buffer.get() != 'R' || buffer.get() != 'M') {
+                throw new IOException(file + " is not a matrix file");
+            }
+            int version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException(file + " has version " + version + ", only " + VERSION + " is supported");
+            }
+            ByteOrder order = buffer.get() == 'B' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            Type type = Type.of(buffer.get());
+            boolean tiled = buffer.get() == 1;
+            buffer.order(order);
+            int rows = buffer.getInt();
+            int cols = buffer.getInt();
+            int tile = buffer.getInt();
+            if (rows < 0 || cols < 0 || (tiled && tile < 1) || channel.size() < HEADER + (long) type.size * rows * cols) {
+                throw new IOException(file + " is not a complete " + rows + "x" + cols + " matrix");
+            }
+            return new Header(type, order, rows, cols, tiled ? tile : 0);
+        }
+
+        void write(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER);
+            buffer.put((byte) 'S').put((byte) 'T').put((byte) 'R').put((byte) 'M').put((byte) VERSION)
+                    .put((byte) (order == ByteOrder.BIG_ENDIAN ? 'B' : 'L')).put((byte) type.code)
+                    .put((byte) (tile > 0 ? 1 : 0));
+            buffer.order(order).putInt(rows).putInt(cols).putInt(tile).position(HEADER);
+            buffer.flip();
+            channel.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // MatrixFile random <rows> <cols> <file>  writes a random int32 matrix with elements in [0, 10)
+        // MatrixFile info <file>                  prints the header
+        // MatrixFile text <file> [<text file>]    dumps an int32 matrix as text, to stdout without a text file
+        if (args.length == 4 && args[0].equals("random")) {
+            write(Paths.get(args[3]), Matrix.random(Integer.parseInt(args[1]), Integer.parseInt(args[2]), 10));
+        } else if (args.length == 2 && args[0].equals("info")) {
+            System.out.println(header(Paths.get(args[1])));
+        } else if (args.length == 2 && args[0].equals("text")) {
+            print(read(Paths.get(args[1])), System.out);
+        } else if (args.length == 3 && args[0].equals("text")) {
+            writeText(Paths.get(args[2]), read(Paths.get(args[1])));
+        } else {
+            System.out.println("Usage: MatrixFile random <rows> <cols> <file> | info <file> | text <file> [<text file>]");
+        }
+    }
+
+    public static Header header(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return Header.read(channel, file);
+        }
+    }
+
+    public static Matrix read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = expect(Header.read(channel, file), Type.INT32, file);
+            Matrix X = new Matrix(header.rows(), header.cols());
+            read(channel, header, X.data, X.offset, X.stride);
+            return X;
+        }
+    }
+
+    public static LongMatrix readLong(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = expect(Header.read(channel, file), Type.INT64, file);
+            LongMatrix X = new LongMatrix(header.rows(), header.cols());
+            read(channel, header, X.data, X.offset, X.stride);
+            return X;
+        }
+    }
+
+    public static DoubleMatrix readDouble(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = expect(Header.read(channel, file), Type.FLOAT64, file);
+            DoubleMatrix X = new DoubleMatrix(header.rows(), header.cols());
+            read(channel, header, X.data, X.offset, X.stride);
+            return X;
+        }
+    }
+
+    /** Row-major, in the byte order of this machine **/
+    public static void write(Path file, Matrix X) throws IOException {
+        write(file, X, ByteOrder.nativeOrder(), 0);
+    }
+
+    /** tile 0 writes row-major **/
+    public static void write(Path file, Matrix X, ByteOrder order, int tile) throws IOException {
+        write(file, new Header(Type.INT32, order, X.rows, X.cols, tile), X.data, X.offset, X.stride);
+    }
+
+    public static void write(Path file, LongMatrix X) throws IOException {
+        write(file, new Header(Type.INT64, ByteOrder.nativeOrder(), X.rows, X.cols, 0), X.data, X.offset, X.stride);
+    }
+
+    public static void write(Path file, DoubleMatrix X) throws IOException {
+        write(file, new Header(Type.FLOAT64, ByteOrder.nativeOrder(), X.rows, X.cols, 0), X.data, X.offset,
+                X.stride);
+    }
+
+    /** Writes X to where the last argument of a main points: "-" prints it, a name ending in .txt gets a text
+        dump, anything else a binary file **/
+    public static void output(String target, Matrix X) throws IOException {
+        if (target.equals("-")) {
+            print(X, System.out);
+        } else if (target.endsWith(".txt")) {
+            writeText(Paths.get(target), X);
+        } else {
+            write(Paths.get(target), X);
+        }
+    }
+
+    /** Text dump, one line per row **/
+    public static void writeText(Path file, Matrix X) throws IOException {
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.US_ASCII), BUFFER)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < X.rows; i++) {
+                out.append(row(X, i, X.cols, line)).append('\n');
+            }
+        }
+    }
+
+    /** The first rows x cols elements as text followed by an empty line, one write per row **/
+    public static void print(Matrix X, int rows, int cols, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            out.println(row(X, i, cols, line));
+        }
+        out.println();
+    }
+
+    public static void print(Matrix X, PrintStream out) {
+        print(X, X.rows, X.cols, out);
+    }
+
+    private static StringBuilder row(Matrix X, int i, int cols, StringBuilder line) {
+        line.setLength(0);
+        for (int j = 0; j < cols; j++) {
+            line.append(' ').append(X.get(i, j));
+        }
+        return line;
+    }
+
+    private static Header expect(Header header, Type type, Path file) throws IOException {
+        if (header.type() != type) {
+            throw new IOException(file + " holds " + header.type() + " elements, not " + type);
+        }
+        return header;
+    }
+
+    // A run of count consecutive elements of one row in the payload
+    private interface Run {
+        void accept(int row, int col, int count) throws IOException;
+    }
+
+    // The payload of a matrix as runs in the order they are in the file
+    private static void runs(Header header, Run run) throws IOException {
+        int rows = header.rows();
+        int cols = header.cols();
+        if (cols == 0) {
+            return;
+        }
+        int tile = header.tile();
+        if (tile == 0) {
+            for (int i = 0; i < rows; i++) {
+                run.accept(i, 0, cols);
+            }
+            return;
+        }
+        for (int ti = 0; ti < rows; ti += tile) {
+            for (int tj = 0; tj < cols; tj += tile) {
+                for (int i = ti; i < Math.min(ti + tile, rows); i++) {
+                    run.accept(i, tj, Math.min(tile, cols - tj));
+                }
+            }
+        }
+    }
+
+    // Reads the payload into array (an int[], long[] or double[] that matches the type of the header)
+    private static void read(FileChannel channel, Header header, Object array, int offset, int stride)
+            throws IOException {
+        Type type = header.type();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(header.order());
+        buffer.flip();
+        channel.position(HEADER);
+        runs(header, (row, col, count) -> {
+            int index = offset + row * stride + col;
+            while (count > 0) {
+                if (buffer.remaining() < type.size) {
+                    buffer.compact();
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    }
+                    buffer.flip();
+                    if (buffer.remaining() < type.size) {
+                        throw new IOException("Matrix file ends early");
+                    }
+                }
+                int n = Math.min(count, buffer.remaining() / type.size);
+                switch (type) {
+                    case INT32 -> buffer.asIntBuffer().get((int[]) array, index, n);
+                    case INT64 -> buffer.asLongBuffer().get((long[]) array, index, n);
+                    case FLOAT64 -> buffer.asDoubleBuffer().get((double[]) array, index, n);
+                }
+                buffer.position(buffer.position() + n * type.size);
+                index += n;
+                count -= n;
+            }
+        });
+    }
+
+    // Writes the header and the payload from array, see read
+    private static void write(Path file, Header header, Object array, int offset, int stride) throws IOException {
+        Type type = header.type();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.write(channel);
+            channel.position(HEADER);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(header.order());
+            runs(header, (row, col, count) -> {
+                int index = offset + row * stride + col;
+                while (count > 0) {
+                    if (buffer.remaining() < type.size) {
+                        flush(channel, buffer);
+                    }
+                    int n = Math.min(count, buffer.remaining() / type.size);
+                    switch (type) {
+                        case INT32 -> buffer.asIntBuffer().put((int[]) array, index, n);
+                        case INT64 -> buffer.asLongBuffer().put((long[]) array, index, n);
+                        case FLOAT64 -> buffer.asDoubleBuffer().put((double[]) array, index, n);
+                    }
+                    buffer.position(buffer.position() + n * type.size);
+                    index += n;
+                    count -= n;
+                }
+            });
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,635 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** Instrumentation of the hot paths of the engines, switched on with -Dstrassen.metrics=true. It records, per phase
+    and per block size, the calls, the wall time and the elements touched: base case products (LEAF), add and
+    subtract passes including the Strassen combines (ADD), copies between blocks (COPY), the odd row and column
+    fix-ups (PEEL), and the time tasks spend queued in a pool before they run (QUEUE). On top of that the bytes
+    allocated for matrices and workspaces, the queue depths the tasks found, and per rank of Distributive the
+    messages and bytes sent and received, the time spent waiting on them and their latency from posting to
+    completion.
+
+    The block size stands in for the recursion depth: every Strassen level halves the blocks, so level x holds the
+    blocks whose largest dimension is at most 2^x, and the numbers of the forked top levels, the sequential ones
+    below them and the products of Distributive line up. Phase counters live in one plain object per platform
+    thread, so recording is a thread-local lookup and a few additions without any contention, communication
+    counters are striped (LongAdder). The counters of a thread that has ended are folded into a retired total the
+    next time a thread starts recording or the totals are read, so pools that come and go do not pile them up.
+    Virtual threads come and go by the thousand (see VirtualStrassen), so they do not get counters of their own:
+    one borrows a free one from a shared pool for the additions and gives it back right away. Nothing in between
+    can block, so the pool never holds more counters than there are carrier threads recording at the same time. Disabled, ENABLED is a constant false and the JIT removes every hook.
+
+    The numbers go to JFR as events of the category Strassen (tasks and blocking message waits as they happen,
+    totals per phase and per rank at the end of every chunk) and, when the JVM exits, to a JSON summary on
+    standard error or into the file of -Dstrassen.metrics.out (a %p in the name becomes the process id, for one
+    file per MPI process). **/
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("strassen.metrics");
+
+    public enum Phase { LEAF, ADD, COPY, PEEL, QUEUE }
+
+    // Block size classes, level x holds the blocks of at most 2^x
+    private static final int LEVELS = 32;
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final Queue<Counters> THREADS = new ConcurrentLinkedQueue<>();
+    // Counters of the platform threads that have ended, and how many there were. Its lock guards both and the
+    // removal of counters from THREADS
+    private static final Counters RETIRED = new Counters(true);
+    private static int retiredThreads;
+    private static final ThreadLocal<Counters> LOCAL = ThreadLocal.withInitial(() -> Counters.register(false));
+    // Counters of the virtual threads that nobody is using right now
+    private static final Queue<Counters> FREE = new ConcurrentLinkedQueue<>();
+    private static final Queue<Link> LINKS = new ConcurrentLinkedQueue<>();
+
+    static {
+        if (ENABLED) {
+            FlightRecorder.addPeriodicEvent(PhaseTotals.class, Metrics::emitPhaseTotals);
+            FlightRecorder.addPeriodicEvent(RankTotals.class, Metrics::emitRankTotals);
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::report, "strassen-metrics"));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /** Start time of a phase for record(), 0 when disabled **/
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** Records a phase that began at start (from now()) on blocks of size, touching elements elements (multiply-adds
+        for LEAF and PEEL) **/
+    public static void record(Phase phase, long start, int size, long elements) {
+        if (ENABLED) {
+            long time = System.nanoTime() - start;
+            Counters counters = acquire();
+            counters.add(phase, level(size), time, elements);
+            release(counters);
+        }
+    }
+
+    /** Records an allocation of bytes for a matrix or workspace of size **/
+    public static void allocated(long bytes, int size) {
+        if (ENABLED) {
+            Counters counters = acquire();
+            counters.allocated[level(size)] += bytes;
+            release(counters);
+        }
+    }
+
+    /** Records the depth of the queue a task was taken from **/
+    public static void queued(int depth) {
+        if (ENABLED) {
+            Counters counters = acquire();
+            counters.queueSamples++;
+            counters.queueDepths += depth;
+            counters.queueMax = Math.max(counters.queueMax, depth);
+            release(counters);
+        }
+    }
+
+    /** Records that a task created at created (from now()) starts to run now on blocks of size, with depth tasks
+        left in the queue of its thread. Returns its event for done(), null when disabled **/
+    static TaskEvent started(long created, int size, int depth) {
+        if (!ENABLED) {
+            return null;
+        }
+        long queued = System.nanoTime() - created;
+        record(Phase.QUEUE, created, size, 1);
+        queued(depth);
+        TaskEvent event = new TaskEvent();
+        event.size = size;
+        event.queued = queued;
+        event.depth = depth;
+        event.begin();
+        return event;
+    }
+
+    static void done(TaskEvent event) {
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    // The counters of the calling thread: its own on a platform thread, a free one of the pool on a virtual one,
+    // which must be given back with release() before the thread can block
+    private static Counters acquire() {
+        if (!Thread.currentThread().isVirtual()) {
+            return LOCAL.get();
+        }
+        Counters counters = FREE.poll();
+        return counters != null ? counters : Counters.register(true);
+    }
+
+    private static void release(Counters counters) {
+        if (counters.pooled) {
+            FREE.offer(counters);
+        }
+    }
+
+    /** comm with its messages counted for the summary (one entry per rank), comm itself when disabled **/
+    public static Communicator instrument(Communicator comm) {
+        if (!ENABLED || comm instanceof Counted) {
+            return comm;
+        }
+        Link link = new Link(comm.rank());
+        LINKS.add(link);
+        return new Counted(comm, link);
+    }
+
+    /** Zeroes all counters, only meant for when nothing is running. The instrumented communicators keep counting
+        into the same links, so those are zeroed but kept **/
+    public static void reset() {
+        synchronized (RETIRED) {
+            RETIRED.clear();
+            retiredThreads = 0;
+        }
+        for (Counters counters : THREADS) {
+            counters.clear();
+        }
+        for (Link link : LINKS) {
+            link.clear();
+        }
+    }
+
+    /** Everything recorded so far as JSON **/
+    public static String summary() {
+        Counters sum = new Counters(true);
+        int threads = 0;
+        int pooled = 0;
+        int retired;
+        synchronized (RETIRED) {
+            retire();
+            sum.fold(RETIRED);
+            retired = retiredThreads;
+            for (Counters counters : THREADS) {
+                if (counters.pooled) {
+                    pooled++;
+                } else {
+                    threads++;
+                }
+                sum.fold(counters);
+            }
+        }
+        long[] calls = sum.calls;
+        long[] nanos = sum.nanos;
+        long[] elements = sum.elements;
+        long[] allocated = sum.allocated;
+        long queueSamples = sum.queueSamples;
+        long queueDepths = sum.queueDepths;
+        long queueMax = sum.queueMax;
+
+        StringBuilder json = new StringBuilder("{\n  \"threads\": ").append(threads)
+                .append(",\n  \"retiredThreads\": ").append(retired)
+                .append(",\n  \"virtualThreadCounters\": ").append(pooled).append(",\n  \"phases\": [");
+        String separator = "\n";
+        for (Phase phase : PHASES) {
+            for (int level = 0; level < LEVELS; level++) {
+                int i = phase.ordinal() * LEVELS + level;
+                if (calls[i] != 0) {
+                    json.append(separator).append("    {\"phase\": \"").append(phase).append("\", \"block\": ")
+                            .append(1L << level).append(", \"calls\": ").append(calls[i]).append(", \"nanos\": ")
+                            .append(nanos[i]).append(", \"elements\": ").append(elements[i]).append('}');
+                    separator = ",\n";
+                }
+            }
+        }
+        json.append(close(separator)).append(",\n  \"allocated\": [");
+        separator = "\n";
+        long total = 0;
+        for (int level = 0; level < LEVELS; level++) {
+            if (allocated[level] != 0) {
+                json.append(separator).append("    {\"block\": ").append(1L << level).append(", \"bytes\": ")
+                        .append(allocated[level]).append('}');
+                separator = ",\n";
+                total += allocated[level];
+            }
+        }
+        long leaves = 0;
+        long multiplyAdds = 0;
+        for (int level = 0; level < LEVELS; level++) {
+            leaves += calls[Phase.LEAF.ordinal() * LEVELS + level];
+            multiplyAdds += elements[Phase.LEAF.ordinal() * LEVELS + level];
+        }
+        json.append(close(separator)).append(",\n  \"allocatedBytes\": ").append(total)
+                .append(",\n  \"leaves\": ").append(leaves)
+                .append(",\n  \"leafMultiplyAdds\": ").append(multiplyAdds)
+                .append(",\n  \"queue\": {\"samples\": ").append(queueSamples)
+                .append(", \"meanDepth\": ").append(queueSamples == 0 ? 0 : (double) queueDepths / queueSamples)
+                .append(", \"maxDepth\": ").append(queueMax).append("},\n  \"ranks\": [");
+        separator = "\n";
+        for (Link link : LINKS) {
+            json.append(separator).append("    {\"rank\": ").append(link.rank)
+                    .append(", \"sentMessages\": ").append(link.sentMessages.sum())
+                    .append(", \"sentBytes\": ").append(link.sentBytes.sum())
+                    .append(", \"receivedMessages\": ").append(link.receivedMessages.sum())
+                    .append(", \"receivedBytes\": ").append(link.receivedBytes.sum())
+                    .append(", \"waitNanos\": ").append(link.waitNanos.sum())
+                    .append(", \"latencyNanos\": ").append(link.latencyNanos.sum()).append('}');
+            separator = ",\n";
+        }
+        return json.append(close(separator)).append("\n}\n").toString();
+    }
+
+    // End of a JSON array whose elements went on lines of their own
+    private static String close(String separator) {
+        return separator.equals("\n") ? "]" : "\n  ]";
+    }
+
+    // Writes the summary where -Dstrassen.metrics.out says, standard error by default
+    private static void report() {
+        String out = System.getProperty("strassen.metrics.out");
+        String summary = summary();
+        if (out == null) {
+            System.err.print(summary);
+            System.err.flush();
+            return;
+        }
+        try {
+            Files.writeString(Paths.get(out.replace("%p", Long.toString(ProcessHandle.current().pid()))), summary,
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Cannot write the metrics to " + out + ": " + e.getMessage());
+        }
+    }
+
+    // Totals for JFR at the end of every chunk of a recording
+    private static void emitPhaseTotals() {
+        Counters total = new Counters(true);
+        synchronized (RETIRED) {
+            retire();
+            total.fold(RETIRED);
+            for (Counters counters : THREADS) {
+                total.fold(counters);
+            }
+        }
+        long[] calls = total.calls;
+        long[] nanos = total.nanos;
+        long[] elements = total.elements;
+        for (int i = 0; i < calls.length; i++) {
+            if (calls[i] != 0) {
+                PhaseTotals event = new PhaseTotals();
+                event.phase = PHASES[i / LEVELS].name();
+                event.block = 1L << (i % LEVELS);
+                event.calls = calls[i];
+                event.time = nanos[i];
+                event.elements = elements[i];
+                event.commit();
+            }
+        }
+    }
+
+    private static void emitRankTotals() {
+        for (Link link : LINKS) {
+            RankTotals event = new RankTotals();
+            event.rank = link.rank;
+            event.sentBytes = link.sentBytes.sum();
+            event.receivedBytes = link.receivedBytes.sum();
+            event.waited = link.waitNanos.sum();
+            event.commit();
+        }
+    }
+
+    // Folds the counters of the platform threads that have ended into RETIRED, with its lock held. A thread that
+    // isAlive() reports as ended has made all its writes visible
+    private static void retire() {
+        for (Iterator<Counters> it = THREADS.iterator(); it.hasNext(); ) {
+            Counters counters = it.next();
+            if (counters.owner != null && !counters.owner.isAlive()) {
+                RETIRED.fold(counters);
+                retiredThreads++;
+                it.remove();
+            }
+        }
+    }
+
+    // Level of a block whose largest dimension is size: the smallest x with size <= 2^x
+    private static int level(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    // Counters of one platform thread, only that thread writes them, or pooled ones of the virtual threads, only
+    // the one that has borrowed them writes them
+    private static final class Counters {
+        final boolean pooled;
+        // The platform thread that writes them, null for pooled ones
+        final Thread owner;
+        final long[] calls = new long[PHASES.length * LEVELS];
+        final long[] nanos = new long[PHASES.length * LEVELS];
+        final long[] elements = new long[PHASES.length * LEVELS];
+        final long[] allocated = new long[LEVELS];
+        long queueSamples;
+        long queueDepths;
+        long queueMax;
+
+        Counters(boolean pooled) {
+            this.pooled = pooled;
+            this.owner = pooled ? null : Thread.currentThread();
+        }
+
+        static Counters register(boolean pooled) {
+            Counters counters = new Counters(pooled);
+            if (!pooled) {
+                synchronized (RETIRED) {
+                    retire();
+                }
+            }
+            THREADS.add(counters);
+            return counters;
+        }
+
+        void add(Phase phase, int level, long time, long count) {
+            int i = phase.ordinal() * LEVELS + level;
+            calls[i]++;
+            nanos[i] += time;
+            elements[i] += count;
+        }
+
+        // Adds the counts of other to these
+        void fold(Counters other) {
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] += other.calls[i];
+                nanos[i] += other.nanos[i];
+                elements[i] += other.elements[i];
+            }
+            for (int i = 0; i < LEVELS; i++) {
+                allocated[i] += other.allocated[i];
+            }
+            queueSamples += other.queueSamples;
+            queueDepths += other.queueDepths;
+            queueMax = Math.max(queueMax, other.queueMax);
+        }
+
+        void clear() {
+            Arrays.fill(calls, 0);
+            Arrays.fill(nanos, 0);
+            Arrays.fill(elements, 0);
+            Arrays.fill(allocated, 0);
+            queueSamples = 0;
+            queueDepths = 0;
+            queueMax = 0;
+        }
+    }
+
+    // Message counters of one rank
+    private static final class Link {
+        final int rank;
+        final LongAdder sentMessages = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final LongAdder receivedMessages = new LongAdder();
+        final LongAdder receivedBytes = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+
+        Link(int rank) {
+            this.rank = rank;
+        }
+
+        void clear() {
+            sentMessages.reset();
+            sentBytes.reset();
+            receivedMessages.reset();
+            receivedBytes.reset();
+            waitNanos.reset();
+            latencyNanos.reset();
+        }
+    }
+
+    // Communicator that counts what goes through it into a Link
+    private static final class Counted implements Communicator {
+        private final Communicator comm;
+        private final Link link;
+
+        Counted(Communicator comm, Link link) {
+            this.comm = comm;
+            this.link = link;
+        }
+
+        @Override
+        public int rank() {
+            return comm.rank();
+        }
+
+        @Override
+        public int size() {
+            return comm.size();
+        }
+
+        @Override
+        public Request isend(int[] buf, int offset, int count, int dest, int tag) {
+            return sent(comm.isend(buf, offset, count, dest, tag), dest, tag, count);
+        }
+
+        @Override
+        public Request irecv(int[] buf, int offset, int count, int source, int tag) {
+            return new Tracked(comm.irecv(buf, offset, count, source, tag), source, tag, false);
+        }
+
+        @Override
+        public void bcast(int[] buf, int offset, int count, int root) {
+            long start = System.nanoTime();
+            comm.bcast(buf, offset, count, root);
+            link.waitNanos.add(System.nanoTime() - start);
+            if (comm.rank() == root) {
+                link.sentMessages.add(comm.size() - 1);
+                link.sentBytes.add(4L * count * (comm.size() - 1));
+            } else {
+                link.receivedMessages.increment();
+                link.receivedBytes.add(4L * count);
+            }
+        }
+
+        @Override
+        public void barrier() {
+            long start = System.nanoTime();
+            comm.barrier();
+            link.waitNanos.add(System.nanoTime() - start);
+        }
+
+        @Override
+        public int waitAny(Request[] requests) {
+            Request[] inner = new Request[requests.length];
+            for (int i = 0; i < requests.length; i++) {
+                inner[i] = ((Tracked) requests[i]).request;
+            }
+            MessageEvent event = new MessageEvent();
+            event.begin();
+            long start = System.nanoTime();
+            int index = comm.waitAny(inner);
+            link.waitNanos.add(System.nanoTime() - start);
+            Tracked done = (Tracked) requests[index];
+            done.complete(inner[index].test(), event);
+            return index;
+        }
+
+        @Override
+        public double wtime() {
+            return comm.wtime();
+        }
+
+        private Request sent(Request request, int dest, int tag, int count) {
+            link.sentMessages.increment();
+            link.sentBytes.add(4L * count);
+            return new Tracked(request, dest, tag, true);
+        }
+
+        // A request of the wrapped communicator, counted once it has completed
+        private final class Tracked implements Request {
+            final Request request;
+            final int peer;
+            final int tag;
+            final boolean send;
+            final long posted = System.nanoTime();
+            boolean completed;
+
+            Tracked(Request request, int peer, int tag, boolean send) {
+                this.request = request;
+                this.peer = peer;
+                this.tag = tag;
+                this.send = send;
+            }
+
+            @Override
+            public Status test() {
+                Status status = request.test();
+                if (status != null) {
+                    complete(status, null);
+                }
+                return status;
+            }
+
+            @Override
+            public Status await() {
+                MessageEvent event = new MessageEvent();
+                event.begin();
+                long start = System.nanoTime();
+                Status status = request.await();
+                link.waitNanos.add(System.nanoTime() - start);
+                complete(status, event);
+                return status;
+            }
+
+            @Override
+            public boolean cancel() {
+                if (request.cancel()) {
+                    return true;
+                }
+                complete(request.test(), null);
+                return false;
+            }
+
+            void complete(Status status, MessageEvent event) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                link.latencyNanos.add(System.nanoTime() - posted);
+                if (!send) {
+                    link.receivedMessages.increment();
+                    link.receivedBytes.add(4L * status.count());
+                }
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.rank = link.rank;
+                        event.peer = send ? peer : status.source();
+                        event.tag = send ? tag : status.tag();
+                        event.send = send;
+                        event.bytes = 4L * status.count();
+                        event.commit();
+                    }
+                }
+            }
+        }
+    }
+
+    @Name("strassen.Task")
+    @Label("Strassen Task")
+    @Category("Strassen")
+    @Description("A fork/join task of Parallel, from the moment it starts to run")
+    @StackTrace(false)
+    static final class TaskEvent extends Event {
+        @Label("Block Size")
+        int size;
+        @Label("Time Queued")
+        @Timespan
+        long queued;
+        @Label("Queue Depth")
+        int depth;
+    }
+
+    @Name("strassen.Message")
+    @Label("Strassen Message Wait")
+    @Category("Strassen")
+    @Description("A rank waiting for a message of Distributive to be sent or received")
+    @StackTrace(false)
+    static final class MessageEvent extends Event {
+        @Label("Rank")
+        int rank;
+        @Label("Peer")
+        int peer;
+        @Label("Tag")
+        int tag;
+        @Label("Send")
+        boolean send;
+        @Label("Bytes")
+        long bytes;
+    }
+
+    @Name("strassen.PhaseTotals")
+    @Label("Strassen Phase Totals")
+    @Category("Strassen")
+    @Description("Calls, time and elements of one phase on one block size since the start")
+    @StackTrace(false)
+    @Period("endChunk")
+    static final class PhaseTotals extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Block Size")
+        long block;
+        @Label("Calls")
+        long calls;
+        @Label("Time")
+        @Timespan
+        long time;
+        @Label("Elements")
+        long elements;
+    }
+
+    @Name("strassen.RankTotals")
+    @Label("Strassen Rank Totals")
+    @Category("Strassen")
+    @Description("Bytes sent and received and time waited by one rank since the start")
+    @StackTrace(false)
+    @Period("endChunk")
+    static final class RankTotals extends Event {
+        @Label("Rank")
+        int rank;
+        @Label("Bytes Sent")
+        long sentBytes;
+        @Label("Bytes Received")
+        long receivedBytes;
+        @Label("Time Waited")
+        @Timespan
+        long waited;
+    }
+}
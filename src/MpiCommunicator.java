@@ -0,0 +1,128 @@
+import mpi.MPI;
+
+/** Communicator on top of an MPJ Express style MPI binding (mpi.MPI.COMM_WORLD), for running Distributive across
+    processes and nodes with mpjrun. Only the main thread of a rank may use it. **/
+public class MpiCommunicator implements Communicator {
+
+    private final mpi.Intracomm comm = MPI.COMM_WORLD;
+
+    /** MPI.Init, returns the communicator of all ranks **/
+    public static MpiCommunicator init(String[] args) {
+        MPI.Init(args);
+        return new MpiCommunicator();
+    }
+
+    /** MPI.Finalize, the communicator can not be used afterwards **/
+    public void finish() {
+        MPI.Finalize();
+    }
+
+    @Override
+    public int rank() {
+        return comm.Rank();
+    }
+
+    @Override
+    public int size() {
+        return comm.Size();
+    }
+
+    @Override
+    public Request isend(int[] buf, int offset, int count, int dest, int tag) {
+        return new MpiRequest(comm.Isend(buf, offset, count, MPI.INT, dest, tag));
+    }
+
+    @Override
+    public Request irecv(int[] buf, int offset, int count, int source, int tag) {
+        return new MpiRequest(comm.Irecv(buf, offset, count, MPI.INT,
+                source == ANY_SOURCE ? MPI.ANY_SOURCE : source, tag == ANY_TAG ? MPI.ANY_TAG : tag));
+    }
+
+    @Override
+    public void send(int[] buf, int offset, int count, int dest, int tag) {
+        comm.Send(buf, offset, count, MPI.INT, dest, tag);
+    }
+
+    @Override
+    public Status recv(int[] buf, int offset, int count, int source, int tag) {
+        return status(comm.Recv(buf, offset, count, MPI.INT,
+                source == ANY_SOURCE ? MPI.ANY_SOURCE : source, tag == ANY_TAG ? MPI.ANY_TAG : tag));
+    }
+
+    @Override
+    public void bcast(int[] buf, int offset, int count, int root) {
+        comm.Bcast(buf, offset, count, MPI.INT, root);
+    }
+
+    @Override
+    public void barrier() {
+        comm.Barrier();
+    }
+
+    @Override
+    public int waitAny(Request[] requests) {
+        mpi.Request[] raw = new mpi.Request[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            raw[i] = ((MpiRequest) requests[i]).request;
+        }
+        mpi.Status status = mpi.Request.Waitany(raw);
+        ((MpiRequest) requests[status.index]).complete(status(status));
+        return status.index;
+    }
+
+    @Override
+    public double wtime() {
+        return MPI.Wtime();
+    }
+
+    private static Status status(mpi.Status status) {
+        return new Status(status.source, status.tag, status.Get_count(MPI.INT));
+    }
+
+    // An MPI request, its status is kept once it has completed since MPI releases the request at that point
+    private static class MpiRequest implements Request {
+        final mpi.Request request;
+        Status status;
+
+        MpiRequest(mpi.Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public Status test() {
+            if (status == null) {
+                mpi.Status done = request.Test();
+                if (done != null) {
+                    complete(status(done));
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public Status await() {
+            if (status == null) {
+                complete(status(request.Wait()));
+            }
+            return status;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (status != null) {
+                return false;
+            }
+            request.Cancel();
+            mpi.Status done = request.Wait();
+            if (done.Test_cancelled()) {
+                return true;
+            }
+            complete(status(done));
+            return false;
+        }
+
+        void complete(Status done) {
+            status = done;
+        }
+    }
+}
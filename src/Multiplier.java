@@ -0,0 +1,252 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Long-lived engine for workloads of many products: single products, batches of independent ones and matrix
+    chains. It keeps one ForkJoinPool for its whole life, and every thread of the pool keeps its workspace
+    (Workspace.local), so once a size has been seen a call allocates nothing but its result, and nothing at all
+    when the caller passes C. Create one and reuse it, close() shuts the pool down unless it was the caller's.
+
+    A batch runs its products side by side: with at least as many products as threads each product is one task
+    that runs the sequential Strassen on its thread, with fewer the products fork their top Strassen levels too,
+    just deep enough to give every thread a few tasks. A chain is first parenthesized by dynamic programming on a
+    cost model of Strassen (see cost()), then the independent subproducts of the tree run concurrently.
+    With a ProductCache every product, and every product inside a batch or a chain, goes through the cache. **/
+public class Multiplier implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final ProductCache cache;
+    private final Variant variant;
+    private final int threshold;
+
+    /** One thread per core **/
+    public Multiplier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public Multiplier(int threads) {
+        this(threads, null);
+    }
+
+    /** cache may be null **/
+    public Multiplier(int threads, ProductCache cache) {
+        this(new ForkJoinPool(threads), true, cache);
+    }
+
+    /** Runs on a pool of the caller, which close() leaves running **/
+    public Multiplier(ForkJoinPool pool) {
+        this(pool, false, null);
+    }
+
+    private Multiplier(ForkJoinPool pool, boolean ownsPool, ProductCache cache) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.cache = cache;
+        this.variant = Variant.selected();
+        this.threshold = Crossover.threshold();
+    }
+
+    public Matrix multiply(Matrix A, Matrix B) {
+        check(A, B);
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C);
+        return C;
+    }
+
+    /** A * B into C, which may be a view **/
+    public void multiply(Matrix A, Matrix B, Matrix C) {
+        check(A, B, C);
+        int depth = Parallel.defaultDepth(pool);
+        pool.invoke(ForkJoinTask.adapt(() -> run(A, B, C, depth)));
+    }
+
+    /** A * B on the pool without waiting for it **/
+    public CompletableFuture<Matrix> submit(Matrix A, Matrix B) {
+        check(A, B);
+        Matrix C = new Matrix(A.rows, B.cols);
+        int depth = Parallel.defaultDepth(pool);
+        return CompletableFuture.runAsync(() -> run(A, B, C, depth), pool).thenApply(v -> C);
+    }
+
+    /** A[i] * B[i] for every i **/
+    public Matrix[] multiply(Matrix[] A, Matrix[] B) {
+        if (A.length != B.length) {
+            throw new IllegalArgumentException(A.length + " left operands but " + B.length + " right ones");
+        }
+        Matrix[] C = new Matrix[A.length];
+        for (int i = 0; i < A.length; i++) {
+            check(A[i], B[i]);
+            C[i] = new Matrix(A[i].rows, B[i].cols);
+        }
+        multiply(A, B, C);
+        return C;
+    }
+
+    /** C[i] = A[i] * B[i] for every i, into the caller's matrices **/
+    public void multiply(Matrix[] A, Matrix[] B, Matrix[] C) {
+        if (A.length != B.length || A.length != C.length) {
+            throw new IllegalArgumentException("Batch of " + A.length + " x " + B.length + " into " + C.length);
+        }
+        for (int i = 0; i < A.length; i++) {
+            check(A[i], B[i], C[i]);
+        }
+        if (A.length == 0) {
+            return;
+        }
+        // Fork levels per product so that the batch makes about four tasks per thread
+        int depth = 0;
+        for (long tasks = A.length; tasks < 4L * pool.getParallelism(); tasks *= 7) {
+            depth++;
+        }
+        pool.invoke(new Batch(A, B, C, 0, A.length, depth));
+    }
+
+    /** M[0] * M[1] * ... * M[last], multiplied in the cheapest order **/
+    public Matrix chain(Matrix... M) {
+        if (M.length == 0) {
+            throw new IllegalArgumentException("Empty chain");
+        }
+        int[] dims = new int[M.length + 1];
+        dims[0] = M[0].rows;
+        for (int i = 0; i < M.length; i++) {
+            if (M[i].rows != dims[i]) {
+                throw new IllegalArgumentException("Factor " + i + " is " + M[i].rows + "x" + M[i].cols
+                        + " but the chain needs " + dims[i] + " rows");
+            }
+            dims[i + 1] = M[i].cols;
+        }
+        if (M.length == 1) {
+            return M[0].copy();
+        }
+        return pool.invoke(new Chain(M, order(dims, threshold), 0, M.length - 1));
+    }
+
+    /** Cheapest parenthesization of a chain whose factor i is dims[i] x dims[i + 1]: split[i][j] is the factor
+        after which the product of factors i..j splits into two **/
+    static int[][] order(int[] dims, int threshold) {
+        int count = dims.length - 1;
+        double[][] cost = new double[count][count];
+        int[][] split = new int[count][count];
+        for (int length = 2; length <= count; length++) {
+            for (int i = 0; i + length - 1 < count; i++) {
+                int j = i + length - 1;
+                cost[i][j] = Double.MAX_VALUE;
+                for (int s = i; s < j; s++) {
+                    double c = cost[i][s] + cost[s + 1][j] + cost(dims[i], dims[s + 1], dims[j + 1], threshold);
+                    if (c < cost[i][j]) {
+                        cost[i][j] = c;
+                        split[i][j] = s;
+                    }
+                }
+            }
+        }
+        return split;
+    }
+
+    /** Estimated work of an m x k times k x n product: multiply-adds of the kernel below the crossover, above it
+        seven half size products plus the element-wise passes of a Strassen level. Only relative values matter **/
+    static double cost(int m, int k, int n, int threshold) {
+        if (Kernels.isBaseCase(m, k, n, threshold)) {
+            return (double) m * k * n;
+        }
+        double hm = m / 2;
+        double hk = k / 2;
+        double hn = n / 2;
+        return 7 * cost(m / 2, k / 2, n / 2, threshold) + 5 * hm * hk + 5 * hk * hn + 8 * hm * hn;
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    // A * B into C on a thread of the pool, through the cache if there is one
+    private void run(Matrix A, Matrix B, Matrix C, int depth) {
+        if (cache == null) {
+            product(A, B, C, depth).invoke();
+        } else {
+            cache.multiply(A, B, C, (a, b, c) -> product(a, b, c, depth).invoke());
+        }
+    }
+
+    private Parallel.StrassenTask product(Matrix A, Matrix B, Matrix C, int depth) {
+        return new Parallel.StrassenTask(A, B, C, depth, Parallel.DEFAULT_MIN_FORK_SIZE, threshold, variant);
+    }
+
+    private static void check(Matrix A, Matrix B) {
+        if (A.cols != B.rows) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x"
+                    + B.cols);
+        }
+    }
+
+    private static void check(Matrix A, Matrix B, Matrix C) {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x"
+                    + B.cols + " into " + C.rows + "x" + C.cols);
+        }
+    }
+
+    // Products [lo, hi) of a batch, halved until one is left
+    private class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Matrix[] A, B, C;
+        private final int lo, hi, depth;
+
+        Batch(Matrix[] A, Matrix[] B, Matrix[] C, int lo, int hi, int depth) {
+            this.A = A;
+            this.B = B;
+            this.C = C;
+            this.lo = lo;
+            this.hi = hi;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                run(A[lo], B[lo], C[lo], depth);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Batch(A, B, C, lo, mid, depth), new Batch(A, B, C, mid, hi, depth));
+        }
+    }
+
+    // Product of factors i..j of a chain, its two halves run side by side
+    private class Chain extends RecursiveTask<Matrix> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Matrix[] M;
+        private final int[][] split;
+        private final int i, j;
+
+        Chain(Matrix[] M, int[][] split, int i, int j) {
+            this.M = M;
+            this.split = split;
+            this.i = i;
+            this.j = j;
+        }
+
+        @Override
+        protected Matrix compute() {
+            if (i == j) {
+                return M[i];
+            }
+            Chain left = new Chain(M, split, i, split[i][j]);
+            Chain right = new Chain(M, split, split[i][j] + 1, j);
+            right.fork();
+            Matrix L = left.compute();
+            Matrix R = right.join();
+            Matrix C = new Matrix(L.rows, R.cols);
+            run(L, R, C, Parallel.defaultDepth(pool));
+            return C;
+        }
+    }
+}
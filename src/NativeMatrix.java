@@ -0,0 +1,150 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/** OffHeapMatrix in native memory (java.lang.foreign), for operands and temporaries that are too big to keep on
+    the heap without the garbage collector paying for them, but that fit into the memory of the machine. The
+    elements are one row-major segment aligned to ALIGNMENT bytes, allocated from an Arena, and freed when that
+    arena is closed: by close() for a matrix that has its own arena, by the owner of the arena otherwise. Unlike a
+    heap array a segment can hold more than 2^31 elements.
+
+    The memory of an Arena counts against -XX:MaxDirectMemorySize like direct buffers do, and that limit is the
+    maximum heap unless it is set. Matrices bigger than the heap need it raised, limit() says what it is.
+
+    segment() hands out the elements of a matrix, or of a band of whole rows of it, as a segment without copying
+    them, which is what SegmentCommunicator sends and receives. Matrices with their own arena may be used
+    from any thread, the ones in an arena of the caller from the threads that arena allows. **/
+public class NativeMatrix extends OffHeapMatrix {
+
+    /** Alignment of the elements in bytes, a cache line and the widest vector register **/
+    public static final long ALIGNMENT = 64;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT;
+
+    private final Storage storage;
+
+    private NativeMatrix(Storage storage, int row0, int col0, int rows, int cols, int rowEnd, int colEnd) {
+        super(row0, col0, rows, cols, rowEnd, colEnd);
+        this.storage = storage;
+    }
+
+    // The whole of storage
+    private static NativeMatrix whole(Storage storage) {
+        return new NativeMatrix(storage, 0, 0, storage.rows, storage.cols, storage.rows, storage.cols);
+    }
+
+    /** New zeroed rows x cols matrix in an arena of its own, close() frees it **/
+    public static NativeMatrix allocate(int rows, int cols) {
+        Arena arena = Arena.ofShared();
+        try {
+            return whole(new Storage(arena, true, rows, cols));
+        } catch (RuntimeException | Error e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /** New zeroed rows x cols matrix in arena, it lives as long as the arena and close() does nothing **/
+    public static NativeMatrix allocate(Arena arena, int rows, int cols) {
+        return whole(new Storage(arena, false, rows, cols));
+    }
+
+    /** Copy of X in native memory of its own **/
+    public static NativeMatrix copyOf(Matrix X) {
+        NativeMatrix copy = allocate(X.rows, X.cols);
+        copy.store(X, 1, false);
+        return copy;
+    }
+
+    /** Bytes the native matrices of this JVM may hold together, -XX:MaxDirectMemorySize or else the maximum heap **/
+    public static long limit() {
+        long max = 0;
+        try {
+            HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            max = Long.parseLong(vm.getVMOption("MaxDirectMemorySize").getValue());
+        } catch (RuntimeException e) {
+            // Not a HotSpot JVM, assume the default
+        }
+        return max > 0 ? max : Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public NativeMatrix view(int i, int j, int rows, int cols) {
+        checkView(i, j, rows, cols);
+        return new NativeMatrix(storage, row0 + i, col0 + j, rows, cols, rowEnd(i, rows), colEnd(j, cols));
+    }
+
+    /** The rows x cols elements of this matrix as one segment, without copying them. Only a view of whole rows
+        with no padding has its elements in one piece **/
+    public MemorySegment segment() {
+        if (col0 != 0 || cols != storage.cols || colEnd != cols || row0 + rows > rowEnd) {
+            throw new IllegalStateException("A " + rows + "x" + cols + " view at (" + row0 + ", " + col0 + ") of "
+                    + storage.rows + "x" + storage.cols + " is not contiguous");
+        }
+        return storage.segment.asSlice(storage.offset(row0, 0), 4L * rows * cols);
+    }
+
+    /** Frees the memory if the matrix has its own arena **/
+    @Override
+    public void close() {
+        if (storage.owned) {
+            storage.arena.close();
+        }
+    }
+
+    @Override
+    void read(int row, int col, int[] dst, int offset, int count) {
+        MemorySegment.copy(storage.segment, INT, storage.offset(row, col), dst, offset, count);
+    }
+
+    @Override
+    void write(int row, int col, int[] src, int offset, int count) {
+        MemorySegment.copy(src, offset, storage.segment, INT, storage.offset(row, col), count);
+    }
+
+    @Override
+    int element(int row, int col) {
+        return storage.segment.get(INT, storage.offset(row, col));
+    }
+
+    @Override
+    void element(int row, int col, int value) {
+        storage.segment.set(INT, storage.offset(row, col), value);
+    }
+
+    // The segment and its arena, shared by all views of it
+    private static class Storage {
+        final Arena arena;
+        final boolean owned;
+        final int rows;
+        final int cols;
+        final MemorySegment segment;
+
+        Storage(Arena arena, boolean owned, int rows, int cols) {
+            if (rows < 0 || cols < 0) {
+                throw new IllegalArgumentException("Bad shape " + rows + "x" + cols);
+            }
+            this.arena = arena;
+            this.owned = owned;
+            this.rows = rows;
+            this.cols = cols;
+            // Memory of an arena starts out zeroed
+            try {
+                this.segment = arena.allocate(4L * rows * cols, ALIGNMENT);
+            } catch (OutOfMemoryError e) {
+                OutOfMemoryError error = new OutOfMemoryError("Cannot allocate a " + rows + "x" + cols
+                        + " native matrix within -XX:MaxDirectMemorySize (" + limit() + " bytes)");
+                error.initCause(e);
+                throw error;
+            }
+        }
+
+        // Byte offset of element (row, col)
+        long offset(int row, int col) {
+            return 4 * ((long) row * cols + col);
+        }
+    }
+}
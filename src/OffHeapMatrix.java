@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Row-major int matrix whose elements live outside of the Java heap, so that the garbage collector neither scans
+    nor copies them however big they are: in a memory mapped file (MappedMatrix) or in native memory
+    (NativeMatrix). OutOfCore multiplies them.
+
+    Like Matrix an OffHeapMatrix can be a view of a bigger one. A view may reach past the bottom or the right
+    edge of the matrix it is taken from: the elements out there read as zero and writes to them are dropped, so
+    odd sizes split into halves that are padded with zeros without a padded copy ever being made. The edge is the
+    one of that matrix, and of every view it was taken from in turn, not the one of the storage, so the padding
+    of a view of part of a bigger matrix never reads or writes the elements of the bigger matrix next to it.
+
+    Elements move between the storage and the heap a row at a time with load() and store(), always front to
+    back. Separate views of one storage may be loaded and stored by different threads at the same time. **/
+public abstract class OffHeapMatrix implements AutoCloseable {
+
+    public final int rows;
+    public final int cols;
+
+    // Position of this view in the storage, and where the elements it holds end: the ones of the storage inside
+    // this view and all the views it was taken from. Past that it reads as zero and drops writes
+    final int row0;
+    final int col0;
+    final int rowEnd;
+    final int colEnd;
+
+    OffHeapMatrix(int row0, int col0, int rows, int cols, int rowEnd, int colEnd) {
+        this.row0 = row0;
+        this.col0 = col0;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowEnd = rowEnd;
+        this.colEnd = colEnd;
+    }
+
+    /** A rows x cols window at (i, j) sharing the storage with this matrix. It may reach past the end of this
+        matrix, see above **/
+    public abstract OffHeapMatrix view(int i, int j, int rows, int cols);
+
+    /** Releases the storage, views must not be used afterwards **/
+    @Override
+    public abstract void close() throws IOException;
+
+    // count elements of a row of the storage from col into dst, or from src into it
+    abstract void read(int row, int col, int[] dst, int offset, int count);
+
+    abstract void write(int row, int col, int[] src, int offset, int count);
+
+    // One element of the storage
+    abstract int element(int row, int col);
+
+    abstract void element(int row, int col, int value);
+
+    public int get(int i, int j) {
+        int row = row0 + i;
+        int col = col0 + j;
+        if (row >= rowEnd || col >= colEnd) {
+            return 0;
+        }
+        return element(row, col);
+    }
+
+    public void set(int i, int j, int value) {
+        int row = row0 + i;
+        int col = col0 + j;
+        if (row < rowEnd && col < colEnd) {
+            element(row, col, value);
+        }
+    }
+
+    /** X = sign * this, or X += sign * this when add is set. X has the shape of this matrix **/
+    public void load(Matrix X, int sign, boolean add) {
+        checkShape(X);
+        int width = width();
+        int[] row = add || sign < 0 ? new int[width] : null;
+        for (int i = 0; i < rows; i++) {
+            int target = X.offset + i * X.stride;
+            int storageRow = row0 + i;
+            if (storageRow >= rowEnd || width == 0) {
+                if (!add) {
+                    Arrays.fill(X.data, target, target + cols, 0);
+                }
+                continue;
+            }
+            if (row == null) {
+                read(storageRow, col0, X.data, target, width);
+            } else {
+                read(storageRow, col0, row, 0, width);
+                if (add) {
+                    for (int j = 0; j < width; j++) {
+                        X.data[target + j] += sign * row[j];
+                    }
+                } else {
+                    for (int j = 0; j < width; j++) {
+                        X.data[target + j] = -row[j];
+                    }
+                }
+            }
+            if (!add) {
+                Arrays.fill(X.data, target + width, target + cols, 0);
+            }
+        }
+    }
+
+    /** this = sign * X, or this += sign * X when add is set, leaving out whatever is past the end of this
+        matrix **/
+    public void store(Matrix X, int sign, boolean add) {
+        checkShape(X);
+        int width = width();
+        int height = Math.min(rows, Math.max(0, rowEnd - row0));
+        int[] row = add || sign < 0 ? new int[width] : null;
+        for (int i = 0; i < height && width > 0; i++) {
+            int source = X.offset + i * X.stride;
+            int storageRow = row0 + i;
+            if (row == null) {
+                write(storageRow, col0, X.data, source, width);
+                continue;
+            }
+            if (add) {
+                read(storageRow, col0, row, 0, width);
+                for (int j = 0; j < width; j++) {
+                    row[j] += sign * X.data[source + j];
+                }
+            } else {
+                for (int j = 0; j < width; j++) {
+                    row[j] = -X.data[source + j];
+                }
+            }
+            write(storageRow, col0, row, 0, width);
+        }
+    }
+
+    /** Copy of the whole matrix on the heap **/
+    public Matrix toMatrix() {
+        Matrix X = new Matrix(rows, cols);
+        load(X, 1, false);
+        return X;
+    }
+
+    void checkView(int i, int j, int rows, int cols) {
+        if (i < 0 || j < 0 || rows < 0 || cols < 0) {
+            throw new IndexOutOfBoundsException("View " + rows + "x" + cols + " at (" + i + ", " + j + ")");
+        }
+    }
+
+    // Where the elements of a view at (i, j) of rows x cols of this matrix end
+    int rowEnd(int i, int rows) {
+        return (int) Math.min(rowEnd, (long) row0 + i + rows);
+    }
+
+    int colEnd(int j, int cols) {
+        return (int) Math.min(colEnd, (long) col0 + j + cols);
+    }
+
+    // Number of columns of this view that hold elements
+    private int width() {
+        return Math.min(cols, Math.max(0, colEnd - col0));
+    }
+
+    private void checkShape(Matrix X) {
+        if (X.rows != rows || X.cols != cols) {
+            throw new IllegalArgumentException("Expected " + rows + "x" + cols + ", got " + X.rows + "x" + X.cols);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/** Strassen for matrices bigger than the heap, with A, B and C in memory mapped files (see MappedMatrix) or in
+    native memory (NativeMatrix). The top levels of the recursion run off the heap: a level that does not fit into
+    the memory budget forms the operand sums S and T of each of its seven products in scratch matrices of half the
+    size, recurses on them into a third one, and adds that product into the quadrants of C. Those three are reused
+    by all seven products of the level, so the scratch adds up to less than the size of A, B and C. The first
+    level whose products fit into the budget sums its operands straight into the heap, multiplies them there with
+    Sequential or Parallel, and adds the product into the quadrants of C. The scratch is of the kind of C, files
+    next to a MappedMatrix and native memory next to a NativeMatrix, so the heap never holds more than the budget
+    and the cost of garbage collection does not grow with the matrices.
+
+    Everything off the heap moves in bands of whole rows, front to back, so the page cache sees long sequential
+    runs it can read ahead and write back, instead of the scattered accesses of a blocked traversal.
+
+    -Dstrassen.ooc.budget is the memory (bytes) the products on the heap may use, scratch of the engine and every
+    thread of it included, by default half of the maximum heap, -Dstrassen.ooc.threads the threads they use
+    (default: all cores) and -Dstrassen.ooc.dir where the scratch files go (default java.io.tmpdir). With -Dstrassen.ooc.native=true main keeps its matrices in native
+    memory instead of files, that memory is limited by -XX:MaxDirectMemorySize (see NativeMatrix), which main
+    checks before it starts. Odd sizes are padded with zeros on the fly, see OffHeapMatrix. **/
+public class OutOfCore {
+
+    // Ints moved between two off-heap matrices at a time
+    private static final int BUFFER = 1 << 22;
+
+    private final long budget;
+    private final int threshold;
+    private final Variant variant;
+    private final ForkJoinPool pool;
+    // Scratch in native memory rather than in files
+    private final boolean inMemory;
+
+    private OutOfCore(long budget, int threshold, Variant variant, ForkJoinPool pool, boolean inMemory) {
+        this.budget = budget;
+        this.threshold = threshold;
+        this.variant = variant;
+        this.pool = pool;
+        this.inMemory = inMemory;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // OutOfCore <n> multiplies two random n x n matrices in scratch files,
+        // OutOfCore <A file> <B file> <C file> multiplies the matrix files A and B into a new file C
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("Usage: OutOfCore <n> | OutOfCore <A file> <B file> <C file>");
+            return;
+        }
+        if (args.length == 3) {
+            try (MappedMatrix A = MappedMatrix.open(Paths.get(args[0]));
+                 MappedMatrix B = MappedMatrix.open(Paths.get(args[1]));
+                 MappedMatrix C = MappedMatrix.create(Paths.get(args[2]), A.rows, B.cols)) {
+                long start = System.nanoTime();
+                multiply(A, B, C);
+                C.force();
+                System.out.println("Out-of-core runtime: " + (System.nanoTime() - start) / 1e6 + "ms");
+            }
+            return;
+        }
+        int n = Integer.parseInt(args[0]);
+        boolean inMemory = Boolean.getBoolean("strassen.ooc.native");
+        // A, B, C and the three scratch matrices of every level above the heap, together at most the size of A
+        long needed = 16L * n * n;
+        if (inMemory && needed > NativeMatrix.limit()) {
+            throw new IllegalStateException("Native " + n + "x" + n + " matrices need about " + (needed >> 20)
+                    + " MB but -XX:MaxDirectMemorySize allows " + (NativeMatrix.limit() >> 20)
+                    + " MB, it defaults to the maximum heap: raise it, e.g. -XX:MaxDirectMemorySize="
+                    + ((needed >> 30) + 1) + "g");
+        }
+        try (OffHeapMatrix A = scratch(n, n, inMemory);
+             OffHeapMatrix B = scratch(n, n, A instanceof NativeMatrix);
+             OffHeapMatrix C = scratch(n, n, A instanceof NativeMatrix)) {
+            random(A, 1);
+            random(B, 2);
+            long start = System.nanoTime();
+            multiply(A, B, C);
+            System.out.println("Out-of-core runtime: " + (System.nanoTime() - start) / 1e6 + "ms");
+            System.out.println(verify(A, B, C, 16) ? "Sampled entries match" : "Sampled entries DO NOT match");
+        }
+    }
+
+    /** C = A * B with the budget, threads and variant from the system properties **/
+    public static void multiply(OffHeapMatrix A, OffHeapMatrix B, OffHeapMatrix C) throws IOException {
+        int threads = Integer.getInteger("strassen.ooc.threads", Runtime.getRuntime().availableProcessors());
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            multiply(A, B, C, budget(), pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /** C = A * B where the products on the heap use at most budget bytes, on pool or, if it is null, on the
+        calling thread **/
+    public static void multiply(OffHeapMatrix A, OffHeapMatrix B, OffHeapMatrix C, long budget, ForkJoinPool pool)
+            throws IOException {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " by " + B.rows + "x"
+                    + B.cols + " into " + C.rows + "x" + C.cols);
+        }
+        new OutOfCore(budget, Crossover.threshold(), Variant.selected(), pool, C instanceof NativeMatrix)
+                .product(A, B, C);
+    }
+
+    /** Memory the products on the heap may use, -Dstrassen.ooc.budget or half of the maximum heap **/
+    public static long budget() {
+        return Long.getLong("strassen.ooc.budget", Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    // C = A * B, C is overwritten
+    private void product(OffHeapMatrix A, OffHeapMatrix B, OffHeapMatrix C) throws IOException {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        if (fits(m, k, n)) {
+            Matrix P = new Matrix(m, n);
+            Distributive.product(A.toMatrix(), B.toMatrix(), P, workspace(m, k, n), variant, pool);
+            C.store(P, 1, false);
+            return;
+        }
+        int hm = (m + 1) / 2;
+        int hk = (k + 1) / 2;
+        int hn = (n + 1) / 2;
+        Decomposition plan = new Decomposition(variant, 1, 2 * hm, 2 * hk, 2 * hn);
+        OffHeapMatrix[] a = quadrants(A, hm, hk);
+        OffHeapMatrix[] b = quadrants(B, hk, hn);
+        OffHeapMatrix[] c = quadrants(C, hm, hn);
+        // Quadrants of C that have been written, the first product that goes into one overwrites it
+        boolean[] written = new boolean[4];
+        if (fits(hm, hk, hn)) {
+            Matrix S = new Matrix(hm, hk);
+            Matrix T = new Matrix(hk, hn);
+            Matrix P = new Matrix(hm, hn);
+            Workspace ws = workspace(hm, hk, hn);
+            for (int j = 0; j < plan.count; j++) {
+                load(a, plan, j, true, S);
+                load(b, plan, j, false, T);
+                Distributive.product(S, T, P, ws, variant, pool);
+                for (int q = 0; q < 4; q++) {
+                    int sign = plan.outSign(j, q);
+                    if (sign != 0) {
+                        c[q].store(P, sign, written[q]);
+                        written[q] = true;
+                    }
+                }
+            }
+            return;
+        }
+        try (OffHeapMatrix S = scratch(hm, hk, inMemory);
+             OffHeapMatrix T = scratch(hk, hn, inMemory);
+             OffHeapMatrix P = scratch(hm, hn, inMemory)) {
+            int[] signs = new int[4];
+            for (int j = 0; j < plan.count; j++) {
+                for (int q = 0; q < 4; q++) {
+                    signs[q] = plan.leftSign(j, q);
+                }
+                stream(a, signs, S, 1, false);
+                for (int q = 0; q < 4; q++) {
+                    signs[q] = plan.rightSign(j, q);
+                }
+                stream(b, signs, T, 1, false);
+                product(S, T, P);
+                for (int q = 0; q < 4; q++) {
+                    int sign = plan.outSign(j, q);
+                    if (sign != 0) {
+                        stream(new OffHeapMatrix[]{P}, new int[]{1}, c[q], sign, written[q]);
+                        written[q] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // True if an m x k times k x n product fits into the budget on the heap: both operands and the product, each
+    // in one array, and the scratch of the engine
+    private boolean fits(int m, int k, int n) {
+        long a = (long) m * k;
+        long b = (long) k * n;
+        long c = (long) m * n;
+        if (Math.max(a, Math.max(b, c)) > Integer.MAX_VALUE - 8) {
+            return false;
+        }
+        return 4 * (a + b + c + heapScratch(m, k, n)) <= budget;
+    }
+
+    // Ints of scratch an m x k times k x n product takes on the heap. On the calling thread that is the workspace
+    // of Sequential. On the pool it is the temporaries of every level Parallel forks (the five sums of each
+    // operand and four products of a classic level, Winograd needs fewer), whose seven subtasks may all be
+    // running at once, and a workspace for the leaves on every thread of the pool
+    private long heapScratch(int m, int k, int n) {
+        if (pool == null) {
+            return Workspace.required(m, k, n, threshold);
+        }
+        long total = 0;
+        long tasks = 1;
+        int depth = Parallel.defaultDepth(pool);
+        while (depth-- > 0 && Math.min(m, Math.min(k, n)) >= Parallel.DEFAULT_MIN_FORK_SIZE
+                && !Kernels.isBaseCase(m, k, n, threshold)) {
+            m /= 2;
+            k /= 2;
+            n /= 2;
+            total += tasks * (5L * m * k + 5L * k * n + 4L * m * n);
+            tasks *= 7;
+        }
+        return total + pool.getParallelism() * Workspace.required(m, k, n, threshold);
+    }
+
+    private Workspace workspace(int m, int k, int n) {
+        return pool == null ? new Workspace(m, k, n, threshold) : null;
+    }
+
+    // Zeroed scratch matrix in native memory or in a temporary file
+    private static OffHeapMatrix scratch(int rows, int cols, boolean inMemory) throws IOException {
+        return inMemory ? NativeMatrix.allocate(rows, cols) : MappedMatrix.temporary(rows, cols);
+    }
+
+    // The quadrants 11, 12, 21, 22 of X, rows x cols each, the ones at the bottom and right may reach past X
+    private static OffHeapMatrix[] quadrants(OffHeapMatrix X, int rows, int cols) {
+        return new OffHeapMatrix[]{X.view(0, 0, rows, cols), X.view(0, cols, rows, cols),
+                X.view(rows, 0, rows, cols), X.view(rows, cols, rows, cols)};
+    }
+
+    // Sums the quadrants of the left (or right) operand of product j straight into X on the heap
+    private static void load(OffHeapMatrix[] quadrants, Decomposition plan, int product, boolean left, Matrix X) {
+        boolean first = true;
+        for (int q = 0; q < 4; q++) {
+            int sign = left ? plan.leftSign(product, q) : plan.rightSign(product, q);
+            if (sign != 0) {
+                quadrants[q].load(X, sign, !first);
+                first = false;
+            }
+        }
+        if (first) {
+            X.fill(0);
+        }
+    }
+
+    // target = sign * (sum of signs[i] * sources[i]), or target += that when add is set, a band of rows at a time
+    private static void stream(OffHeapMatrix[] sources, int[] signs, OffHeapMatrix target, int sign, boolean add) {
+        int cols = target.cols;
+        int band = Math.max(1, Math.min(target.rows, BUFFER / Math.max(1, cols)));
+        Matrix buffer = new Matrix(band, cols);
+        for (int row = 0; row < target.rows; row += band) {
+            int rows = Math.min(band, target.rows - row);
+            Matrix part = buffer.view(0, 0, rows, cols);
+            boolean first = true;
+            for (int i = 0; i < sources.length; i++) {
+                if (signs[i] != 0) {
+                    sources[i].view(row, 0, rows, cols).load(part, signs[i], !first);
+                    first = false;
+                }
+            }
+            if (first) {
+                part.fill(0);
+            }
+            target.view(row, 0, rows, cols).store(part, sign, add);
+        }
+    }
+
+    // Fills X with random elements in [0, 10), a band of rows at a time
+    private static void random(OffHeapMatrix X, long seed) {
+        Random random = new Random(seed);
+        int band = Math.max(1, Math.min(X.rows, BUFFER / Math.max(1, X.cols)));
+        Matrix buffer = new Matrix(band, X.cols);
+        for (int row = 0; row < X.rows; row += band) {
+            int rows = Math.min(band, X.rows - row);
+            Matrix part = buffer.view(0, 0, rows, X.cols);
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < X.cols; j++) {
+                    part.set(i, j, random.nextInt(10));
+                }
+            }
+            X.view(row, 0, rows, X.cols).store(part, 1, false);
+        }
+    }
+
+    // Checks samples random entries of C against the dot product of their row of A and column of B
+    private static boolean verify(OffHeapMatrix A, OffHeapMatrix B, OffHeapMatrix C, int samples) {
+        Random random = new Random(3);
+        for (int s = 0; s < samples; s++) {
+            int i = random.nextInt(C.rows);
+            int j = random.nextInt(C.cols);
+            Matrix row = A.view(i, 0, 1, A.cols).toMatrix();
+            int sum = 0;
+            for (int x = 0; x < A.cols; x++) {
+                sum += row.get(0, x) * B.get(x, j);
+            }
+            if (sum != C.get(i, j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
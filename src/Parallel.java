@@ -1,26 +1,52 @@
-import java.util.Random;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class Parallel {
 
-    public static void main(String[] args) {
+    // Whether main runs on virtual threads instead of the common pool
+    static final boolean VIRTUAL = "virtual".equalsIgnoreCase(System.getProperty("strassen.threads"));
+
+    public static void main(String[] args) throws IOException {
+        // Parallel <A file> <B file> <C file> multiplies two matrix files (see MatrixFile) into C, "-" prints it
+        if (args.length == 3) {
+            Matrix A = MatrixFile.read(Paths.get(args[0]));
+            Matrix B = MatrixFile.read(Paths.get(args[1]));
+            if (A.cols != B.rows) {
+                System.out.println("Cannot multiply " + A.rows + "x" + A.cols + " by " + B.rows + "x" + B.cols);
+                return;
+            }
+            long start = System.currentTimeMillis();
+            // -Dstrassen.threads=virtual runs the product on virtual threads (see VirtualStrassen)
+            Matrix C = VIRTUAL ? multiplyVirtual(A, B) : multiply(A, B, ForkJoinPool.commonPool());
+            System.out.println("Time taken to multiply matrices: " + (System.currentTimeMillis() - start)
+                    + " milliseconds");
+            MatrixFile.output(args[2], C);
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         System.out.println("Enter the size of the matrix NxN: ");
         int n = sc.nextInt();
-        int[][] matrix_A = createMatrix(n);
+        Matrix matrix_A = createMatrix(n);
         System.out.println("Matrix A: ");
         printMatrix(matrix_A, n, n);
 
-        int[][] matrix_B = createMatrix(n);
+        Matrix matrix_B = createMatrix(n);
         System.out.println("Matrix B: ");
         printMatrix(matrix_B, n, n);
 
         long startTime = System.currentTimeMillis();
 
-        int[][] result = multiply(matrix_A, matrix_B);
+        Matrix result = VIRTUAL ? multiplyVirtual(matrix_A, matrix_B) : multiply(matrix_A, matrix_B, ForkJoinPool.commonPool());
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
@@ -30,156 +56,555 @@ public class Parallel {
         System.out.println("Time taken to multiply matrices: " + duration + " milliseconds");
     }
 
-    public static void printMatrix(int[][] A, int row, int col) {
-        for (int i = 0; i < row; i++) {
-            for (int j = 0; j < col; j++) {
-                System.out.print(" " + A[i][j]);
-            }
-            System.out.println();
-        }
-        System.out.println();
+    public static void printMatrix(Matrix A, int row, int col) {
+        MatrixFile.print(A, row, col, System.out);
     }
 
-    public static int[][] createMatrix(int n) {
-        int[][] res = new int[n][n];
-        Random rand = new Random();
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                res[i][j] = rand.nextInt(10);
-            }
-        }
-        return res;
+    public static Matrix createMatrix(int n) {
+        return Matrix.random(n, n, 10);
     }
 
-    /* This method is responsible for creating and managing the lifecycle of the ExecutorService.
-       This is used to call the multiplyAsync method which performs the matrix multiplication asynchronously,
-       it initializes an ExecutorService to manage a pool of threads that will execute the matrix
-       multiplication tasks in parallel. The multiplyAsync method uses CompletableFuture to execute
-       parts of the matrix multiplication in parallel.
+    /* This is used to call the multiplyAsync method which performs the matrix multiplication asynchronously,
+       on a pool of threads that will execute the matrix multiplication tasks in parallel. The multiplyAsync
+       method uses CompletableFuture to execute parts of the matrix multiplication in parallel.
        The multiply method waits for the result of the asynchronous computation using the join() method on the
-       CompletableFuture returned by multiplyAsync. */
-    public static int[][] multiply(int[][] A, int[][] B) {
-        // Create an ExecutorService to manage a pool of threads
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        // Perform matrix multiplication asynchronously using the executor
-        CompletableFuture<int[][]> resultFuture = multiplyAsync(A, B, executor);
-        // Wait for the result of the asynchronous computation
-        int[][] result = resultFuture.join();
-        // Shutdown the executor to free up resources
-        executor.shutdown();
-        // Return the resulting matrix
-        return result;
+       CompletableFuture returned by multiplyAsync. The pool is created once and shared by all calls (its threads
+       are daemons, so it never keeps the JVM alive), a call does not pay for starting and stopping threads. */
+    public static Matrix multiply(Matrix A, Matrix B) {
+        return multiplyAsync(A, B, SharedExecutor.INSTANCE).join();
+    }
+
+    // The executor of multiply(A, B), created on first use
+    private static class SharedExecutor {
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                run -> {
+                    Thread thread = new Thread(run, "strassen-async");
+                    thread.setDaemon(true);
+                    return thread;
+                });
     }
 
     // If the matrix is small, perform naive multiplication asynchronously
-    public static CompletableFuture<int[][]> multiplyAsync(int[][] A, int[][] B, ExecutorService executor) {
-        // Get the size of the matrix
-        int n = A.length;
-        int[][] C = new int[n][n];
-
-        /* If the matrix size is smaller than 32 we use the normal matrix multiplication because the strassen's algorithm is
-         * more efficient for larger matrices */
-        if (n <= 32) {
+    public static CompletableFuture<Matrix> multiplyAsync(Matrix A, Matrix B, ExecutorService executor) {
+        // Get the sizes of the matrices, A is m x k and B is k x n
+        if (A.cols != B.rows) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x" + B.cols);
+        }
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+
+        /* If the matrix size is below the crossover (see Crossover) we use the normal matrix multiplication because the
+         * strassen's algorithm is more efficient for larger matrices */
+        if (Kernels.isBaseCase(m, k, n, Crossover.threshold())) {
             // Perform matrix multiplication using the naive approach
-            return CompletableFuture.supplyAsync(() -> naiveWay(A, B), executor);
-        }
-
-        // Initialize submatrices for divide and conquer
-        int[][] A11 = new int[n / 2][n / 2];
-        int[][] A12 = new int[n / 2][n / 2];
-        int[][] A21 = new int[n / 2][n / 2];
-        int[][] A22 = new int[n / 2][n / 2];
-        int[][] B11 = new int[n / 2][n / 2];
-        int[][] B12 = new int[n / 2][n / 2];
-        int[][] B21 = new int[n / 2][n / 2];
-        int[][] B22 = new int[n / 2][n / 2];
-
-        // Split the matrices A and B into 4 submatrices each
-        split(A, A11, 0, 0);
-        split(A, A12, 0, n / 2);
-        split(A, A21, n / 2, 0);
-        split(A, A22, n / 2, n / 2);
-        split(B, B11, 0, 0);
-        split(B, B12, 0, n / 2);
-        split(B, B21, n / 2, 0);
-        split(B, B22, n / 2, n / 2);
-
-        // Perform matrix multiplications in parallel using CompletableFuture
-        CompletableFuture<int[][]> s1 = multiplyAsync(add(A11, A22), add(B11, B22), executor);
-        CompletableFuture<int[][]> s2 = multiplyAsync(add(A21, A22), B11, executor);
-        CompletableFuture<int[][]> s3 = multiplyAsync(A11, subtract(B12, B22), executor);
-        CompletableFuture<int[][]> s4 = multiplyAsync(A22, subtract(B21, B11), executor);
-        CompletableFuture<int[][]> s5 = multiplyAsync(add(A11, A12), B22, executor);
-        CompletableFuture<int[][]> s6 = multiplyAsync(subtract(A21, A11), add(B11, B12), executor);
-        CompletableFuture<int[][]> s7 = multiplyAsync(subtract(A12, A22), add(B21, B22), executor);
-
-        // Combine the results of the asynchronous computations
-        return s1.thenCombine(s2, (r1, r2) -> {
-            int[][] c11 = add(subtract(add(r1, s4.join()), s5.join()), s7.join());
-            int[][] c12 = add(s3.join(), s5.join());
-            int[][] c21 = add(s2.join(), s4.join());
-            int[][] c22 = add(subtract(add(r1, s3.join()), s2.join()), s6.join());
-
-            // Join the submatrices into the final result matrix
-            join(C, c11, 0, 0);
-            join(C, c12, 0, n / 2);
-            join(C, c21, n / 2, 0);
-            join(C, c22, n / 2, n / 2);
-
-            return C;
+            long queued = Metrics.now();
+            return CompletableFuture.supplyAsync(() -> {
+                Metrics.record(Metrics.Phase.QUEUE, queued, Math.max(m, Math.max(k, n)), 1);
+                return naiveWay(A, B);
+            }, executor);
+        }
+
+        // Views of the 4 submatrices of A and B for divide and conquer, they share the elements of A and B.
+        // For odd sizes they leave out the last row/column, that part is added by Kernels.peel at the end
+        Matrix A11 = split(A, 0, 0);
+        Matrix A12 = split(A, 0, k / 2);
+        Matrix A21 = split(A, m / 2, 0);
+        Matrix A22 = split(A, m / 2, k / 2);
+        Matrix B11 = split(B, 0, 0);
+        Matrix B12 = split(B, 0, n / 2);
+        Matrix B21 = split(B, k / 2, 0);
+        Matrix B22 = split(B, k / 2, n / 2);
+
+        // The operand sums are built row-striped on the executor, every product starts as soon as both of its
+        // operands are ready
+        CompletableFuture<Matrix> s1 = product(addAsync(A11, A22, executor), addAsync(B11, B22, executor), executor);
+        CompletableFuture<Matrix> s2 = product(addAsync(A21, A22, executor), done(B11), executor);
+        CompletableFuture<Matrix> s3 = product(done(A11), subtractAsync(B12, B22, executor), executor);
+        CompletableFuture<Matrix> s4 = product(done(A22), subtractAsync(B21, B11, executor), executor);
+        CompletableFuture<Matrix> s5 = product(addAsync(A11, A12, executor), done(B22), executor);
+        CompletableFuture<Matrix> s6 = product(subtractAsync(A21, A11, executor), addAsync(B11, B12, executor), executor);
+        CompletableFuture<Matrix> s7 = product(subtractAsync(A12, A22, executor), addAsync(B21, B22, executor), executor);
+
+        // Combine the results once all seven are done, again row-striped on the executor. Nothing here waits
+        // with join(), so no pool thread is ever blocked on another task
+        return CompletableFuture.allOf(s1, s2, s3, s4, s5, s6, s7).thenCompose(v -> {
+            Matrix C = new Matrix(m, n);
+            Matrix M1 = s1.join(), M2 = s2.join(), M3 = s3.join(), M4 = s4.join();
+            Matrix M5 = s5.join(), M6 = s6.join(), M7 = s7.join();
+            Matrix C11 = split(C, 0, 0), C12 = split(C, 0, n / 2), C21 = split(C, m / 2, 0), C22 = split(C, m / 2, n / 2);
+            return stripes(C11.rows, C11.cols, executor,
+                    (r0, r1) -> combine(M1, M2, M3, M4, M5, M6, M7, C11, C12, C21, C22, r0, r1))
+                    .thenApply(w -> {
+                        Kernels.peel(A, B, C);
+                        return C;
+                    });
         });
     }
 
-    public static void split(int[][] P, int[][] C, int iB, int jB) {
-        for (int i = iB; i < C.length + iB; i++) {
-            for (int j = jB; j < C.length + jB; j++) {
-                C[i - iB][j - jB] = P[i][j];
-            }
+    private static CompletableFuture<Matrix> product(CompletableFuture<Matrix> A, CompletableFuture<Matrix> B,
+                                                     ExecutorService executor) {
+        return A.thenCombine(B, (a, b) -> multiplyAsync(a, b, executor)).thenCompose(f -> f);
+    }
+
+    private static CompletableFuture<Matrix> done(Matrix A) {
+        return CompletableFuture.completedFuture(A);
+    }
+
+    // A + B, row-striped across the executor when the matrices are big enough
+    public static CompletableFuture<Matrix> addAsync(Matrix A, Matrix B, ExecutorService executor) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        return stripes(A.rows, A.cols, executor, (r0, r1) -> Matrix.add(rows(A, r0, r1), rows(B, r0, r1), rows(C, r0, r1)))
+                .thenApply(v -> C);
+    }
+
+    // A - B, row-striped across the executor when the matrices are big enough
+    public static CompletableFuture<Matrix> subtractAsync(Matrix A, Matrix B, ExecutorService executor) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        return stripes(A.rows, A.cols, executor, (r0, r1) -> Matrix.subtract(rows(A, r0, r1), rows(B, r0, r1), rows(C, r0, r1)))
+                .thenApply(v -> C);
+    }
+
+    // Element-wise passes over fewer elements than this run on one thread, bigger ones are cut into row stripes
+    public static final int STRIPE_MIN_ELEMENTS = 1 << 15;
+
+    // Work on rows [r0, r1) of an element-wise pass
+    interface RowRange {
+        void run(int r0, int r1);
+    }
+
+    /* Runs op over rows [0, rows) as row stripes on the executor, about one stripe per core but none smaller than
+       STRIPE_MIN_ELEMENTS, small passes run right away on the calling thread */
+    static CompletableFuture<Void> stripes(int rows, int cols, ExecutorService executor, RowRange op) {
+        long elements = (long) rows * cols;
+        int count = (int) Math.min(Math.min(rows, Runtime.getRuntime().availableProcessors()),
+                elements / STRIPE_MIN_ELEMENTS);
+        if (count <= 1) {
+            op.run(0, rows);
+            return CompletableFuture.completedFuture(null);
         }
+        CompletableFuture<?>[] parts = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            int r0 = (int) ((long) rows * i / count);
+            int r1 = (int) ((long) rows * (i + 1) / count);
+            long queued = Metrics.now();
+            parts[i] = CompletableFuture.runAsync(() -> {
+                Metrics.record(Metrics.Phase.QUEUE, queued, Math.max(r1 - r0, cols), 1);
+                op.run(r0, r1);
+            }, executor);
+        }
+        if (Metrics.ENABLED && executor instanceof ThreadPoolExecutor pool) {
+            Metrics.queued(pool.getQueue().size());
+        }
+        return CompletableFuture.allOf(parts);
+    }
+
+    // Rows [r0, r1) of A as a view
+    static Matrix rows(Matrix A, int r0, int r1) {
+        return A.view(r0, 0, r1 - r0, A.cols);
     }
 
-   public static void join(int[][] C, int[][] P, int iB, int jB) {
-        for (int i = iB; i < C.length + iB; i++) {
-            for (int j = jB; j < C.length + jB; j++) {
-                P[i][j] = C[i - iB][j - jB];
+    /* Rows [r0, r1) of all four quadrants of C in one pass over the products:
+       C11 = M1 + M4 - M5 + M7, C12 = M3 + M5, C21 = M2 + M4, C22 = M1 - M2 + M3 + M6.
+       M1, M2 and M3 are read before anything is written, so they may be C11, C21 and C12 themselves */
+    static void combine(Matrix M1, Matrix M2, Matrix M3, Matrix M4, Matrix M5, Matrix M6, Matrix M7,
+                        Matrix C11, Matrix C12, Matrix C21, Matrix C22, int r0, int r1) {
+        long start = Metrics.now();
+        int cols = C11.cols;
+        if (Kernels.VECTOR) {
+            VectorKernels.combine(M1, M2, M3, M4, M5, M6, M7, C11, C12, C21, C22, r0, r1);
+            Metrics.record(Metrics.Phase.ADD, start, Math.max(C11.rows, cols), 4L * (r1 - r0) * cols);
+            return;
+        }
+        for (int i = r0; i < r1; i++) {
+            int o1 = M1.index(i, 0), o2 = M2.index(i, 0), o3 = M3.index(i, 0), o4 = M4.index(i, 0);
+            int o5 = M5.index(i, 0), o6 = M6.index(i, 0), o7 = M7.index(i, 0);
+            int q11 = C11.index(i, 0), q12 = C12.index(i, 0), q21 = C21.index(i, 0), q22 = C22.index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                int m1 = M1.data[o1 + j];
+                int m2 = M2.data[o2 + j];
+                int m3 = M3.data[o3 + j];
+                int m4 = M4.data[o4 + j];
+                int m5 = M5.data[o5 + j];
+                C11.data[q11 + j] = m1 + m4 - m5 + M7.data[o7 + j];
+                C12.data[q12 + j] = m3 + m5;
+                C21.data[q21 + j] = m2 + m4;
+                C22.data[q22 + j] = m1 - m2 + m3 + M6.data[o6 + j];
             }
         }
+        Metrics.record(Metrics.Phase.ADD, start, Math.max(C11.rows, cols), 4L * (r1 - r0) * cols);
     }
 
-    public static int[][] subtract(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] C = new int[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                C[i][j] = A[i][j] - B[i][j];
-            }
+    /* Fork/join Strassen on a pool owned by the caller, so it can be reused across calls. Only the top levels fork
+       (down to parallelDepth levels, and never below minForkSize), which gives 7^depth tasks. Everything below
+       runs as the allocation-free sequential Strassen inside the leaf task. The seven products of a level are
+       forked with invokeAll, a worker that waits for them keeps running other tasks of the pool (work stealing)
+       instead of blocking, so the pool can not starve however deep the recursion goes. */
+    public static Matrix multiply(Matrix A, Matrix B, ForkJoinPool pool) {
+        return multiply(A, B, pool, defaultDepth(pool), DEFAULT_MIN_FORK_SIZE);
+    }
+
+    public static Matrix multiply(Matrix A, Matrix B, ForkJoinPool pool, int parallelDepth, int minForkSize) {
+        if (A.cols != B.rows) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x" + B.cols);
         }
+        Matrix C = new Matrix(A.rows, B.cols);
+        pool.invoke(new StrassenTask(A, B, C, parallelDepth, minForkSize, Crossover.threshold(), Variant.selected()));
         return C;
     }
 
-    public static int[][] add(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] C = new int[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                C[i][j] = A[i][j] + B[i][j];
+    // Same as above, but writes A * B into C (which may be a view) with the given variant, for callers that keep
+    // their own buffers
+    public static void multiply(Matrix A, Matrix B, Matrix C, ForkJoinPool pool, Variant variant) {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x"
+                    + B.cols + " into " + C.rows + "x" + C.cols);
+        }
+        pool.invoke(new StrassenTask(A, B, C, defaultDepth(pool), DEFAULT_MIN_FORK_SIZE, Crossover.threshold(), variant));
+    }
+
+    /* Strassen on virtual threads with one structured scope per level, for callers that would rather block than
+       chain futures or fork tasks. The CPU work is bounded to one permit per core, see VirtualStrassen. The engine
+       is created once and shared by all calls */
+    public static Matrix multiplyVirtual(Matrix A, Matrix B) {
+        return SharedVirtual.INSTANCE.multiply(A, B);
+    }
+
+    // The engine of multiplyVirtual, created on first use
+    private static class SharedVirtual {
+        static final VirtualStrassen INSTANCE = new VirtualStrassen();
+    }
+
+    // Below this size a subproblem is not worth a task of its own
+    public static final int DEFAULT_MIN_FORK_SIZE = 128;
+
+    // Enough levels for about four leaf tasks per worker, so stealing can even out the load: 7^depth >= 4 * parallelism
+    public static int defaultDepth(ForkJoinPool pool) {
+        return defaultDepth(pool.getParallelism());
+    }
+
+    static int defaultDepth(int parallelism) {
+        int depth = 0;
+        for (long tasks = 1; tasks < 4L * parallelism; tasks *= 7) {
+            depth++;
+        }
+        return depth;
+    }
+
+    // One Strassen level that writes A * B into C (a view), forking its seven products as subtasks
+    static class StrassenTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Matrix A, B, C;
+        private final int depth;
+        private final int minForkSize;
+        private final int threshold;
+        private final Variant variant;
+        private final long created = Metrics.now();
+
+        StrassenTask(Matrix A, Matrix B, Matrix C, int depth, int minForkSize, int threshold, Variant variant) {
+            this.A = A;
+            this.B = B;
+            this.C = C;
+            this.depth = depth;
+            this.minForkSize = minForkSize;
+            this.threshold = threshold;
+            this.variant = variant;
+        }
+
+        @Override
+        protected void compute() {
+            if (!Metrics.ENABLED) {
+                strassen();
+                return;
             }
+            Metrics.TaskEvent event = Metrics.started(created, Math.max(A.rows, Math.max(A.cols, B.cols)),
+                    getQueuedTaskCount());
+            strassen();
+            Metrics.done(event);
         }
-        return C;
+
+        private void strassen() {
+            int m = A.rows;
+            int k = A.cols;
+            int n = B.cols;
+            if (depth <= 0 || Math.min(m, Math.min(k, n)) < minForkSize || Kernels.isBaseCase(m, k, n, threshold)) {
+                // Leaf task, the rest of the recursion runs sequentially in the workspace this thread keeps
+                Sequential.multiply(A, B, C, Workspace.local(m, k, n, threshold), variant);
+                return;
+            }
+            Matrix A11 = split(A, 0, 0);
+            Matrix A12 = split(A, 0, k / 2);
+            Matrix A21 = split(A, m / 2, 0);
+            Matrix A22 = split(A, m / 2, k / 2);
+            Matrix B11 = split(B, 0, 0);
+            Matrix B12 = split(B, 0, n / 2);
+            Matrix B21 = split(B, k / 2, 0);
+            Matrix B22 = split(B, k / 2, n / 2);
+            Matrix C11 = split(C, 0, 0);
+            Matrix C12 = split(C, 0, n / 2);
+            Matrix C21 = split(C, m / 2, 0);
+            Matrix C22 = split(C, m / 2, n / 2);
+            if (Sequential.ZERO_BLOCKS && zeroBlocks(new Matrix[]{A11, A12, A21, A22},
+                    new Matrix[]{B11, B12, B21, B22}, new Matrix[]{C11, C12, C21, C22})) {
+                Kernels.peel(A, B, C);
+                return;
+            }
+            if (variant == Variant.WINOGRAD) {
+                winograd(A11, A12, A21, A22, B11, B12, B21, B22, C11, C12, C21, C22);
+                Kernels.peel(A, B, C);
+                return;
+            }
+
+            // The ten operand sums are built as tasks of their own, each one split into row stripes when it is big
+            Matrix S1 = new Matrix(m / 2, k / 2), S2 = new Matrix(m / 2, k / 2), S5 = new Matrix(m / 2, k / 2);
+            Matrix S6 = new Matrix(m / 2, k / 2), S7 = new Matrix(m / 2, k / 2);
+            Matrix T1 = new Matrix(k / 2, n / 2), T3 = new Matrix(k / 2, n / 2), T4 = new Matrix(k / 2, n / 2);
+            Matrix T6 = new Matrix(k / 2, n / 2), T7 = new Matrix(k / 2, n / 2);
+            invokeAll(
+                    new RowStripes(S1.rows, S1.cols, (r0, r1) -> Matrix.add(rows(A11, r0, r1), rows(A22, r0, r1), rows(S1, r0, r1))),
+                    new RowStripes(S2.rows, S2.cols, (r0, r1) -> Matrix.add(rows(A21, r0, r1), rows(A22, r0, r1), rows(S2, r0, r1))),
+                    new RowStripes(S5.rows, S5.cols, (r0, r1) -> Matrix.add(rows(A11, r0, r1), rows(A12, r0, r1), rows(S5, r0, r1))),
+                    new RowStripes(S6.rows, S6.cols, (r0, r1) -> Matrix.subtract(rows(A21, r0, r1), rows(A11, r0, r1), rows(S6, r0, r1))),
+                    new RowStripes(S7.rows, S7.cols, (r0, r1) -> Matrix.subtract(rows(A12, r0, r1), rows(A22, r0, r1), rows(S7, r0, r1))),
+                    new RowStripes(T1.rows, T1.cols, (r0, r1) -> Matrix.add(rows(B11, r0, r1), rows(B22, r0, r1), rows(T1, r0, r1))),
+                    new RowStripes(T3.rows, T3.cols, (r0, r1) -> Matrix.subtract(rows(B12, r0, r1), rows(B22, r0, r1), rows(T3, r0, r1))),
+                    new RowStripes(T4.rows, T4.cols, (r0, r1) -> Matrix.subtract(rows(B21, r0, r1), rows(B11, r0, r1), rows(T4, r0, r1))),
+                    new RowStripes(T6.rows, T6.cols, (r0, r1) -> Matrix.add(rows(B11, r0, r1), rows(B12, r0, r1), rows(T6, r0, r1))),
+                    new RowStripes(T7.rows, T7.cols, (r0, r1) -> Matrix.add(rows(B21, r0, r1), rows(B22, r0, r1), rows(T7, r0, r1))));
+
+            // M1, M2 and M3 are written straight into C11, C21 and C12, only M4 to M7 need buffers of their own
+            Matrix M4 = new Matrix(m / 2, n / 2);
+            Matrix M5 = new Matrix(m / 2, n / 2);
+            Matrix M6 = new Matrix(m / 2, n / 2);
+            Matrix M7 = new Matrix(m / 2, n / 2);
+            invokeAll(
+                    subtask(S1, T1, C11),
+                    subtask(S2, B11, C21),
+                    subtask(A11, T3, C12),
+                    subtask(A22, T4, M4),
+                    subtask(S5, B22, M5),
+                    subtask(S6, T6, M6),
+                    subtask(S7, T7, M7));
+
+            // One striped pass builds all four quadrants, it reads M1, M2 and M3 before it overwrites them
+            new RowStripes(C11.rows, C11.cols,
+                    (r0, r1) -> combine(C11, C21, C12, M4, M5, M6, M7, C11, C12, C21, C22, r0, r1)).invoke();
+            Kernels.peel(A, B, C);
+        }
+
+        /* Strassen-Winograd level. Its partial sums depend on each other (S2 needs S1, S4 needs S2), so instead of
+           chaining passes all four S are built in one pass over the quadrants of A, all four T in one over B,
+           and C in one pass over the products. P1, P6, P7 and P5 are written straight into C11, C12, C21 and
+           C22, the combine reads them before it overwrites them */
+        private void winograd(Matrix A11, Matrix A12, Matrix A21, Matrix A22, Matrix B11, Matrix B12, Matrix B21,
+                              Matrix B22, Matrix C11, Matrix C12, Matrix C21, Matrix C22) {
+            Matrix S1 = new Matrix(A11.rows, A11.cols), S2 = new Matrix(A11.rows, A11.cols);
+            Matrix S3 = new Matrix(A11.rows, A11.cols), S4 = new Matrix(A11.rows, A11.cols);
+            Matrix T1 = new Matrix(B11.rows, B11.cols), T2 = new Matrix(B11.rows, B11.cols);
+            Matrix T3 = new Matrix(B11.rows, B11.cols), T4 = new Matrix(B11.rows, B11.cols);
+            invokeAll(
+                    new RowStripes(S1.rows, S1.cols, (r0, r1) -> winogradSums(A11, A12, A21, A22, S1, S2, S3, S4, r0, r1, false)),
+                    new RowStripes(T1.rows, T1.cols, (r0, r1) -> winogradSums(B11, B12, B21, B22, T1, T2, T3, T4, r0, r1, true)));
+
+            Matrix P2 = new Matrix(C11.rows, C11.cols);
+            Matrix P3 = new Matrix(C11.rows, C11.cols);
+            Matrix P4 = new Matrix(C11.rows, C11.cols);
+            invokeAll(
+                    subtask(A11, B11, C11),
+                    subtask(A12, B21, P2),
+                    subtask(S4, B22, P3),
+                    subtask(A22, T4, P4),
+                    subtask(S1, T1, C22),
+                    subtask(S2, T2, C12),
+                    subtask(S3, T3, C21));
+
+            new RowStripes(C11.rows, C11.cols,
+                    (r0, r1) -> winogradCombine(P2, P3, P4, C11, C12, C21, C22, r0, r1)).invoke();
+        }
+
+        /* Quadrants of zeros, the same as Sequential.zeroBlocks: with at most seven block products A_ip B_pj left
+           that do not involve one, those run as subtasks instead of the Strassen products. The first product of
+           every quadrant of C goes straight into it, the second (there are at most two) into a buffer that is
+           added afterwards. Returns false without having done anything when that does not apply */
+        private boolean zeroBlocks(Matrix[] a, Matrix[] b, Matrix[] c) {
+            int aBlocks = nonZeroBlocks(a);
+            int bBlocks = nonZeroBlocks(b);
+            if (blockProducts(aBlocks, bBlocks) > 7) {
+                return false;
+            }
+            List<StrassenTask> tasks = new ArrayList<>();
+            Matrix[] second = new Matrix[4];
+            for (int q = 0; q < 4; q++) {
+                boolean first = true;
+                for (int p = 0; p < 2; p++) {
+                    // A_ip B_pj for the quadrant q = 2i + j of C
+                    if (!blockProduct(aBlocks, bBlocks, q, p)) {
+                        continue;
+                    }
+                    Matrix left = a[q & 2 | p];
+                    Matrix right = b[2 * p + (q & 1)];
+                    if (first) {
+                        tasks.add(subtask(left, right, c[q]));
+                        first = false;
+                    } else {
+                        second[q] = new Matrix(c[q].rows, c[q].cols);
+                        tasks.add(subtask(left, right, second[q]));
+                    }
+                }
+                if (first) {
+                    c[q].fill(0);
+                }
+            }
+            invokeAll(tasks);
+            for (int q = 0; q < 4; q++) {
+                if (second[q] != null) {
+                    Matrix.add(c[q], second[q], c[q]);
+                }
+            }
+            return true;
+        }
+
+        private StrassenTask subtask(Matrix A, Matrix B, Matrix C) {
+            return new StrassenTask(A, B, C, depth - 1, minForkSize, threshold, variant);
+        }
+    }
+
+    // Bit q of the result is set if quadrant q (X11, X12, X21, X22) has an element that is not zero
+    static int nonZeroBlocks(Matrix[] x) {
+        int blocks = 0;
+        for (int q = 0; q < 4; q++) {
+            blocks |= x[q].isZero() ? 0 : 1 << q;
+        }
+        return blocks;
+    }
+
+    // Whether the block product A_ip B_pj of the quadrant q = 2i + j of C involves no quadrant of zeros
+    static boolean blockProduct(int aBlocks, int bBlocks, int q, int p) {
+        return (aBlocks >> (q & 2 | p) & bBlocks >> (2 * p + (q & 1)) & 1) != 0;
+    }
+
+    // Number of such block products, eight when there is no quadrant of zeros
+    static int blockProducts(int aBlocks, int bBlocks) {
+        int products = 0;
+        for (int q = 0; q < 4; q++) {
+            for (int p = 0; p < 2; p++) {
+                products += blockProduct(aBlocks, bBlocks, q, p) ? 1 : 0;
+            }
+        }
+        return products;
     }
 
-    public static int[][] naiveWay(int[][] matA, int[][] matB) {
-        int n = matA.length;
-        int[][] prod = new int[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                int sum = 0;
-                for (int k = 0; k < n; k++) {
-                    sum += matA[i][k] * matB[k][j];
+    /* Rows [r0, r1) of the four Winograd sums in one pass over the quadrants X11..X22 of A (forB false):
+       S1 = X21 + X22, S2 = S1 - X11, S3 = X11 - X21, S4 = X12 - S2,
+       or of B (forB true) where the roles of the quadrants are transposed:
+       T1 = X12 - X11, T2 = X22 - T1, T3 = X22 - X12, T4 = T2 - X21 */
+    static void winogradSums(Matrix X11, Matrix X12, Matrix X21, Matrix X22, Matrix Y1, Matrix Y2, Matrix Y3,
+                             Matrix Y4, int r0, int r1, boolean forB) {
+        int cols = Y1.cols;
+        for (int i = r0; i < r1; i++) {
+            int o11 = X11.index(i, 0), o12 = X12.index(i, 0), o21 = X21.index(i, 0), o22 = X22.index(i, 0);
+            int y = Y1.index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                int x11 = X11.data[o11 + j], x12 = X12.data[o12 + j], x21 = X21.data[o21 + j], x22 = X22.data[o22 + j];
+                if (forB) {
+                    int t1 = x12 - x11;
+                    int t2 = x22 - t1;
+                    Y1.data[y + j] = t1;
+                    Y2.data[y + j] = t2;
+                    Y3.data[y + j] = x22 - x12;
+                    Y4.data[y + j] = t2 - x21;
+                } else {
+                    int s1 = x21 + x22;
+                    int s2 = s1 - x11;
+                    Y1.data[y + j] = s1;
+                    Y2.data[y + j] = s2;
+                    Y3.data[y + j] = x11 - x21;
+                    Y4.data[y + j] = x12 - s2;
                 }
-                prod[i][j] = sum;
             }
         }
+    }
+
+    /* Rows [r0, r1) of C from the Winograd products, with P1, P5, P6 and P7 already in C11, C22, C12 and C21:
+       U2 = P1 + P6, U3 = U2 + P7, C11 = P1 + P2, C12 = U2 + P5 + P3, C21 = U3 - P4, C22 = U3 + P5 */
+    static void winogradCombine(Matrix P2, Matrix P3, Matrix P4, Matrix C11, Matrix C12, Matrix C21, Matrix C22,
+                                int r0, int r1) {
+        int cols = C11.cols;
+        for (int i = r0; i < r1; i++) {
+            int q11 = C11.index(i, 0), q12 = C12.index(i, 0), q21 = C21.index(i, 0), q22 = C22.index(i, 0);
+            int o2 = P2.index(i, 0), o3 = P3.index(i, 0), o4 = P4.index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                int p1 = C11.data[q11 + j];
+                int p5 = C22.data[q22 + j];
+                int u2 = p1 + C12.data[q12 + j];
+                int u3 = u2 + C21.data[q21 + j];
+                C11.data[q11 + j] = p1 + P2.data[o2 + j];
+                C12.data[q12 + j] = u2 + p5 + P3.data[o3 + j];
+                C21.data[q21 + j] = u3 - P4.data[o4 + j];
+                C22.data[q22 + j] = u3 + p5;
+            }
+        }
+    }
+
+    // Splits an element-wise pass into halves of rows until a stripe is smaller than STRIPE_MIN_ELEMENTS
+    static class RowStripes extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int r0, r1, cols;
+        private final transient RowRange op;
+
+        RowStripes(int rows, int cols, RowRange op) {
+            this(0, rows, cols, op);
+        }
+
+        private RowStripes(int r0, int r1, int cols, RowRange op) {
+            this.r0 = r0;
+            this.r1 = r1;
+            this.cols = cols;
+            this.op = op;
+        }
+
+        @Override
+        protected void compute() {
+            if (r1 - r0 < 2 || (long) (r1 - r0) * cols <= STRIPE_MIN_ELEMENTS) {
+                op.run(r0, r1);
+                return;
+            }
+            int mid = (r0 + r1) >>> 1;
+            invokeAll(new RowStripes(r0, mid, cols, op), new RowStripes(mid, r1, cols, op));
+        }
+    }
+
+    // Returns the P/2 sized (rounded down) submatrix at (iB, jB) as a view of P
+    public static Matrix split(Matrix P, int iB, int jB) {
+        return P.view(iB, jB, P.rows / 2, P.cols / 2);
+    }
+
+   public static void join(Matrix C, Matrix P, int iB, int jB) {
+        Matrix target = P.view(iB, jB, C.rows, C.cols);
+        if (target.data != C.data || target.offset != C.offset) {
+            target.copyFrom(C);
+        }
+    }
+
+    public static Matrix subtract(Matrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.subtract(A, B, C);
+        return C;
+    }
+
+    public static Matrix add(Matrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.add(A, B, C);
+        return C;
+    }
+
+    // Base case multiplication, done by the kernel selected in Kernels
+    public static Matrix naiveWay(Matrix matA, Matrix matB) {
+        Matrix prod = new Matrix(matA.rows, matB.cols);
+        Kernels.multiply(matA.data, matA.offset, matA.stride, matB.data, matB.offset, matB.stride,
+                prod.data, 0, prod.stride, matA.rows, matA.cols, matB.cols);
         return prod;
     }
 }
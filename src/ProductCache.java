@@ -0,0 +1,220 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Cache of products in front of an engine, for workloads that multiply the same operands again. Products are keyed
+    by the shapes and a 128 bit content hash of both operands (two independent 64 bit hashes computed in one pass,
+    about a nanosecond per element, seeded at random for every cache so nobody can build colliding inputs ahead
+    of time). An entry keeps copies of its operands next to the product, and a hit is only taken once they compare
+    equal to the operands asked for, so a collision costs a multiplication, never a wrong product. A repeat costs
+    three passes over the operands and a copy instead of a multiplication. The cache holds at most a budget of
+    bytes (-Dstrassen.cache.bytes, default 256 MiB), operands included, and drops the least recently used
+    products beyond it.
+
+    With levels > 0 (-Dstrassen.cache.levels) a product that is not in the cache is computed as the 7^levels block
+    products of Decomposition, and each of those is cached under the hash of its operand sums. Products that share
+    blocks, for example a fixed transformation against inputs that only differ in some quadrants, then reuse the
+    block products they have in common.
+
+    All methods may be called from any number of threads, the engine runs outside of the lock. Two threads that
+    miss on the same product at the same time both compute it. A hit hands out a copy, the cached products are
+    never visible to the callers. **/
+public class ProductCache {
+
+    /** Writes A * B into C, like Sequential.multiply(A, B, C, ws) or Parallel.multiply(A, B, C, pool, variant) **/
+    public interface Engine {
+        void multiply(Matrix A, Matrix B, Matrix C);
+    }
+
+    /** Counters since the cache was created, and what it holds now **/
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %.1f MB", hits,
+                    misses, 100 * hitRate(), evictions, entries, bytes / 1e6);
+        }
+    }
+
+    private record Key(int m, int k, int n, long a1, long a2, long b1, long b2) {
+    }
+
+    // A product and copies of the operands it was computed from
+    private record Entry(Matrix A, Matrix B, Matrix product) {
+    }
+
+    // Bytes an entry costs next to its elements
+    private static final int OVERHEAD = 128;
+
+    private final long budget;
+    private final int levels;
+    private final Variant variant;
+    private final int threshold;
+
+    // Seeds of the two hashes
+    private final long seed1 = ThreadLocalRandom.current().nextLong();
+    private final long seed2 = ThreadLocalRandom.current().nextLong();
+
+    // Least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Budget and levels from -Dstrassen.cache.bytes and -Dstrassen.cache.levels **/
+    public ProductCache() {
+        this(Long.getLong("strassen.cache.bytes", 256L << 20), Integer.getInteger("strassen.cache.levels", 0));
+    }
+
+    public ProductCache(long budgetBytes, int levels) {
+        if (budgetBytes < 0 || levels < 0 || levels > Decomposition.MAX_LEVELS) {
+            throw new IllegalArgumentException("Bad cache budget " + budgetBytes + " or levels " + levels);
+        }
+        this.budget = budgetBytes;
+        this.levels = levels;
+        this.variant = Variant.selected();
+        this.threshold = Crossover.threshold();
+    }
+
+    public Matrix multiply(Matrix A, Matrix B, Engine engine) {
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C, engine);
+        return C;
+    }
+
+    /** C = A * B, from the cache if it has it, otherwise computed by engine and cached **/
+    public void multiply(Matrix A, Matrix B, Matrix C, Engine engine) {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x"
+                    + B.cols + " into " + C.rows + "x" + C.cols);
+        }
+        Key key = key(A, B);
+        Matrix cached = get(key, A, B);
+        if (cached != null) {
+            C.copyFrom(cached);
+            return;
+        }
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        if (levels > 0 && (Math.min(m, Math.min(k, n)) >> levels) >= threshold) {
+            blocks(A, B, C, engine);
+        } else {
+            engine.multiply(A, B, C);
+        }
+        put(key, A, B, C.copy());
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), bytes);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    // C = A * B as the block products of a decomposition, each one from the cache or computed and cached
+    private void blocks(Matrix A, Matrix B, Matrix C, Engine engine) {
+        Decomposition plan = new Decomposition(variant, levels, A.rows, A.cols, B.cols);
+        Matrix S = new Matrix(plan.bm, plan.bk);
+        Matrix T = new Matrix(plan.bk, plan.bn);
+        C.fill(0);
+        for (int j = 0; j < plan.count; j++) {
+            Matrix left = plan.left(j, A, S);
+            Matrix right = plan.right(j, B, T);
+            Key key = key(left, right);
+            Matrix P = get(key, left, right);
+            if (P == null) {
+                P = new Matrix(plan.bm, plan.bn);
+                engine.multiply(left, right, P);
+                // Nobody outside sees P, so it is cached as it is
+                put(key, left, right, P);
+            }
+            plan.accumulate(j, P, C);
+        }
+        Kernels.peel(A, B, C, plan.bm << levels, plan.bk << levels, plan.bn << levels);
+    }
+
+    // The cached product of A and B, null if there is none or the entry under the key is one of other operands.
+    // Entries are never changed, so they are compared outside of the lock
+    private Matrix get(Key key, Matrix A, Matrix B) {
+        Entry cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached != null && !(cached.A().contentEquals(A) && cached.B().contentEquals(B))) {
+            cached = null;
+        }
+        (cached == null ? misses : hits).increment();
+        return cached == null ? null : cached.product();
+    }
+
+    private void put(Key key, Matrix A, Matrix B, Matrix P) {
+        long size = size(P) + size(A) + size(B);
+        if (size > budget) {
+            return;
+        }
+        Entry entry = new Entry(A.copy(), B.copy(), P);
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            bytes += size - (old == null ? 0 : size(old));
+            for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); bytes > budget && it.hasNext(); ) {
+                Entry evicted = it.next().getValue();
+                it.remove();
+                bytes -= size(evicted);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static long size(Entry entry) {
+        return size(entry.A()) + size(entry.B()) + size(entry.product());
+    }
+
+    private static long size(Matrix P) {
+        return 4L * P.rows * P.cols + OVERHEAD;
+    }
+
+    private Key key(Matrix A, Matrix B) {
+        long[] a = hash(A, seed1, seed2);
+        long[] b = hash(B, seed1, seed2);
+        return new Key(A.rows, A.cols, B.cols, a[0], a[1], b[0], b[1]);
+    }
+
+    /** Two independent 64 bit hashes of the elements of X (a view hashes like its compact copy), starting from the
+        given seeds **/
+    static long[] hash(Matrix X, long seed1, long seed2) {
+        long h1 = seed1 ^ X.rows;
+        long h2 = seed2 ^ X.cols;
+        for (int i = 0; i < X.rows; i++) {
+            int row = X.offset + i * X.stride;
+            for (int j = 0; j < X.cols; j++) {
+                long v = X.data[row + j];
+                h1 = (h1 ^ v) * 0x9e3779b97f4a7c15L;
+                h2 = Long.rotateLeft(h2 + v * 0xc2b2ae3d27d4eb4fL, 31) * 0x165667b19e3779f9L;
+            }
+        }
+        return new long[]{mix(h1), mix(h2)};
+    }
+
+    // Final avalanche of a hash (the finalizer of SplitMix64)
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,147 @@
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/** Messages that come from and go to segments of ints, like the elements of a NativeMatrix, on top of any
+    Communicator. The Foreign Memory API is a preview on JDK 21, so it is kept out of Communicator: only the code
+    that sends segments needs --enable-preview, Distributive, the transports and Metrics load without it.
+
+    The transports only move int arrays, so a segment is staged through one: a send copies it before it starts,
+    a receive copies the message into it once it has completed. The requests of this communicator, for arrays
+    as well, are its own, and waitAny only takes those. **/
+public final class SegmentCommunicator implements Communicator {
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT;
+
+    private final Communicator comm;
+
+    private SegmentCommunicator(Communicator comm) {
+        this.comm = comm;
+    }
+
+    /** comm with the segment operations added, comm itself if it has them already **/
+    public static SegmentCommunicator of(Communicator comm) {
+        return comm instanceof SegmentCommunicator segments ? segments : new SegmentCommunicator(comm);
+    }
+
+    @Override
+    public int rank() {
+        return comm.rank();
+    }
+
+    @Override
+    public int size() {
+        return comm.size();
+    }
+
+    @Override
+    public Request isend(int[] buf, int offset, int count, int dest, int tag) {
+        return new Staged(comm.isend(buf, offset, count, dest, tag), null, null);
+    }
+
+    @Override
+    public Request irecv(int[] buf, int offset, int count, int source, int tag) {
+        return new Staged(comm.irecv(buf, offset, count, source, tag), null, null);
+    }
+
+    /** Starts sending the ints of buf to rank dest **/
+    public Request isend(MemorySegment buf, int dest, int tag) {
+        int[] staged = buf.toArray(INT);
+        return new Staged(comm.isend(staged, 0, staged.length, dest, tag), null, null);
+    }
+
+    /** Starts receiving at most as many ints as buf holds into it **/
+    public Request irecv(MemorySegment buf, int source, int tag) {
+        int[] staged = new int[Math.toIntExact(buf.byteSize() / 4)];
+        return new Staged(comm.irecv(staged, 0, staged.length, source, tag), staged, buf);
+    }
+
+    public void send(MemorySegment buf, int dest, int tag) {
+        isend(buf, dest, tag).await();
+    }
+
+    public Status recv(MemorySegment buf, int source, int tag) {
+        return irecv(buf, source, tag).await();
+    }
+
+    @Override
+    public void bcast(int[] buf, int offset, int count, int root) {
+        comm.bcast(buf, offset, count, root);
+    }
+
+    @Override
+    public void barrier() {
+        comm.barrier();
+    }
+
+    @Override
+    public int waitAny(Request[] requests) {
+        Request[] inner = new Request[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            inner[i] = ((Staged) requests[i]).request;
+        }
+        int index = comm.waitAny(inner);
+        ((Staged) requests[index]).complete(inner[index].test());
+        return index;
+    }
+
+    @Override
+    public double wtime() {
+        return comm.wtime();
+    }
+
+    // A request of the wrapped communicator, a receive into a segment copies the staged message over once it has
+    // completed
+    private static final class Staged implements Request {
+        final Request request;
+        final int[] staged;
+        final MemorySegment target;
+        Status status;
+
+        Staged(Request request, int[] staged, MemorySegment target) {
+            this.request = request;
+            this.staged = staged;
+            this.target = target;
+        }
+
+        @Override
+        public Status test() {
+            if (status == null) {
+                Status done = request.test();
+                if (done != null) {
+                    complete(done);
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public Status await() {
+            if (status == null) {
+                complete(request.await());
+            }
+            return status;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (status != null) {
+                return false;
+            }
+            if (request.cancel()) {
+                return true;
+            }
+            complete(request.test());
+            return false;
+        }
+
+        void complete(Status done) {
+            if (status != null) {
+                return;
+            }
+            if (target != null) {
+                MemorySegment.copy(staged, 0, target, INT, 0, done.count());
+            }
+            status = done;
+        }
+    }
+}
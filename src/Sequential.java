@@ -1,22 +1,42 @@
-import java.util.Random;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class Sequential{
 
-    public static void main(String[] args){
+    /** Levels of the recursion look for quadrants of zeros and skip the products they make zero, unless
+        -Dstrassen.zeroblocks=false (see zeroBlocks) **/
+    static final boolean ZERO_BLOCKS = !"false".equalsIgnoreCase(System.getProperty("strassen.zeroblocks"));
+
+    public static void main(String[] args) throws IOException {
+        // Sequential <A file> <B file> <C file> multiplies two matrix files (see MatrixFile) into C, "-" prints it
+        if (args.length == 3){
+            Matrix A = MatrixFile.read(Paths.get(args[0]));
+            Matrix B = MatrixFile.read(Paths.get(args[1]));
+            if (A.cols != B.rows){
+                System.out.println("Cannot multiply " + A.rows + "x" + A.cols + " by " + B.rows + "x" + B.cols);
+                return;
+            }
+            long start = System.nanoTime();
+            Matrix C = multiply(A, B);
+            System.out.println("Sequential runtime: " + (System.nanoTime() - start) / 1e6 + "ms");
+            MatrixFile.output(args[2], C);
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         System.out.println("Enter the size of the matrix NxN: ");
         int n = sc.nextInt();
-        int[][] matrix_A = createMatrix(n);
+        Matrix matrix_A = createMatrix(n);
 
         System.out.println("Matrix A: ");
         printMatrix(matrix_A, n, n);
 
-        int[][] matrix_B = createMatrix(n);
+        Matrix matrix_B = createMatrix(n);
         System.out.println("Matrix B: ");
         printMatrix(matrix_B, n, n);
 
-        int[][] result_matrix =  multiply(matrix_A, matrix_B);
+        Matrix result_matrix =  multiply(matrix_A, matrix_B);
 
         System.out.println("Result Matrix: ");
         printMatrix(result_matrix, n, n);
@@ -26,136 +46,426 @@ public class Sequential{
     }
 
     /** Method to create a matrix with random integers **/
-    public static int[][] createMatrix(int n){
-        int[][] res = new int[n][n];
-        Random rand = new Random();
-        for (int i=0; i<n; i++){
-            for (int j=0; j<n; j++){
-                res[i][j] = rand.nextInt(10);
-            }
-        }
-        return res;
+    public static Matrix createMatrix(int n){
+        return Matrix.random(n, n, 10);
     }
 
-    public static int[][] seqMM(int[][] a, int[][] b){
-        int n = a.length;
-        int[][] res = new int[n][n];
-        for (int i = 0; i<n; i++){
-            for (int j=0; j<n; j++){
-                res[i][j] = 0;
-                for (int k=0; k<n; k++){
-                    res[i][j] += a[i][k]*b[k][j];
-                }
-            }
-        }
+    public static Matrix seqMM(Matrix a, Matrix b){
+        Matrix res = new Matrix(a.rows, b.cols);
+        seqMM(a, b, res);
         return res;
     }
 
+    /** Naive multiplication written straight into res, which may be a view **/
+    public static void seqMM(Matrix a, Matrix b, Matrix res){
+        seqMM(a.data, a.offset, a.stride, b.data, b.offset, b.stride, res.data, res.offset, res.stride,
+                a.rows, a.cols, b.cols);
+    }
+
+    /** Base case m x k times k x n multiplication on (array, offset, stride) blocks, c = a * b, done by the kernel
+        selected in Kernels **/
+    public static void seqMM(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                             int m, int k, int n){
+        Kernels.multiply(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+    }
+
     /** Method to print the matrix **/
-    public static void printMatrix(int[][] A, int row, int col){
-        for (int i = 0; i < row; i++){
-            for (int j = 0; j < col; j++){
-                System.out.print(" " + A[i][j]);
-            }
-            System.out.println();
-        }
-        System.out.println();
+    public static void printMatrix(Matrix A, int row, int col){
+        MatrixFile.print(A, row, col, System.out);
     }
 
-    public static int[][] multiply(int[][] A, int[][] B){
-        int n = A.length;
-        int[][] C = new int[n][n];
+    /** Multiplies A (m x k) with B (k x n) for any sizes. Odd sizes are handled by dynamic peeling: every level
+        only splits the even part of the operands and Kernels.peel adds the odd row/column afterwards, so
+        nothing is ever padded **/
+    public static Matrix multiply(Matrix A, Matrix B){
+        checkShapes(A, B);
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
 
-        /** If the matrix is 1x1 just directly multiply it with the other one **/
-        if (n <= 32){
+        /** If the matrix is smaller than the crossover just directly multiply it with the other one **/
+        if (Kernels.isBaseCase(m, k, n, Crossover.threshold())){
             return seqMM(A, B);
-        }else{
-
-            /** Createing subamtrcies to get 2x2 matrices because we use divide and conquer **/
-            int[][] A11 = new int[n/2][n/2];
-            int[][] A12 = new int[n/2][n/2];
-            int[][] A21 = new int[n/2][n/2];
-            int[][] A22 = new int[n/2][n/2];
-            int[][] B11 = new int[n/2][n/2];
-            int[][] B12 = new int[n/2][n/2];
-            int[][] B21 = new int[n/2][n/2];
-            int[][] B22 = new int[n/2][n/2];
-
-            /** Split the matrix **/
-            split(A, A11, 0, 0);
-            split(A, A12, 0, n/2);
-            split(A, A21, n/2, 0);
-            split(A, A22, n/2, n/2);
-
-            split(B, B11, 0, 0);
-            split(B, B12, 0, n/2);
-            split(B, B21, n/2, 0);
-            split(B, B22, n/2, n/2);
-
-            /** Strassen's algorithm formulas for matrix multiplication **/
-            int[][] M1 = multiply(add(A11, A22), add(B11, B22));
-            int[][] M2 = multiply(add(A21, A22), B11);
-            int[][] M3 = multiply(A11, subtract(B12, B22));
-            int[][] M4 = multiply(A22, subtract(B21, B11));
-            int[][] M5 = multiply(add(A11, A12), B22);
-            int[][] M6 = multiply(subtract(A21, A11), add(B11, B12));
-            int[][] M7 = multiply(subtract(A12, A22), add(B21, B22));
-
-            int[][] C11 = add(subtract(add(M1, M4), M5), M7);
-            int[][] C12 = add(M3, M5);
-            int[][] C21 = add(M2, M4);
-            int[][] C22 = add(subtract(add(M1, M3), M2), M6);
-
-            /** Joining back the submatrices into one matrix **/
-            join(C11, C, 0, 0);
-            join(C12, C, 0, n / 2);
-            join(C21, C, n / 2, 0);
-            join(C22, C, n / 2, n / 2);
         }
+        if (Variant.selected() == Variant.WINOGRAD){
+            return winograd(A, B);
+        }
+        Matrix C = new Matrix(m, n);
+
+        /** Views of the 2x2 submatrices because we use divide and conquer, nothing is copied here.
+            For odd sizes the quadrants leave out the last row/column **/
+        Matrix A11 = split(A, 0, 0);
+        Matrix A12 = split(A, 0, k/2);
+        Matrix A21 = split(A, m/2, 0);
+        Matrix A22 = split(A, m/2, k/2);
+
+        Matrix B11 = split(B, 0, 0);
+        Matrix B12 = split(B, 0, n/2);
+        Matrix B21 = split(B, k/2, 0);
+        Matrix B22 = split(B, k/2, n/2);
+
+        /** Strassen's algorithm formulas for matrix multiplication **/
+        Matrix M1 = multiply(add(A11, A22), add(B11, B22));
+        Matrix M2 = multiply(add(A21, A22), B11);
+        Matrix M3 = multiply(A11, subtract(B12, B22));
+        Matrix M4 = multiply(A22, subtract(B21, B11));
+        Matrix M5 = multiply(add(A11, A12), B22);
+        Matrix M6 = multiply(subtract(A21, A11), add(B11, B12));
+        Matrix M7 = multiply(subtract(A12, A22), add(B21, B22));
+
+        /** The last addition of every quadrant is written straight into C, so there is nothing left to join **/
+        Matrix.add(subtract(add(M1, M4), M5), M7, split(C, 0, 0));
+        Matrix.add(M3, M5, split(C, 0, n / 2));
+        Matrix.add(M2, M4, split(C, m / 2, 0));
+        Matrix.add(subtract(add(M1, M3), M2), M6, split(C, m / 2, n / 2));
+        Kernels.peel(A, B, C);
         return C;
     }
 
-    /** Function to split parent matrix into child matrices, because we use the divide-and-conquer approach **/
-    public static void split(int[][] P, int[][] C, int iB, int jB) {
-        for (int i = iB; i < C.length + iB; i++)
-            for (int j = jB; j < C.length + jB; j++)
-                C[i - iB][j - jB] = P[i][j];
+    /** One level of the Strassen-Winograd variant (see Variant), 15 additions instead of 18 **/
+    static Matrix winograd(Matrix A, Matrix B){
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        Matrix C = new Matrix(m, n);
+
+        Matrix A11 = split(A, 0, 0);
+        Matrix A12 = split(A, 0, k/2);
+        Matrix A21 = split(A, m/2, 0);
+        Matrix A22 = split(A, m/2, k/2);
+
+        Matrix B11 = split(B, 0, 0);
+        Matrix B12 = split(B, 0, n/2);
+        Matrix B21 = split(B, k/2, 0);
+        Matrix B22 = split(B, k/2, n/2);
+
+        Matrix S1 = add(A21, A22);
+        Matrix S2 = subtract(S1, A11);
+        Matrix S3 = subtract(A11, A21);
+        Matrix S4 = subtract(A12, S2);
+        Matrix T1 = subtract(B12, B11);
+        Matrix T2 = subtract(B22, T1);
+        Matrix T3 = subtract(B22, B12);
+        Matrix T4 = subtract(T2, B21);
+
+        Matrix P1 = multiply(A11, B11);
+        Matrix P2 = multiply(A12, B21);
+        Matrix P3 = multiply(S4, B22);
+        Matrix P4 = multiply(A22, T4);
+        Matrix P5 = multiply(S1, T1);
+        Matrix P6 = multiply(S2, T2);
+        Matrix P7 = multiply(S3, T3);
+
+        Matrix U2 = add(P1, P6);
+        Matrix U3 = add(U2, P7);
+        Matrix.add(P1, P2, split(C, 0, 0));
+        Matrix.add(add(U2, P5), P3, split(C, 0, n / 2));
+        Matrix.subtract(U3, P4, split(C, m / 2, 0));
+        Matrix.add(U3, P5, split(C, m / 2, n / 2));
+        Kernels.peel(A, B, C);
+        return C;
     }
 
+    /** Strassen that allocates nothing while it runs: the product of A (m x k) and B (k x n) is written into C
+        (which may be a view) and every temporary is carved out of the workspace, see Workspace **/
+    public static void multiply(Matrix A, Matrix B, Matrix C, Workspace ws){
+        multiply(A, B, C, ws, Variant.selected());
+    }
 
-    /** Function to join child matrices into parent matrix after the splitting **/
-    public static void join(int[][] C, int[][] P, int iB, int jB) {
-        for (int i = iB; i < C.length + iB; i++) {
-            for (int j = jB; j < C.length + jB; j++) {
-                P[i][j] = C[i - iB][j - jB];
-            }
+    /** Same as above with the formulas given explicitly instead of the selected ones **/
+    public static void multiply(Matrix A, Matrix B, Matrix C, Workspace ws, Variant variant){
+        checkShapes(A, B);
+        if (C.rows != A.rows || C.cols != B.cols){
+            throw new IllegalArgumentException("Result is " + C.rows + "x" + C.cols + ", expected " + A.rows + "x" + B.cols);
+        }
+        if (!ws.fits(A.rows, A.cols, B.cols)){
+            throw new IllegalArgumentException("Workspace is too small for " + A.rows + "x" + A.cols + " * "
+                    + B.rows + "x" + B.cols);
+        }
+        if (variant == Variant.WINOGRAD){
+            winograd(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride,
+                    A.rows, A.cols, B.cols, ws, 0);
+        } else {
+            multiply(A.data, A.offset, A.stride, B.data, B.offset, B.stride, C.data, C.offset, C.stride,
+                    A.rows, A.cols, B.cols, ws, 0);
         }
     }
 
+    /** Same as multiply(A, B) but with one workspace allocated up front instead of temporaries at every level **/
+    public static Matrix multiplyWithWorkspace(Matrix A, Matrix B){
+        checkShapes(A, B);
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C, new Workspace(A.rows, A.cols, B.cols, Crossover.threshold()));
+        return C;
+    }
 
-    /** Method for subtracting two matrices **/
-    public static int[][] subtract(int[][] A, int [][]B){
-        int n = A.length;
-        int[][] C = new int[n][n];
+    /** Strassen in long arithmetic, for products that would overflow int (see LongStrassen) **/
+    public static LongMatrix multiply(LongMatrix A, LongMatrix B){
+        return LongStrassen.multiply(A, B);
+    }
 
-        for (int i = 0; i < n; i++){
-            for (int j = 0; j < n; j++){
-                C[i][j] = A[i][j] - B[i][j];
-            }
+    /** Strassen modulo p, 2 <= p <= 2^31 (see LongStrassen) **/
+    public static LongMatrix multiplyMod(LongMatrix A, LongMatrix B, long p){
+        return LongStrassen.multiplyMod(A, B, p);
+    }
+
+    /** Strassen in double arithmetic (see DoubleStrassen) **/
+    public static DoubleMatrix multiply(DoubleMatrix A, DoubleMatrix B){
+        return DoubleStrassen.multiply(A, B);
+    }
+
+    /** The recursion behind multiply(A, B, C, ws). S and T hold the operand sums and P one product, all three sit
+        in the arena at wo, deeper levels use the arena after them. The products are accumulated straight into
+        the quadrants of c, M1, M2 and M3 are even computed there, so there is no join at all **/
+    static void multiply(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                         int m, int k, int n, Workspace w, int wo){
+        if (Kernels.isBaseCase(m, k, n, w.threshold)){
+            seqMM(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+            return;
+        }
+        if (ZERO_BLOCKS && zeroBlocks(a, ao, as, b, bo, bs, c, co, cs, m, k, n, w, wo, false)){
+            return;
+        }
+        int hm = m / 2;
+        int hk = k / 2;
+        int hn = n / 2;
+        int S = wo;
+        int T = S + hm * hk;
+        int P = T + hk * hn;
+        int next = P + hm * hn;
+        int[] ws = w.arena;
+
+        int a11 = ao, a12 = ao + hk, a21 = ao + hm * as, a22 = ao + hm * as + hk;
+        int b11 = bo, b12 = bo + hn, b21 = bo + hk * bs, b22 = bo + hk * bs + hn;
+        int c11 = co, c12 = co + hn, c21 = co + hm * cs, c22 = co + hm * cs + hn;
+
+        /** M1 = (A11 + A22)(B11 + B22) goes to C11 and C22 **/
+        Matrix.addInto(a, a11, as, a, a22, as, ws, S, hk, hm, hk);
+        Matrix.addInto(b, b11, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, c, c11, cs, hm, hk, hn, w, next);
+        Matrix.copyInto(c, c11, cs, c, c22, cs, hm, hn);
+
+        /** M2 = (A21 + A22)B11 goes to C21, C22 -= M2 **/
+        Matrix.addInto(a, a21, as, a, a22, as, ws, S, hk, hm, hk);
+        multiply(ws, S, hk, b, b11, bs, c, c21, cs, hm, hk, hn, w, next);
+        Matrix.subInto(c, c22, cs, c, c21, cs, c, c22, cs, hm, hn);
+
+        /** M3 = A11(B12 - B22) goes to C12, C22 += M3 **/
+        Matrix.subInto(b, b12, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(a, a11, as, ws, T, hn, c, c12, cs, hm, hk, hn, w, next);
+        Matrix.addInto(c, c22, cs, c, c12, cs, c, c22, cs, hm, hn);
+
+        /** M4 = A22(B21 - B11), C11 += M4, C21 += M4 **/
+        Matrix.subInto(b, b21, bs, b, b11, bs, ws, T, hn, hk, hn);
+        multiply(a, a22, as, ws, T, hn, ws, P, hn, hm, hk, hn, w, next);
+        Matrix.addInto(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+        Matrix.addInto(c, c21, cs, ws, P, hn, c, c21, cs, hm, hn);
+
+        /** M5 = (A11 + A12)B22, C11 -= M5, C12 += M5 **/
+        Matrix.addInto(a, a11, as, a, a12, as, ws, S, hk, hm, hk);
+        multiply(ws, S, hk, b, b22, bs, ws, P, hn, hm, hk, hn, w, next);
+        Matrix.subInto(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+        Matrix.addInto(c, c12, cs, ws, P, hn, c, c12, cs, hm, hn);
+
+        /** M6 = (A21 - A11)(B11 + B12), C22 += M6 **/
+        Matrix.subInto(a, a21, as, a, a11, as, ws, S, hk, hm, hk);
+        Matrix.addInto(b, b11, bs, b, b12, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, w, next);
+        Matrix.addInto(c, c22, cs, ws, P, hn, c, c22, cs, hm, hn);
+
+        /** M7 = (A12 - A22)(B21 + B22), C11 += M7 **/
+        Matrix.subInto(a, a12, as, a, a22, as, ws, S, hk, hm, hk);
+        Matrix.addInto(b, b21, bs, b, b22, bs, ws, T, hn, hk, hn);
+        multiply(ws, S, hk, ws, T, hn, ws, P, hn, hm, hk, hn, w, next);
+        Matrix.addInto(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+
+        /** Odd sizes: add the row/column the quadrants left out **/
+        if (((m | k | n) & 1) != 0){
+            Kernels.peel(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
         }
-        return C;
     }
 
-    /** Method for adding two matrices **/
-    public static int[][] add(int[][] A, int[][] B){
-        int n = A.length;
-        int[][] C = new int[n][n];
+    /** The Strassen-Winograd recursion on the same arena layout as multiply(int[], ...). The partial sums are
+        built in place in S and T, the products go to the quadrants of c (which double as temporaries for the
+        U sums) and P keeps P1 until the very end **/
+    static void winograd(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                         int m, int k, int n, Workspace w, int wo){
+        if (Kernels.isBaseCase(m, k, n, w.threshold)){
+            seqMM(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+            return;
+        }
+        if (ZERO_BLOCKS && zeroBlocks(a, ao, as, b, bo, bs, c, co, cs, m, k, n, w, wo, true)){
+            return;
+        }
+        int hm = m / 2;
+        int hk = k / 2;
+        int hn = n / 2;
+        int S = wo;
+        int T = S + hm * hk;
+        int P = T + hk * hn;
+        int next = P + hm * hn;
+        int[] ws = w.arena;
+
+        int a11 = ao, a12 = ao + hk, a21 = ao + hm * as, a22 = ao + hm * as + hk;
+        int b11 = bo, b12 = bo + hn, b21 = bo + hk * bs, b22 = bo + hk * bs + hn;
+        int c11 = co, c12 = co + hn, c21 = co + hm * cs, c22 = co + hm * cs + hn;
+
+        /** P7 = S3 T3 = (A11 - A21)(B22 - B12) goes to C21 **/
+        Matrix.subInto(a, a11, as, a, a21, as, ws, S, hk, hm, hk);
+        Matrix.subInto(b, b22, bs, b, b12, bs, ws, T, hn, hk, hn);
+        winograd(ws, S, hk, ws, T, hn, c, c21, cs, hm, hk, hn, w, next);
+
+        /** P5 = S1 T1 = (A21 + A22)(B12 - B11) goes to C22 **/
+        Matrix.addInto(a, a21, as, a, a22, as, ws, S, hk, hm, hk);
+        Matrix.subInto(b, b12, bs, b, b11, bs, ws, T, hn, hk, hn);
+        winograd(ws, S, hk, ws, T, hn, c, c22, cs, hm, hk, hn, w, next);
+
+        /** P6 = S2 T2 = (S1 - A11)(B22 - T1) goes to C12 **/
+        Matrix.subInto(ws, S, hk, a, a11, as, ws, S, hk, hm, hk);
+        Matrix.subInto(b, b22, bs, ws, T, hn, ws, T, hn, hk, hn);
+        winograd(ws, S, hk, ws, T, hn, c, c12, cs, hm, hk, hn, w, next);
+
+        /** P1 = A11 B11 stays in P **/
+        winograd(a, a11, as, b, b11, bs, ws, P, hn, hm, hk, hn, w, next);
+
+        /** U2 = P1 + P6 in C12, U3 = U2 + P7 in C21, U4 = U2 + P5 in C12, C22 = U3 + P5 is final **/
+        Matrix.addInto(c, c12, cs, ws, P, hn, c, c12, cs, hm, hn);
+        Matrix.addInto(c, c21, cs, c, c12, cs, c, c21, cs, hm, hn);
+        Matrix.addInto(c, c12, cs, c, c22, cs, c, c12, cs, hm, hn);
+        Matrix.addInto(c, c22, cs, c, c21, cs, c, c22, cs, hm, hn);
+
+        /** P3 = S4 B22 = (A12 - S2)B22 in C11, C12 = U4 + P3 is final **/
+        Matrix.subInto(a, a12, as, ws, S, hk, ws, S, hk, hm, hk);
+        winograd(ws, S, hk, b, b22, bs, c, c11, cs, hm, hk, hn, w, next);
+        Matrix.addInto(c, c12, cs, c, c11, cs, c, c12, cs, hm, hn);
 
-        for (int i = 0; i < n; i++){
-            for (int j = 0; j < n; j++){
-                C[i][j] = A[i][j] + B[i][j];
+        /** P4 = A22 T4 = A22(T2 - B21) in C11, C21 = U3 - P4 is final **/
+        Matrix.subInto(ws, T, hn, b, b21, bs, ws, T, hn, hk, hn);
+        winograd(a, a22, as, ws, T, hn, c, c11, cs, hm, hk, hn, w, next);
+        Matrix.subInto(c, c21, cs, c, c11, cs, c, c21, cs, hm, hn);
+
+        /** P2 = A12 B21 in C11, C11 = P1 + P2 is final **/
+        winograd(a, a12, as, b, b21, bs, c, c11, cs, hm, hk, hn, w, next);
+        Matrix.addInto(c, c11, cs, ws, P, hn, c, c11, cs, hm, hn);
+
+        /** Odd sizes: add the row/column the quadrants left out **/
+        if (((m | k | n) & 1) != 0){
+            Kernels.peel(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+        }
+    }
+
+    /** One level for operands with quadrants of zeros, such as block diagonal or triangular ones: C_ij is the sum
+        of the block products A_ip B_pj where neither block is zero, each one by the recursion, the first written
+        straight into C_ij and the others through P. That is done when at most seven such products are left,
+        which is never more work than Strassen and needs no operand sums. Returns false without having done
+        anything when there is no zero quadrant or more than seven products are left. The check stops at the
+        first element that is not zero in every quadrant, so dense operands barely notice it **/
+    static boolean zeroBlocks(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                              int m, int k, int n, Workspace w, int wo, boolean winograd){
+        int hm = m / 2;
+        int hk = k / 2;
+        int hn = n / 2;
+        /** Bit 2i + p of aBlocks is set if A_ip has an element that is not zero, likewise for bBlocks and B_pj **/
+        int aBlocks = 0;
+        for (int q = 0; q < 4; q++){
+            if (!Matrix.isZero(a, ao + (q >> 1) * hm * as + (q & 1) * hk, as, hm, hk)){
+                aBlocks |= 1 << q;
+            }
+        }
+        int bBlocks = 0;
+        for (int q = 0; q < 4; q++){
+            if (!Matrix.isZero(b, bo + (q >> 1) * hk * bs + (q & 1) * hn, bs, hk, hn)){
+                bBlocks |= 1 << q;
+            }
+        }
+        /** Eight when nothing is zero **/
+        int products = 0;
+        for (int i = 0; i < 2; i++){
+            for (int j = 0; j < 2; j++){
+                for (int p = 0; p < 2; p++){
+                    if ((aBlocks >> (2 * i + p) & 1) != 0 && (bBlocks >> (2 * p + j) & 1) != 0){
+                        products++;
+                    }
+                }
             }
         }
+        if (products > 7){
+            return false;
+        }
+        int P = wo;
+        int next = P + hm * hn;
+        int[] ws = w.arena;
+        for (int i = 0; i < 2; i++){
+            for (int j = 0; j < 2; j++){
+                int cq = co + i * hm * cs + j * hn;
+                boolean first = true;
+                for (int p = 0; p < 2; p++){
+                    if ((aBlocks >> (2 * i + p) & 1) == 0 || (bBlocks >> (2 * p + j) & 1) == 0){
+                        continue;
+                    }
+                    int aq = ao + i * hm * as + p * hk;
+                    int bq = bo + p * hk * bs + j * hn;
+                    if (first){
+                        recurse(a, aq, as, b, bq, bs, c, cq, cs, hm, hk, hn, w, next, winograd);
+                        first = false;
+                    } else {
+                        recurse(a, aq, as, b, bq, bs, ws, P, hn, hm, hk, hn, w, next, winograd);
+                        Matrix.addInto(c, cq, cs, ws, P, hn, c, cq, cs, hm, hn);
+                    }
+                }
+                if (first){
+                    Matrix.zeroInto(c, cq, cs, hm, hn);
+                }
+            }
+        }
+        if (((m | k | n) & 1) != 0){
+            Kernels.peel(a, ao, as, b, bo, bs, c, co, cs, m, k, n);
+        }
+        return true;
+    }
+
+    private static void recurse(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                                int m, int k, int n, Workspace w, int wo, boolean winograd){
+        if (winograd){
+            winograd(a, ao, as, b, bo, bs, c, co, cs, m, k, n, w, wo);
+        } else {
+            multiply(a, ao, as, b, bo, bs, c, co, cs, m, k, n, w, wo);
+        }
+    }
+
+    static void checkShapes(Matrix A, Matrix B){
+        if (A.cols != B.rows){
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x" + B.cols);
+        }
+    }
+
+    /** Function to get the child matrix of size P/2 (rounded down) at (iB, jB) of the parent matrix, because we use
+        the divide-and-conquer approach. The child is a view, so it shares its elements with the parent **/
+    public static Matrix split(Matrix P, int iB, int jB) {
+        return P.view(iB, jB, P.rows / 2, P.cols / 2);
+    }
+
+
+    /** Function to join child matrix into parent matrix, it is only needed for children that are not views of P **/
+    public static void join(Matrix C, Matrix P, int iB, int jB) {
+        Matrix target = P.view(iB, jB, C.rows, C.cols);
+        if (target.data != C.data || target.offset != C.offset) {
+            target.copyFrom(C);
+        }
+    }
+
+
+    /** Method for subtracting two matrices **/
+    public static Matrix subtract(Matrix A, Matrix B){
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.subtract(A, B, C);
+        return C;
+    }
+
+    /** Method for adding two matrices **/
+    public static Matrix add(Matrix A, Matrix B){
+        Matrix C = new Matrix(A.rows, A.cols);
+        Matrix.add(A, B, C);
         return C;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+/** Picks between dense Strassen and the sparse kernels for a product, from how many elements and tiles of the
+    operands are not zero. The choice is made on estimated work in the units of Multiplier.cost(), multiply-adds
+    of the base case kernel:
+
+      DENSE      Multiplier.cost(m, k, n), Strassen on the workspace, which skips quadrants of zeros itself
+      CSR_LEFT   A in CSR times dense B, CSR_FACTOR per element of A that is not zero and column of B
+      CSR_RIGHT  dense A times B in CSR, SCATTER_FACTOR per element of B that is not zero and row of A
+      BLOCKS     A as tiles (BlockSparseMatrix) times dense B, one per multiply-add of the kept tiles
+
+    The factors say how much slower a multiply-add of that loop is than one of the kernel, the defaults are
+    measured against the VECTOR kernel (main prints them for a machine) and can be set with
+    -Dstrassen.sparse.csr and -Dstrassen.sparse.scatter. The tile size is -Dstrassen.sparse.tile, 64 by default.
+    Counting costs one pass over the operands, next to a product that is not worth avoiding. **/
+public class Sparse {
+
+    public enum Format { DENSE, CSR_LEFT, CSR_RIGHT, BLOCKS }
+
+    public static final double CSR_FACTOR = parse("strassen.sparse.csr", 6.0);
+    public static final double SCATTER_FACTOR = parse("strassen.sparse.scatter", 24.0);
+    public static final int TILE = (int) parse("strassen.sparse.tile", 64);
+
+    /** A * B in whatever format choose() picks **/
+    public static Matrix multiply(Matrix A, Matrix B) {
+        Sequential.checkShapes(A, B);
+        switch (choose(A, B)) {
+            case CSR_LEFT:
+                return SparseMatrix.multiply(SparseMatrix.of(A), B);
+            case CSR_RIGHT:
+                return SparseMatrix.multiply(A, SparseMatrix.of(B));
+            case BLOCKS:
+                return BlockSparseMatrix.multiply(BlockSparseMatrix.of(A, TILE), B);
+            default:
+                return Sequential.multiplyWithWorkspace(A, B);
+        }
+    }
+
+    /** The format with the least estimated work for A * B **/
+    public static Format choose(Matrix A, Matrix B) {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        double[] cost = new double[Format.values().length];
+        cost[Format.DENSE.ordinal()] = Multiplier.cost(m, k, n, Crossover.threshold());
+        cost[Format.CSR_LEFT.ordinal()] = CSR_FACTOR * A.nonZeros() * n + (double) m * n;
+        cost[Format.CSR_RIGHT.ordinal()] = SCATTER_FACTOR * m * B.nonZeros() + (double) m * k;
+        cost[Format.BLOCKS.ordinal()] = (double) tiles(A, TILE) * TILE * TILE * n + (double) m * n;
+        Format best = Format.DENSE;
+        for (Format format : Format.values()) {
+            if (cost[format.ordinal()] < cost[best.ordinal()]) {
+                best = format;
+            }
+        }
+        return best;
+    }
+
+    /** Number of tile x tile blocks of X that are not all zero, the check of a block stops at its first element
+        that is not zero **/
+    static int tiles(Matrix X, int tile) {
+        int count = 0;
+        for (int i = 0; i < X.rows; i += tile) {
+            for (int j = 0; j < X.cols; j += tile) {
+                if (!Matrix.isZero(X.data, X.index(i, j), X.stride, Math.min(tile, X.rows - i),
+                        Math.min(tile, X.cols - j))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Measures CSR_FACTOR and SCATTER_FACTOR on n x n operands (default 1024) against the selected kernel **/
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        Matrix A = Matrix.random(n, n, 10);
+        Matrix B = Matrix.random(n, n, 10);
+        Matrix C = new Matrix(n);
+        // Kernel on a leaf sized block, the sparse loops on a whole operand at 1% density
+        int leaf = Math.min(n, Crossover.threshold());
+        Matrix a = A.view(0, 0, leaf, leaf);
+        Matrix b = B.view(0, 0, leaf, leaf);
+        Matrix c = C.view(0, 0, leaf, leaf);
+        double kernel = time(() -> Kernels.multiply(a.data, a.offset, a.stride, b.data, b.offset, b.stride,
+                c.data, c.offset, c.stride, leaf, leaf, leaf)) / ((double) leaf * leaf * leaf);
+        SparseMatrix S = SparseMatrix.of(thin(A, 100));
+        double csr = time(() -> SparseMatrix.multiply(S, B, C)) / ((double) S.nonZeros() * n);
+        double scatter = time(() -> SparseMatrix.multiply(A, S, C)) / ((double) n * S.nonZeros());
+        System.out.printf("kernel %.3f ns, csr %.3f ns (factor %.1f), scatter %.3f ns (factor %.1f)%n",
+                kernel, csr, csr / kernel, scatter, scatter / kernel);
+    }
+
+    // X with all but every step-th element set to zero
+    private static Matrix thin(Matrix X, int step) {
+        Matrix Y = new Matrix(X.rows, X.cols);
+        for (int i = 0; i < X.rows; i++) {
+            for (int j = i % step; j < X.cols; j += step) {
+                Y.set(i, j, X.get(i, j));
+            }
+        }
+        return Y;
+    }
+
+    // Average time of a run in ns, after a warm up of about the same length
+    private static double time(Runnable run) {
+        long budget = 500_000_000L;
+        for (int round = 0; round < 2; round++) {
+            int reps = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                run.run();
+                reps++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < budget);
+            if (round == 1) {
+                return (double) elapsed / reps;
+            }
+        }
+        return 0;
+    }
+
+    private static double parse(String property, double fallback) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + property + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+/** Int matrix in compressed sparse row form (CSR): the elements that are not zero, row by row, with their column
+    indexes in ascending order, and where every row starts. For operands that are mostly zeros the products here
+    do work in proportion to the elements that are not zero instead of the O(n^2.81) of dense Strassen, see
+    Sparse for when that pays off.
+
+    sparse x dense and dense x sparse go row by row, adding an element times a row of the dense operand to a row of
+    the result, which is a stride one loop the JIT vectorizes. sparse x sparse is Gustavson's algorithm: every row
+    of the result is gathered in a dense accumulator and compressed again. **/
+public final class SparseMatrix {
+
+    public final int rows;
+    public final int cols;
+
+    // Row i holds the elements rowStart[i] .. rowStart[i + 1] - 1 of colIndex and values
+    final int[] rowStart;
+    final int[] colIndex;
+    final int[] values;
+
+    /** Wraps the arrays without copying them, the column indexes of every row must be ascending **/
+    public SparseMatrix(int rows, int cols, int[] rowStart, int[] colIndex, int[] values) {
+        if (rowStart.length != rows + 1 || colIndex.length < rowStart[rows] || values.length < rowStart[rows]) {
+            throw new IllegalArgumentException("Arrays do not hold a " + rows + "x" + cols + " matrix");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStart = rowStart;
+        this.colIndex = colIndex;
+        this.values = values;
+    }
+
+    /** The elements of X that are not zero **/
+    public static SparseMatrix of(Matrix X) {
+        int count = (int) X.nonZeros();
+        int[] rowStart = new int[X.rows + 1];
+        int[] colIndex = new int[count];
+        int[] values = new int[count];
+        int next = 0;
+        for (int i = 0; i < X.rows; i++) {
+            int row = X.offset + i * X.stride;
+            for (int j = 0; j < X.cols; j++) {
+                int value = X.data[row + j];
+                if (value != 0) {
+                    colIndex[next] = j;
+                    values[next++] = value;
+                }
+            }
+            rowStart[i + 1] = next;
+        }
+        return new SparseMatrix(X.rows, X.cols, rowStart, colIndex, values);
+    }
+
+    public int nonZeros() {
+        return rowStart[rows];
+    }
+
+    /** Share of the elements that are not zero **/
+    public double density() {
+        return rows == 0 || cols == 0 ? 0 : (double) nonZeros() / ((double) rows * cols);
+    }
+
+    public int get(int i, int j) {
+        int at = Arrays.binarySearch(colIndex, rowStart[i], rowStart[i + 1], j);
+        return at < 0 ? 0 : values[at];
+    }
+
+    public Matrix toMatrix() {
+        Matrix X = new Matrix(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            for (int q = rowStart[i]; q < rowStart[i + 1]; q++) {
+                X.data[i * cols + colIndex[q]] = values[q];
+            }
+        }
+        return X;
+    }
+
+    public static Matrix multiply(SparseMatrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C);
+        return C;
+    }
+
+    /** C = A * B for a sparse A, C may be a view **/
+    public static void multiply(SparseMatrix A, Matrix B, Matrix C) {
+        check(A.rows, A.cols, B.rows, B.cols, C);
+        long start = Metrics.now();
+        int n = B.cols;
+        for (int i = 0; i < A.rows; i++) {
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(C.data, cRow, cRow + n, 0);
+            for (int q = A.rowStart[i]; q < A.rowStart[i + 1]; q++) {
+                int a = A.values[q];
+                int bRow = B.offset + A.colIndex[q] * B.stride;
+                for (int j = 0; j < n; j++) {
+                    C.data[cRow + j] += a * B.data[bRow + j];
+                }
+            }
+        }
+        Metrics.record(Metrics.Phase.LEAF, start, Math.max(A.rows, Math.max(A.cols, n)), (long) A.nonZeros() * n);
+    }
+
+    public static Matrix multiply(Matrix A, SparseMatrix B) {
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C);
+        return C;
+    }
+
+    /** C = A * B for a sparse B, C may be a view **/
+    public static void multiply(Matrix A, SparseMatrix B, Matrix C) {
+        check(A.rows, A.cols, B.rows, B.cols, C);
+        long start = Metrics.now();
+        for (int i = 0; i < A.rows; i++) {
+            int aRow = A.offset + i * A.stride;
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(C.data, cRow, cRow + B.cols, 0);
+            for (int p = 0; p < A.cols; p++) {
+                int a = A.data[aRow + p];
+                if (a == 0) {
+                    continue;
+                }
+                for (int q = B.rowStart[p]; q < B.rowStart[p + 1]; q++) {
+                    C.data[cRow + B.colIndex[q]] += a * B.values[q];
+                }
+            }
+        }
+        Metrics.record(Metrics.Phase.LEAF, start, Math.max(A.rows, Math.max(A.cols, B.cols)),
+                (long) A.rows * B.nonZeros());
+    }
+
+    /** A * B for a sparse A and B, the result is sparse too **/
+    public static SparseMatrix multiply(SparseMatrix A, SparseMatrix B) {
+        check(A.rows, A.cols, B.rows, B.cols, null);
+        long start = Metrics.now();
+        int n = B.cols;
+        int[] rowStart = new int[A.rows + 1];
+        int[] colIndex = new int[Math.max(16, A.nonZeros())];
+        int[] values = new int[colIndex.length];
+        // Dense accumulator of one row, and the columns it has touched: seen[j] == i + 1 if row i touched column j
+        int[] accumulator = new int[n];
+        int[] seen = new int[n];
+        int[] touched = new int[n];
+        long multiplyAdds = 0;
+        int next = 0;
+        for (int i = 0; i < A.rows; i++) {
+            int count = 0;
+            for (int q = A.rowStart[i]; q < A.rowStart[i + 1]; q++) {
+                int a = A.values[q];
+                int p = A.colIndex[q];
+                for (int r = B.rowStart[p]; r < B.rowStart[p + 1]; r++) {
+                    int j = B.colIndex[r];
+                    if (seen[j] != i + 1) {
+                        seen[j] = i + 1;
+                        accumulator[j] = 0;
+                        touched[count++] = j;
+                    }
+                    accumulator[j] += a * B.values[r];
+                }
+                multiplyAdds += B.rowStart[p + 1] - B.rowStart[p];
+            }
+            Arrays.sort(touched, 0, count);
+            if (next + count > colIndex.length) {
+                int grown = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(next + count, 2L * colIndex.length));
+                colIndex = Arrays.copyOf(colIndex, grown);
+                values = Arrays.copyOf(values, grown);
+            }
+            for (int t = 0; t < count; t++) {
+                int j = touched[t];
+                // Products that cancel out are left out
+                if (accumulator[j] != 0) {
+                    colIndex[next] = j;
+                    values[next++] = accumulator[j];
+                }
+            }
+            rowStart[i + 1] = next;
+        }
+        Metrics.record(Metrics.Phase.LEAF, start, Math.max(A.rows, Math.max(A.cols, n)), multiplyAdds);
+        return new SparseMatrix(A.rows, n, rowStart, colIndex, values);
+    }
+
+    private static void check(int m, int k, int bRows, int n, Matrix C) {
+        if (k != bRows || C != null && (C.rows != m || C.cols != n)) {
+            throw new IllegalArgumentException("Cannot multiply " + m + "x" + k + " with " + bRows + "x" + n
+                    + (C == null ? "" : " into " + C.rows + "x" + C.cols));
+        }
+    }
+}
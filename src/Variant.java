@@ -0,0 +1,70 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/** The set of formulas a Strassen level uses. CLASSIC is Strassen's original one with 18 additions around the
+    seven products, WINOGRAD is the Strassen-Winograd variant that needs only 15 by reusing partial sums
+    (S1..S4 for A, T1..T4 for B and U1..U7 for C):
+
+        S1 = A21 + A22   S2 = S1 - A11    S3 = A11 - A21   S4 = A12 - S2
+        T1 = B12 - B11   T2 = B22 - T1    T3 = B22 - B12   T4 = T2 - B21
+        P1 = A11 B11  P2 = A12 B21  P3 = S4 B22  P4 = A22 T4  P5 = S1 T1  P6 = S2 T2  P7 = S3 T3
+        C11 = P1 + P2   U2 = P1 + P6   U3 = U2 + P7   C12 = U2 + P5 + P3   C21 = U3 - P4   C22 = U3 + P5
+
+    At the top levels every addition is a full pass over memory, so on bandwidth bound machines fewer of them is a
+    real win. All engines use the selected variant, change it with use() or -Dstrassen.variant=CLASSIC|WINOGRAD.
+    Run main to check both variants in every engine against the naive product. **/
+public enum Variant {
+    CLASSIC, WINOGRAD;
+
+    private static volatile Variant selected = parse(System.getProperty("strassen.variant"));
+
+    public static Variant selected() {
+        return selected;
+    }
+
+    public static void use(Variant variant) {
+        selected = variant;
+    }
+
+    private static Variant parse(String name) {
+        if (name == null) {
+            return CLASSIC;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown Strassen variant " + name + ", using CLASSIC");
+            return CLASSIC;
+        }
+    }
+
+    /** Cross-checks every engine with both variants against the naive kernel and prints their times **/
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 513;
+        Matrix A = Matrix.random(n, n, 10);
+        Matrix B = Matrix.random(n, n, 10);
+        Matrix reference = new Matrix(n, n);
+        Kernels.multiply(Kernels.Kernel.NAIVE, A.data, 0, n, B.data, 0, n, reference.data, 0, n, n, n, n);
+        Variant previous = selected;
+        try {
+            for (Variant variant : values()) {
+                use(variant);
+                check(variant, "Sequential", reference, () -> Sequential.multiply(A, B));
+                check(variant, "Sequential workspace", reference, () -> Sequential.multiplyWithWorkspace(A, B));
+                check(variant, "Parallel fork/join", reference,
+                        () -> Parallel.multiply(A, B, ForkJoinPool.commonPool()));
+                check(variant, "Distributive (local)", reference, () -> Distributive.multiply(A, B));
+            }
+        } finally {
+            use(previous);
+        }
+    }
+
+    private static void check(Variant variant, String engine, Matrix reference, Supplier<Matrix> run) {
+        long start = System.nanoTime();
+        Matrix C = run.get();
+        long time = System.nanoTime() - start;
+        System.out.printf("%-9s %-22s %8.1f ms  %s%n", variant, engine, time / 1e6,
+                C.contentEquals(reference) ? "OK" : "MISMATCH");
+    }
+}
@@ -0,0 +1,326 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/** SIMD versions of the element-wise passes and of the base case product, written with the Vector API
+    (jdk.incubator.vector). The species are the preferred ones of the machine, so the same code runs 4, 8 or 16
+    ints per instruction depending on what the CPU has. Everything here is only reached through Kernels.VECTOR,
+    which is false when the JVM was started without --add-modules jdk.incubator.vector, and then the scalar loops
+    run instead.
+
+    The element-wise passes (add, sub, the Strassen combine) are bound by memory bandwidth, the vector loads and
+    stores keep it saturated with a fraction of the instructions. The product is bound by arithmetic: it keeps a
+    tile of 4 rows x 2 vectors of C in registers while it walks a KC long slice of k, broadcasting one element of A
+    at a time against two vectors of a row of B, so every element of B that is loaded is used four times. **/
+final class VectorKernels {
+
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONG = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLE = DoubleVector.SPECIES_PREFERRED;
+
+    // Slice of k the product runs over before it writes its tile of C back
+    private static final int KC = 256;
+
+    private VectorKernels() {
+    }
+
+    /** Ints per vector **/
+    static int intLanes() {
+        return INT.length();
+    }
+
+    /** c = a + b over a rows x cols block, c may alias a or b **/
+    static void add(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int rows, int cols) {
+        int bound = INT.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += INT.length()) {
+                IntVector.fromArray(INT, a, x + j).add(IntVector.fromArray(INT, b, y + j)).intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] + b[y + j];
+            }
+        }
+    }
+
+    /** c = a - b over a rows x cols block, c may alias a or b **/
+    static void sub(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs, int rows, int cols) {
+        int bound = INT.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += INT.length()) {
+                IntVector.fromArray(INT, a, x + j).sub(IntVector.fromArray(INT, b, y + j)).intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] - b[y + j];
+            }
+        }
+    }
+
+    /** c = a + b for long elements (no modulus) **/
+    static void add(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs, int rows, int cols) {
+        int bound = LONG.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += LONG.length()) {
+                LongVector.fromArray(LONG, a, x + j).add(LongVector.fromArray(LONG, b, y + j)).intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] + b[y + j];
+            }
+        }
+    }
+
+    /** c = a - b for long elements (no modulus) **/
+    static void sub(long[] a, int ao, int as, long[] b, int bo, int bs, long[] c, int co, int cs, int rows, int cols) {
+        int bound = LONG.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += LONG.length()) {
+                LongVector.fromArray(LONG, a, x + j).sub(LongVector.fromArray(LONG, b, y + j)).intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] - b[y + j];
+            }
+        }
+    }
+
+    /** c = a + b for double elements **/
+    static void add(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs, int rows,
+                    int cols) {
+        int bound = DOUBLE.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += DOUBLE.length()) {
+                DoubleVector.fromArray(DOUBLE, a, x + j).add(DoubleVector.fromArray(DOUBLE, b, y + j))
+                        .intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] + b[y + j];
+            }
+        }
+    }
+
+    /** c = a - b for double elements **/
+    static void sub(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs, int rows,
+                    int cols) {
+        int bound = DOUBLE.loopBound(cols);
+        for (int i = 0; i < rows; i++) {
+            int x = ao + i * as;
+            int y = bo + i * bs;
+            int z = co + i * cs;
+            int j = 0;
+            for (; j < bound; j += DOUBLE.length()) {
+                DoubleVector.fromArray(DOUBLE, a, x + j).sub(DoubleVector.fromArray(DOUBLE, b, y + j))
+                        .intoArray(c, z + j);
+            }
+            for (; j < cols; j++) {
+                c[z + j] = a[x + j] - b[y + j];
+            }
+        }
+    }
+
+    /** Rows [r0, r1) of the classic combine of Parallel.combine, the same formulas one vector at a time **/
+    static void combine(Matrix M1, Matrix M2, Matrix M3, Matrix M4, Matrix M5, Matrix M6, Matrix M7,
+                        Matrix C11, Matrix C12, Matrix C21, Matrix C22, int r0, int r1) {
+        int cols = C11.cols;
+        int bound = INT.loopBound(cols);
+        for (int i = r0; i < r1; i++) {
+            int o1 = M1.index(i, 0), o2 = M2.index(i, 0), o3 = M3.index(i, 0), o4 = M4.index(i, 0);
+            int o5 = M5.index(i, 0), o6 = M6.index(i, 0), o7 = M7.index(i, 0);
+            int q11 = C11.index(i, 0), q12 = C12.index(i, 0), q21 = C21.index(i, 0), q22 = C22.index(i, 0);
+            int j = 0;
+            for (; j < bound; j += INT.length()) {
+                IntVector m1 = IntVector.fromArray(INT, M1.data, o1 + j);
+                IntVector m2 = IntVector.fromArray(INT, M2.data, o2 + j);
+                IntVector m3 = IntVector.fromArray(INT, M3.data, o3 + j);
+                IntVector m4 = IntVector.fromArray(INT, M4.data, o4 + j);
+                IntVector m5 = IntVector.fromArray(INT, M5.data, o5 + j);
+                IntVector m6 = IntVector.fromArray(INT, M6.data, o6 + j);
+                IntVector m7 = IntVector.fromArray(INT, M7.data, o7 + j);
+                m1.add(m4).sub(m5).add(m7).intoArray(C11.data, q11 + j);
+                m3.add(m5).intoArray(C12.data, q12 + j);
+                m2.add(m4).intoArray(C21.data, q21 + j);
+                m1.sub(m2).add(m3).add(m6).intoArray(C22.data, q22 + j);
+            }
+            for (; j < cols; j++) {
+                int m1 = M1.data[o1 + j];
+                int m2 = M2.data[o2 + j];
+                int m3 = M3.data[o3 + j];
+                int m4 = M4.data[o4 + j];
+                int m5 = M5.data[o5 + j];
+                C11.data[q11 + j] = m1 + m4 - m5 + M7.data[o7 + j];
+                C12.data[q12 + j] = m3 + m5;
+                C21.data[q21 + j] = m2 + m4;
+                C22.data[q22 + j] = m1 - m2 + m3 + M6.data[o6 + j];
+            }
+        }
+    }
+
+    /** c = a * b where a is m x k and b is k x n, all given as (array, offset, stride) blocks **/
+    static void multiply(int[] a, int ao, int as, int[] b, int bo, int bs, int[] c, int co, int cs,
+                         int m, int k, int n) {
+        if (k == 0) {
+            for (int i = 0; i < m; i++) {
+                java.util.Arrays.fill(c, co + i * cs, co + i * cs + n, 0);
+            }
+            return;
+        }
+        int lanes = INT.length();
+        for (int pc = 0; pc < k; pc += KC) {
+            int kc = Math.min(KC, k - pc);
+            // The first slice of k writes C, the others add to it
+            boolean add = pc > 0;
+            int i = 0;
+            for (; i + 4 <= m; i += 4) {
+                int a0 = ao + i * as + pc;
+                int c0 = co + i * cs;
+                int j = 0;
+                for (; j + 2 * lanes <= n; j += 2 * lanes) {
+                    IntVector x00 = IntVector.zero(INT), x01 = IntVector.zero(INT);
+                    IntVector x10 = IntVector.zero(INT), x11 = IntVector.zero(INT);
+                    IntVector x20 = IntVector.zero(INT), x21 = IntVector.zero(INT);
+                    IntVector x30 = IntVector.zero(INT), x31 = IntVector.zero(INT);
+                    int bRow = bo + pc * bs + j;
+                    for (int p = 0; p < kc; p++, bRow += bs) {
+                        IntVector y0 = IntVector.fromArray(INT, b, bRow);
+                        IntVector y1 = IntVector.fromArray(INT, b, bRow + lanes);
+                        int e0 = a[a0 + p];
+                        int e1 = a[a0 + as + p];
+                        int e2 = a[a0 + 2 * as + p];
+                        int e3 = a[a0 + 3 * as + p];
+                        x00 = x00.add(y0.mul(e0));
+                        x01 = x01.add(y1.mul(e0));
+                        x10 = x10.add(y0.mul(e1));
+                        x11 = x11.add(y1.mul(e1));
+                        x20 = x20.add(y0.mul(e2));
+                        x21 = x21.add(y1.mul(e2));
+                        x30 = x30.add(y0.mul(e3));
+                        x31 = x31.add(y1.mul(e3));
+                    }
+                    store(x00, c, c0 + j, add);
+                    store(x01, c, c0 + j + lanes, add);
+                    store(x10, c, c0 + cs + j, add);
+                    store(x11, c, c0 + cs + j + lanes, add);
+                    store(x20, c, c0 + 2 * cs + j, add);
+                    store(x21, c, c0 + 2 * cs + j + lanes, add);
+                    store(x30, c, c0 + 3 * cs + j, add);
+                    store(x31, c, c0 + 3 * cs + j + lanes, add);
+                }
+                for (int r = 0; r < 4; r++) {
+                    rowTail(a, a0 + r * as, b, bo + pc * bs, bs, c, c0 + r * cs, j, n, kc, add);
+                }
+            }
+            for (; i < m; i++) {
+                rowTail(a, ao + i * as + pc, b, bo + pc * bs, bs, c, co + i * cs, 0, n, kc, add);
+            }
+        }
+    }
+
+    // Columns [j0, n) of one row of C over a slice of kc elements of k, a vector at a time and then scalar
+    private static void rowTail(int[] a, int aRow, int[] b, int bo, int bs, int[] c, int cRow, int j0, int n,
+                                int kc, boolean add) {
+        int lanes = INT.length();
+        int j = j0;
+        for (; j + lanes <= n; j += lanes) {
+            IntVector x = IntVector.zero(INT);
+            int bRow = bo + j;
+            for (int p = 0; p < kc; p++, bRow += bs) {
+                x = x.add(IntVector.fromArray(INT, b, bRow).mul(a[aRow + p]));
+            }
+            store(x, c, cRow + j, add);
+        }
+        for (; j < n; j++) {
+            int sum = 0;
+            for (int p = 0; p < kc; p++) {
+                sum += a[aRow + p] * b[bo + p * bs + j];
+            }
+            c[cRow + j] = add ? c[cRow + j] + sum : sum;
+        }
+    }
+
+    private static void store(IntVector x, int[] c, int index, boolean add) {
+        if (add) {
+            x = x.add(IntVector.fromArray(INT, c, index));
+        }
+        x.intoArray(c, index);
+    }
+
+    /** c = a * b in double, the same tiling as the int product with fused multiply-adds **/
+    static void multiply(double[] a, int ao, int as, double[] b, int bo, int bs, double[] c, int co, int cs,
+                         int m, int k, int n) {
+        int lanes = DOUBLE.length();
+        for (int i = 0; i < m; i++) {
+            java.util.Arrays.fill(c, co + i * cs, co + i * cs + n, 0);
+        }
+        for (int pc = 0; pc < k; pc += KC) {
+            int kc = Math.min(KC, k - pc);
+            int i = 0;
+            for (; i + 4 <= m; i += 4) {
+                int a0 = ao + i * as + pc;
+                int c0 = co + i * cs;
+                int j = 0;
+                for (; j + lanes <= n; j += lanes) {
+                    DoubleVector x0 = DoubleVector.fromArray(DOUBLE, c, c0 + j);
+                    DoubleVector x1 = DoubleVector.fromArray(DOUBLE, c, c0 + cs + j);
+                    DoubleVector x2 = DoubleVector.fromArray(DOUBLE, c, c0 + 2 * cs + j);
+                    DoubleVector x3 = DoubleVector.fromArray(DOUBLE, c, c0 + 3 * cs + j);
+                    int bRow = bo + pc * bs + j;
+                    for (int p = 0; p < kc; p++, bRow += bs) {
+                        DoubleVector y = DoubleVector.fromArray(DOUBLE, b, bRow);
+                        x0 = y.fma(DoubleVector.broadcast(DOUBLE, a[a0 + p]), x0);
+                        x1 = y.fma(DoubleVector.broadcast(DOUBLE, a[a0 + as + p]), x1);
+                        x2 = y.fma(DoubleVector.broadcast(DOUBLE, a[a0 + 2 * as + p]), x2);
+                        x3 = y.fma(DoubleVector.broadcast(DOUBLE, a[a0 + 3 * as + p]), x3);
+                    }
+                    x0.intoArray(c, c0 + j);
+                    x1.intoArray(c, c0 + cs + j);
+                    x2.intoArray(c, c0 + 2 * cs + j);
+                    x3.intoArray(c, c0 + 3 * cs + j);
+                }
+                for (int r = 0; r < 4; r++) {
+                    for (int jj = j; jj < n; jj++) {
+                        double sum = c[c0 + r * cs + jj];
+                        for (int p = 0; p < kc; p++) {
+                            sum += a[a0 + r * as + p] * b[bo + (pc + p) * bs + jj];
+                        }
+                        c[c0 + r * cs + jj] = sum;
+                    }
+                }
+            }
+            for (; i < m; i++) {
+                int aRow = ao + i * as + pc;
+                int cRow = co + i * cs;
+                for (int p = 0; p < kc; p++) {
+                    double e = a[aRow + p];
+                    DoubleVector v = DoubleVector.broadcast(DOUBLE, e);
+                    int bRow = bo + (pc + p) * bs;
+                    int j = 0;
+                    for (; j + lanes <= n; j += lanes) {
+                        DoubleVector.fromArray(DOUBLE, b, bRow + j)
+                                .fma(v, DoubleVector.fromArray(DOUBLE, c, cRow + j)).intoArray(c, cRow + j);
+                    }
+                    for (; j < n; j++) {
+                        c[cRow + j] += e * b[bRow + j];
+                    }
+                }
+            }
+        }
+    }
+}
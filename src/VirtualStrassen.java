@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+
+/** Strassen on virtual threads with structured concurrency, the blocking counterpart of the fork/join
+    Parallel.StrassenTask. Every recursion level opens a StructuredTaskScope, forks its seven products into it and
+    simply waits for them: a virtual thread that blocks gives its carrier back, so waiting costs no platform thread
+    and the tree can not starve a pool however deep it goes. When a product fails the scope cancels its siblings,
+    the failure is thrown from multiply() and no thread of the product outlives the call.
+
+    Virtual threads bound nothing, so the work that uses a core (the leaves, which run the sequential Strassen in a
+    workspace, and the element-wise passes of every level) first takes a permit of a semaphore with one permit per
+    core, and gives it back before it waits for anything, so a permit is never held by a thread that blocks. The
+    workspaces of the leaves are kept between leaves and products, there are never more of them than permits.
+    Quadrants of zeros are skipped at every level like in the other engines (see Sequential.zeroBlocks).
+
+    Like StrassenTask only the top depth levels fork, below that or below minForkSize a product is a leaf. One
+    engine can run any number of products at a time, they share its permits. Requires --enable-preview on JDK 21. **/
+public class VirtualStrassen {
+
+    private final int permits;
+    private final Semaphore cores;
+    private final ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+    private final int depth;
+    private final int minForkSize;
+
+    /** One permit per core, as many levels as Parallel forks on a pool of that size **/
+    public VirtualStrassen() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public VirtualStrassen(int permits) {
+        this(permits, Parallel.defaultDepth(permits), Parallel.DEFAULT_MIN_FORK_SIZE);
+    }
+
+    public VirtualStrassen(int permits, int depth, int minForkSize) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("Need at least one permit, got " + permits);
+        }
+        this.permits = permits;
+        this.cores = new Semaphore(permits);
+        this.depth = depth;
+        this.minForkSize = minForkSize;
+    }
+
+    public Matrix multiply(Matrix A, Matrix B) {
+        Sequential.checkShapes(A, B);
+        Matrix C = new Matrix(A.rows, B.cols);
+        multiply(A, B, C, Variant.selected());
+        return C;
+    }
+
+    /** C = A * B with the given formulas, C may be a view. Blocks the caller until the product is done **/
+    public void multiply(Matrix A, Matrix B, Matrix C, Variant variant) {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " with " + B.rows + "x"
+                    + B.cols + " into " + C.rows + "x" + C.cols);
+        }
+        int threshold = Crossover.threshold();
+        // The top level runs in a scope too, so the caller can be a platform thread and only waits
+        all(() -> product(A, B, C, depth, threshold, variant));
+    }
+
+    // One product, a level of its own or a leaf
+    private void product(Matrix A, Matrix B, Matrix C, int depth, int threshold, Variant variant)
+            throws InterruptedException {
+        int m = A.rows;
+        int k = A.cols;
+        int n = B.cols;
+        if (depth <= 0 || Math.min(m, Math.min(k, n)) < minForkSize || Kernels.isBaseCase(m, k, n, threshold)) {
+            onCore(Math.max(m, Math.max(k, n)), () -> leaf(A, B, C, threshold, variant));
+            return;
+        }
+        Matrix A11 = Parallel.split(A, 0, 0);
+        Matrix A12 = Parallel.split(A, 0, k / 2);
+        Matrix A21 = Parallel.split(A, m / 2, 0);
+        Matrix A22 = Parallel.split(A, m / 2, k / 2);
+        Matrix B11 = Parallel.split(B, 0, 0);
+        Matrix B12 = Parallel.split(B, 0, n / 2);
+        Matrix B21 = Parallel.split(B, k / 2, 0);
+        Matrix B22 = Parallel.split(B, k / 2, n / 2);
+        Matrix C11 = Parallel.split(C, 0, 0);
+        Matrix C12 = Parallel.split(C, 0, n / 2);
+        Matrix C21 = Parallel.split(C, m / 2, 0);
+        Matrix C22 = Parallel.split(C, m / 2, n / 2);
+        int d = depth - 1;
+        if (Sequential.ZERO_BLOCKS && zeroBlocks(new Matrix[]{A11, A12, A21, A22},
+                new Matrix[]{B11, B12, B21, B22}, new Matrix[]{C11, C12, C21, C22}, d, threshold, variant)) {
+            onCore(Math.max(m, Math.max(k, n)), () -> Kernels.peel(A, B, C));
+            return;
+        }
+        if (variant == Variant.WINOGRAD) {
+            Matrix S1 = new Matrix(m / 2, k / 2), S2 = new Matrix(m / 2, k / 2);
+            Matrix S3 = new Matrix(m / 2, k / 2), S4 = new Matrix(m / 2, k / 2);
+            Matrix T1 = new Matrix(k / 2, n / 2), T2 = new Matrix(k / 2, n / 2);
+            Matrix T3 = new Matrix(k / 2, n / 2), T4 = new Matrix(k / 2, n / 2);
+            all(() -> striped(S1.rows, S1.cols, (r0, r1) -> Parallel.winogradSums(A11, A12, A21, A22, S1, S2, S3, S4, r0, r1, false)),
+                () -> striped(T1.rows, T1.cols, (r0, r1) -> Parallel.winogradSums(B11, B12, B21, B22, T1, T2, T3, T4, r0, r1, true)));
+
+            Matrix P2 = new Matrix(m / 2, n / 2);
+            Matrix P3 = new Matrix(m / 2, n / 2);
+            Matrix P4 = new Matrix(m / 2, n / 2);
+            all(() -> product(A11, B11, C11, d, threshold, variant),
+                () -> product(A12, B21, P2, d, threshold, variant),
+                () -> product(S4, B22, P3, d, threshold, variant),
+                () -> product(A22, T4, P4, d, threshold, variant),
+                () -> product(S1, T1, C22, d, threshold, variant),
+                () -> product(S2, T2, C12, d, threshold, variant),
+                () -> product(S3, T3, C21, d, threshold, variant));
+
+            striped(C11.rows, C11.cols, (r0, r1) -> Parallel.winogradCombine(P2, P3, P4, C11, C12, C21, C22, r0, r1));
+        } else {
+            Matrix S1 = new Matrix(m / 2, k / 2), S2 = new Matrix(m / 2, k / 2), S5 = new Matrix(m / 2, k / 2);
+            Matrix S6 = new Matrix(m / 2, k / 2), S7 = new Matrix(m / 2, k / 2);
+            Matrix T1 = new Matrix(k / 2, n / 2), T3 = new Matrix(k / 2, n / 2), T4 = new Matrix(k / 2, n / 2);
+            Matrix T6 = new Matrix(k / 2, n / 2), T7 = new Matrix(k / 2, n / 2);
+            all(() -> striped(S1.rows, S1.cols, (r0, r1) -> Matrix.add(Parallel.rows(A11, r0, r1), Parallel.rows(A22, r0, r1), Parallel.rows(S1, r0, r1))),
+                () -> striped(S2.rows, S2.cols, (r0, r1) -> Matrix.add(Parallel.rows(A21, r0, r1), Parallel.rows(A22, r0, r1), Parallel.rows(S2, r0, r1))),
+                () -> striped(S5.rows, S5.cols, (r0, r1) -> Matrix.add(Parallel.rows(A11, r0, r1), Parallel.rows(A12, r0, r1), Parallel.rows(S5, r0, r1))),
+                () -> striped(S6.rows, S6.cols, (r0, r1) -> Matrix.subtract(Parallel.rows(A21, r0, r1), Parallel.rows(A11, r0, r1), Parallel.rows(S6, r0, r1))),
+                () -> striped(S7.rows, S7.cols, (r0, r1) -> Matrix.subtract(Parallel.rows(A12, r0, r1), Parallel.rows(A22, r0, r1), Parallel.rows(S7, r0, r1))),
+                () -> striped(T1.rows, T1.cols, (r0, r1) -> Matrix.add(Parallel.rows(B11, r0, r1), Parallel.rows(B22, r0, r1), Parallel.rows(T1, r0, r1))),
+                () -> striped(T3.rows, T3.cols, (r0, r1) -> Matrix.subtract(Parallel.rows(B12, r0, r1), Parallel.rows(B22, r0, r1), Parallel.rows(T3, r0, r1))),
+                () -> striped(T4.rows, T4.cols, (r0, r1) -> Matrix.subtract(Parallel.rows(B21, r0, r1), Parallel.rows(B11, r0, r1), Parallel.rows(T4, r0, r1))),
+                () -> striped(T6.rows, T6.cols, (r0, r1) -> Matrix.add(Parallel.rows(B11, r0, r1), Parallel.rows(B12, r0, r1), Parallel.rows(T6, r0, r1))),
+                () -> striped(T7.rows, T7.cols, (r0, r1) -> Matrix.add(Parallel.rows(B21, r0, r1), Parallel.rows(B22, r0, r1), Parallel.rows(T7, r0, r1))));
+
+            // M1, M2 and M3 go straight into C11, C21 and C12, as in StrassenTask
+            Matrix M4 = new Matrix(m / 2, n / 2);
+            Matrix M5 = new Matrix(m / 2, n / 2);
+            Matrix M6 = new Matrix(m / 2, n / 2);
+            Matrix M7 = new Matrix(m / 2, n / 2);
+            all(() -> product(S1, T1, C11, d, threshold, variant),
+                () -> product(S2, B11, C21, d, threshold, variant),
+                () -> product(A11, T3, C12, d, threshold, variant),
+                () -> product(A22, T4, M4, d, threshold, variant),
+                () -> product(S5, B22, M5, d, threshold, variant),
+                () -> product(S6, T6, M6, d, threshold, variant),
+                () -> product(S7, T7, M7, d, threshold, variant));
+
+            striped(C11.rows, C11.cols,
+                    (r0, r1) -> Parallel.combine(C11, C21, C12, M4, M5, M6, M7, C11, C12, C21, C22, r0, r1));
+        }
+        onCore(Math.max(m, Math.max(k, n)), () -> Kernels.peel(A, B, C));
+    }
+
+    /* Quadrants of zeros, as in Parallel.StrassenTask.zeroBlocks: with at most seven block products A_ip B_pj left
+       that do not involve one, those are forked into one scope instead of the Strassen products. The first product
+       of every quadrant of C goes straight into it, the second into a buffer that is added afterwards. Returns
+       false without having done anything when that does not apply */
+    private boolean zeroBlocks(Matrix[] a, Matrix[] b, Matrix[] c, int depth, int threshold, Variant variant)
+            throws InterruptedException {
+        int[] blocks = new int[2];
+        onCore(Math.max(a[0].rows, Math.max(a[0].cols, b[0].cols)), () -> {
+            blocks[0] = Parallel.nonZeroBlocks(a);
+            blocks[1] = Parallel.nonZeroBlocks(b);
+        });
+        if (Parallel.blockProducts(blocks[0], blocks[1]) > 7) {
+            return false;
+        }
+        List<Work> products = new ArrayList<>();
+        List<Matrix> empty = new ArrayList<>();
+        Matrix[] second = new Matrix[4];
+        for (int q = 0; q < 4; q++) {
+            boolean first = true;
+            for (int p = 0; p < 2; p++) {
+                if (!Parallel.blockProduct(blocks[0], blocks[1], q, p)) {
+                    continue;
+                }
+                Matrix left = a[q & 2 | p];
+                Matrix right = b[2 * p + (q & 1)];
+                Matrix target = first ? c[q] : (second[q] = new Matrix(c[q].rows, c[q].cols));
+                products.add(() -> product(left, right, target, depth, threshold, variant));
+                first = false;
+            }
+            if (first) {
+                empty.add(c[q]);
+            }
+        }
+        all(products.toArray(new Work[0]));
+        for (int q = 0; q < 4; q++) {
+            Matrix Cq = c[q];
+            Matrix Pq = second[q];
+            if (Pq != null) {
+                striped(Cq.rows, Cq.cols, (r0, r1) -> Matrix.add(Parallel.rows(Cq, r0, r1), Parallel.rows(Pq, r0, r1),
+                        Parallel.rows(Cq, r0, r1)));
+            }
+        }
+        for (Matrix Cq : empty) {
+            striped(Cq.rows, Cq.cols, (r0, r1) -> Parallel.rows(Cq, r0, r1).fill(0));
+        }
+        return true;
+    }
+
+    // The rest of the recursion, sequential in a workspace of this engine
+    private void leaf(Matrix A, Matrix B, Matrix C, int threshold, Variant variant) {
+        Workspace ws = workspaces.poll();
+        if (ws == null || ws.threshold != threshold || !ws.fits(A.rows, A.cols, B.cols)) {
+            ws = new Workspace(A.rows, A.cols, B.cols, threshold);
+        }
+        try {
+            Sequential.multiply(A, B, C, ws, variant);
+        } finally {
+            workspaces.offer(ws);
+        }
+    }
+
+    /* An element-wise pass over rows [0, rows), cut into about one row stripe per permit, each on a virtual thread
+       of its own, none smaller than Parallel.STRIPE_MIN_ELEMENTS */
+    private void striped(int rows, int cols, Parallel.RowRange op) throws InterruptedException {
+        int count = (int) Math.min(Math.min(rows, permits), (long) rows * cols / Parallel.STRIPE_MIN_ELEMENTS);
+        if (count <= 1) {
+            onCore(Math.max(rows, cols), () -> op.run(0, rows));
+            return;
+        }
+        Work[] stripes = new Work[count];
+        for (int i = 0; i < count; i++) {
+            int r0 = (int) ((long) rows * i / count);
+            int r1 = (int) ((long) rows * (i + 1) / count);
+            stripes[i] = () -> onCore(Math.max(r1 - r0, cols), () -> op.run(r0, r1));
+        }
+        all(stripes);
+    }
+
+    // Runs work on the calling thread once it has a permit, the wait for it counts as queueing in Metrics
+    private void onCore(int size, Runnable work) throws InterruptedException {
+        long queued = Metrics.now();
+        cores.acquire();
+        try {
+            Metrics.record(Metrics.Phase.QUEUE, queued, size, 1);
+            work.run();
+        } finally {
+            cores.release();
+        }
+    }
+
+    // Some work that may wait, and throw InterruptedException when it is cancelled
+    private interface Work {
+        void run() throws InterruptedException;
+    }
+
+    /* Runs the work on virtual threads of one scope and returns when all of it is done. The first failure shuts the
+       scope down, which interrupts the others (a leaf that waits for a permit stops right away, one that computes
+       finishes its block first), and is thrown here, unchecked exceptions and errors as they are */
+    private static void all(Work... work) {
+        try (StructuredTaskScope.ShutdownOnFailure scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            for (Work w : work) {
+                scope.fork(() -> {
+                    w.run();
+                    return null;
+                });
+            }
+            scope.join();
+            Throwable failure = scope.exception().orElse(null);
+            if (failure instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure instanceof Error e) {
+                throw e;
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Product failed", failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing a product", e);
+        }
+    }
+}
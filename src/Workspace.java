@@ -0,0 +1,83 @@
+/** Scratch memory for the allocation-free Strassen in Sequential. All temporaries live in one int[] arena that is
+    used like a stack: every recursion level takes its operand sums S, T and one product P (for an m x k times
+    k x n product these are m/2 x k/2, k/2 x n/2 and m/2 x n/2) right after the blocks of its parent and gives
+    them back when it returns. For an n x n product this adds up to 3 * (n^2/4 + n^2/16 + ...) < n^2 elements,
+    next to A, B and C nothing else is allocated. **/
+public class Workspace {
+
+    public final int[] arena;
+    public final int threshold;
+
+    /** Largest arena (elements) local() keeps for a thread, bigger workspaces are handed out once and dropped **/
+    public static final int LOCAL_LIMIT = 1 << 24;
+
+    // The workspace each thread keeps for local()
+    private static final ThreadLocal<Workspace> LOCAL = new ThreadLocal<>();
+
+    /** Workspace big enough for any product of size up to n x n, with the current crossover **/
+    public Workspace(int n) {
+        this(n, Crossover.threshold());
+    }
+
+    /** Workspace for products up to n x n that recurse down to blocks of size threshold **/
+    public Workspace(int n, int threshold) {
+        this(n, n, n, threshold);
+    }
+
+    /** Workspace for an m x k times k x n product that recurses down to blocks of size threshold **/
+    public Workspace(int m, int k, int n, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Crossover must be at least 1, got " + threshold);
+        }
+        this.threshold = threshold;
+        long size = required(m, k, n, threshold);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Workspace for " + m + "x" + k + " * " + k + "x" + n
+                    + " does not fit into one array");
+        }
+        this.arena = new int[(int) size];
+        Metrics.allocated(4 * size, Math.max(m, Math.max(k, n)));
+    }
+
+    /** Number of arena elements the recursion needs for an n x n product with the given crossover **/
+    public static long required(int n, int threshold) {
+        return required(n, n, n, threshold);
+    }
+
+    /** Number of arena elements the recursion needs for an m x k times k x n product with the given crossover **/
+    public static long required(int m, int k, int n, int threshold) {
+        long total = 0;
+        while (!Kernels.isBaseCase(m, k, n, threshold)) {
+            m /= 2;
+            k /= 2;
+            n /= 2;
+            total += (long) m * k + (long) k * n + (long) m * n;
+        }
+        return total;
+    }
+
+    /** True if this workspace is big enough for an n x n product **/
+    public boolean fits(int n) {
+        return fits(n, n, n);
+    }
+
+    /** True if this workspace is big enough for an m x k times k x n product **/
+    public boolean fits(int m, int k, int n) {
+        return required(m, k, n, threshold) <= arena.length;
+    }
+
+    /** A workspace of the calling thread for an m x k times k x n product, kept for the next call on the same thread
+        and only replaced when a bigger one is needed, so a thread that does many products allocates it once.
+        The caller must be done with it before the thread asks for one again **/
+    public static Workspace local(int m, int k, int n, int threshold) {
+        Workspace ws = LOCAL.get();
+        if (ws != null && ws.threshold == threshold && ws.fits(m, k, n)) {
+            return ws;
+        }
+        ws = new Workspace(m, k, n, threshold);
+        if (ws.arena.length <= LOCAL_LIMIT) {
+            LOCAL.set(ws);
+        }
+        return ws;
+    }
+}
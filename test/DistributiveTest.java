@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/** The modes of Distributive on LocalCommunicator ranks against the naive kernel. The levels are forced, the
+    sizes here are too small for Decomposition.levels to split them at all **/
+class DistributiveTest {
+
+    private static final int[] RANKS = {1, 2, 3, 5};
+    private static final int[][] SHAPES = {{64, 64, 64}, {127, 131, 99}, {33, 200, 70}};
+
+    private final Variant variant = Variant.selected();
+
+    @AfterEach
+    void restore() {
+        Variant.use(variant);
+        System.clearProperty("strassen.mpi.levels");
+    }
+
+    @Test
+    void broadcast() {
+        check((A, B) -> comm -> Distributive.multiply(A, B, comm));
+    }
+
+    @Test
+    void scattered() {
+        check((A, B) -> comm -> comm.rank() == 0
+                ? Distributive.multiplyScattered(A, B, comm, A.rows, A.cols, B.cols)
+                : Distributive.multiplyScattered(null, null, comm, A.rows, A.cols, B.cols));
+    }
+
+    @Test
+    void tasks() {
+        check((A, B) -> comm -> FaultTolerant.multiply(A, B, comm));
+    }
+
+    @Test
+    void instrumented() {
+        check((A, B) -> comm -> Distributive.multiply(A, B, Metrics.instrument(comm)));
+    }
+
+    // Every mode, rank count, shape and level count up to 2, with the result on rank 0 and null on the others
+    private static void check(Mode mode) {
+        for (Variant v : Variant.values()) {
+            Variant.use(v);
+            for (int levels = 1; levels <= 2; levels++) {
+                System.setProperty("strassen.mpi.levels", Integer.toString(levels));
+                for (int ranks : RANKS) {
+                    for (int[] shape : SHAPES) {
+                        Matrix A = random(shape[0], shape[1], 1);
+                        Matrix B = random(shape[1], shape[2], 2);
+                        Matrix C = run(ranks, mode.of(A, B));
+                        assertTrue(C.contentEquals(naive(A, B)), () -> v + ", " + ranks + " ranks, shape "
+                                + Arrays.toString(shape) + ", " + System.getProperty("strassen.mpi.levels")
+                                + " levels");
+                    }
+                }
+            }
+        }
+    }
+
+    /** The result of body on rank 0, asserts the other ranks return null **/
+    static Matrix run(int ranks, Function<Communicator, Matrix> body) {
+        Matrix[] result = new Matrix[1];
+        LocalCommunicator.run(ranks, comm -> {
+            Matrix C = body.apply(comm);
+            if (comm.rank() == 0) {
+                result[0] = C;
+            } else {
+                assertNull(C, "rank " + comm.rank());
+            }
+        });
+        return result[0];
+    }
+
+    /** Elements in [-10, 10], so the negative ones get tested too **/
+    static Matrix random(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        Matrix M = new Matrix(rows, cols);
+        for (int i = 0; i < M.data.length; i++) {
+            M.data[i] = random.nextInt(21) - 10;
+        }
+        return M;
+    }
+
+    static Matrix naive(Matrix A, Matrix B) {
+        Matrix C = new Matrix(A.rows, B.cols);
+        Kernels.multiply(Kernels.Kernel.NAIVE, A.data, A.offset, A.stride, B.data, B.offset, B.stride,
+                C.data, C.offset, C.stride, A.rows, A.cols, B.cols);
+        return C;
+    }
+
+    private interface Mode {
+        Function<Communicator, Matrix> of(Matrix A, Matrix B);
+    }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** FaultTolerant on LocalCommunicator ranks: the products of ranks that fall behind are handed out again, and a
+    restarted run takes the checkpointed ones from disk **/
+class FaultTolerantTest {
+
+    private final Matrix A = DistributiveTest.random(127, 131, 3);
+    private final Matrix B = DistributiveTest.random(131, 99, 4);
+
+    @BeforeEach
+    void levels() {
+        System.setProperty("strassen.mpi.levels", "1");
+    }
+
+    @AfterEach
+    void restore() {
+        System.clearProperty("strassen.mpi.levels");
+    }
+
+    @Test
+    void slowRank() {
+        // The last rank delivers every product more than 5 timeouts late
+        for (int ranks = 2; ranks <= 4; ranks++) {
+            int slow = ranks - 1;
+            Matrix C = DistributiveTest.run(ranks, comm -> FaultTolerant.multiply(A, B,
+                    comm.rank() == slow ? delayed(comm, 1000) : comm, 150, null));
+            assertTrue(C.contentEquals(DistributiveTest.naive(A, B)), ranks + " ranks");
+        }
+    }
+
+    @Test
+    void deadline() {
+        // The timeout is far off, only the deadline gets the products of the slow rank done elsewhere
+        Matrix C = DistributiveTest.run(3, comm -> FaultTolerant.multiply(A, B,
+                comm.rank() == 2 ? delayed(comm, 1000) : comm, 30_000, 100, null));
+        assertTrue(C.contentEquals(DistributiveTest.naive(A, B)));
+    }
+
+    @Test
+    void checkpoints(@TempDir Path dir) throws IOException {
+        Matrix first = DistributiveTest.run(4, comm -> FaultTolerant.multiply(A, B, comm, 30_000, dir));
+        assertTrue(first.contentEquals(DistributiveTest.naive(A, B)));
+        // One file per product of the single level
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertEquals(7, files.filter(Files::isRegularFile).count());
+        }
+        Matrix restarted = DistributiveTest.run(4, comm -> FaultTolerant.multiply(A, B, comm, 30_000, dir));
+        assertTrue(restarted.contentEquals(first));
+    }
+
+    // comm with every DONE message held back by delay ms, heartbeats go out as usual
+    private static Communicator delayed(Communicator comm, long delay) {
+        return new Communicator() {
+            @Override
+            public int rank() {
+                return comm.rank();
+            }
+
+            @Override
+            public int size() {
+                return comm.size();
+            }
+
+            @Override
+            public Request isend(int[] buf, int offset, int count, int dest, int tag) {
+                if (tag == FaultTolerant.CONTROL && buf[offset] == FaultTolerant.DONE) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return comm.isend(buf, offset, count, dest, tag);
+            }
+
+            @Override
+            public Request irecv(int[] buf, int offset, int count, int source, int tag) {
+                return comm.irecv(buf, offset, count, source, tag);
+            }
+
+            @Override
+            public void bcast(int[] buf, int offset, int count, int root) {
+                comm.bcast(buf, offset, count, root);
+            }
+
+            @Override
+            public void barrier() {
+                comm.barrier();
+            }
+
+            @Override
+            public int waitAny(Request[] requests) {
+                return comm.waitAny(requests);
+            }
+        };
+    }
+}